@@ -0,0 +1,36 @@
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Gives the benchmarks in the benchmark package access to the stages of the parser.
+ */
+public class ParserStages implements benchmark.Stages {
+
+	private static final double[] NO_BINDINGS = new double[0];
+
+	public Object lex(String input) throws IOException {
+		return new Lexer(input);
+	}
+
+	public Object buildSyntaxTree(Object lexer) throws IOException {
+		return Parser.buildSyntaxTree(((Lexer) lexer).iterator());
+	}
+
+	public double evaluateSyntaxTree(Object tree) {
+		return Parser.evaluateSyntaxTree((Parser.TreeNode) tree, NO_BINDINGS);
+	}
+
+	public void print(Object tree) {
+		TreePrinter.print((Parser.TreeNode) tree);
+	}
+
+	public Object compileBatch(String input) throws IOException {
+		return BatchEvaluator.compile(Parser.compile(input));
+	}
+
+	public void evaluateParallel(Object batch, double[][] columns, double[] output,
+	                             ForkJoinPool pool) {
+		((BatchEvaluator) batch).evaluateParallel(columns, output, pool,
+				  BatchEvaluator.DEFAULT_PARALLEL_THRESHOLD);
+	}
+}
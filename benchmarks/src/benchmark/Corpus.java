@@ -0,0 +1,93 @@
+package benchmark;
+
+import java.util.Random;
+
+/**
+ * Representative inputs for the benchmarks. Every corpus is generated from a fixed seed, so runs
+ * are comparable.
+ */
+public enum Corpus {
+
+	/** Short formulas of a few operators, such as 3 + 4 * 2 / (1 - 5) ^ 2. */
+	SHORT {
+		String generate(Random random) {
+			return number(random) + " + " + number(random) + " * " + number(random) + " / (" +
+					  number(random) + " - " + number(random) + ") ^ 2";
+		}
+	},
+
+	/** Long sums of 200 numbers. */
+	LONG_SUM {
+		String generate(Random random) {
+			StringBuilder builder = new StringBuilder(number(random));
+			for (int i = 1; i < 200; i++) {
+				builder.append(i % 2 == 0 ? " + " : " - ").append(number(random));
+			}
+			return builder.toString();
+		}
+	},
+
+	/** Parentheses nested 50 deep, such as ((1 + 2) * 3 - 4) / 5. */
+	NESTED {
+		String generate(Random random) {
+			String[] operators = {" + ", " - ", " * ", " / "};
+			StringBuilder builder = new StringBuilder();
+			for (int i = 0; i < 50; i++) {
+				builder.append('(');
+			}
+			builder.append(number(random));
+			for (int i = 0; i < 50; i++) {
+				builder.append(operators[random.nextInt(operators.length)])
+						  .append(number(random)).append(')');
+			}
+			return builder.toString();
+		}
+	},
+
+	/** Formulas made mostly of sin, cos, and tan calls. */
+	FUNCTIONS {
+		String generate(Random random) {
+			String[] functions = {"sin", "cos", "tan"};
+			StringBuilder builder = new StringBuilder();
+			for (int i = 0; i < 8; i++) {
+				if (i > 0) {
+					builder.append(i % 2 == 0 ? " + " : " * ");
+				}
+				builder.append(functions[random.nextInt(functions.length)]).append('(')
+						  .append(functions[random.nextInt(functions.length)]).append('(')
+						  .append(number(random)).append("))");
+			}
+			return builder.toString();
+		}
+	};
+
+	/** The number of inputs in each corpus. */
+	public static final int SIZE = 64;
+
+	/**
+	 * @param random The source of randomness.
+	 * @return A new input for this corpus.
+	 */
+	abstract String generate(Random random);
+
+	/**
+	 * @return The inputs of this corpus.
+	 */
+	public String[] inputs() {
+		Random random = new Random(42);
+		String[] inputs = new String[SIZE];
+		for (int i = 0; i < SIZE; i++) {
+			inputs[i] = generate(random);
+		}
+		return inputs;
+	}
+
+	/**
+	 * @param random The source of randomness.
+	 * @return A number of one to three integer digits and up to two decimals.
+	 */
+	private static String number(Random random) {
+		int value = 1 + random.nextInt(999);
+		return random.nextBoolean() ? Integer.toString(value) : (value / 100.0) + "";
+	}
+}
@@ -0,0 +1,68 @@
+package benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how BatchEvaluator.evaluateParallel scales with the number of threads, over 4M rows
+ * of random bindings. Compare the time of each number of threads with that of one thread:
+ * java -jar benchmarks/target/benchmarks.jar ParallelBenchmark -p threads=1,2,4,8,16
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParallelBenchmark {
+
+	private static final Stages STAGES = ParserBenchmark.newStages();
+	private static final int ROWS = 1 << 22;
+
+	@Param({"1", "2", "4", "8"})
+	public int threads;
+
+	private Object batch;
+	private double[][] columns;
+	private double[] output;
+	private ForkJoinPool pool;
+
+	@Setup
+	public void setUp() throws IOException {
+		batch = STAGES.compileBatch("sin(x) * y ^ 2 + cos(y) / (x * x + 1) - x * y");
+		Random random = new Random(42);
+		columns = new double[2][ROWS];
+		for (int i = 0; i < ROWS; i++) {
+			columns[0][i] = random.nextDouble() * 100;
+			columns[1][i] = random.nextDouble() * 100;
+		}
+		output = new double[ROWS];
+		pool = new ForkJoinPool(threads);
+	}
+
+	@TearDown
+	public void tearDown() {
+		pool.shutdown();
+	}
+
+	@Benchmark
+	public double[] evaluateParallel() {
+		STAGES.evaluateParallel(batch, columns, output, pool);
+		return output;
+	}
+}
@@ -0,0 +1,91 @@
+package benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures each stage of parsing separately: lexing, building the syntax tree, and evaluating
+ * it. Printing is measured by PrintBenchmark. Each operation is one input of the corpus; every
+ * invocation goes through the whole corpus so that the branch predictor cannot learn a single
+ * input.
+ *
+ * Run with the GC profiler to see allocation rates:
+ * java -jar benchmarks/target/benchmarks.jar -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+	private static final Stages STAGES = newStages();
+
+	@Param
+	public Corpus corpus;
+
+	private String[] inputs;
+	private Object[] lexers;
+	private Object[] trees;
+
+	@Setup
+	public void setUp() throws IOException {
+		inputs = corpus.inputs();
+		lexers = new Object[inputs.length];
+		trees = new Object[inputs.length];
+		for (int i = 0; i < inputs.length; i++) {
+			lexers[i] = STAGES.lex(inputs[i]);
+			trees[i] = STAGES.buildSyntaxTree(lexers[i]);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(Corpus.SIZE)
+	public void lex(Blackhole blackhole) throws IOException {
+		for (String input : inputs) {
+			blackhole.consume(STAGES.lex(input));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(Corpus.SIZE)
+	public void buildSyntaxTree(Blackhole blackhole) throws IOException {
+		for (Object lexer : lexers) {
+			blackhole.consume(STAGES.buildSyntaxTree(lexer));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(Corpus.SIZE)
+	public void evaluateSyntaxTree(Blackhole blackhole) {
+		for (Object tree : trees) {
+			blackhole.consume(STAGES.evaluateSyntaxTree(tree));
+		}
+	}
+
+	/**
+	 * @return The stages of the parser, from ParserStages in the default package.
+	 */
+	static Stages newStages() {
+		try {
+			return (Stages) Class.forName("ParserStages").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("ParserStages is not on the class path", e);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures printing syntax trees with TreePrinter.
+ *
+ * TreePrinter gives every level of the tree twice the width of the level above, so only the
+ * shallow corpora are printed; the 200-term sums and 50-deep parentheses would not fit in memory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrintBenchmark {
+
+	private static final Stages STAGES = ParserBenchmark.newStages();
+
+	@Param({"SHORT", "FUNCTIONS"})
+	public Corpus corpus;
+
+	private Object[] trees;
+	private PrintStream stdout;
+
+	@Setup
+	public void setUp() throws IOException {
+		String[] inputs = corpus.inputs();
+		trees = new Object[inputs.length];
+		for (int i = 0; i < inputs.length; i++) {
+			trees[i] = STAGES.buildSyntaxTree(STAGES.lex(inputs[i]));
+		}
+
+		// TreePrinter prints to standard out, which would measure the console instead
+		stdout = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+	}
+
+	@TearDown
+	public void tearDown() {
+		System.setOut(stdout);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(Corpus.SIZE)
+	public void print() {
+		for (Object tree : trees) {
+			STAGES.print(tree);
+		}
+	}
+}
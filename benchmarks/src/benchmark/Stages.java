@@ -0,0 +1,59 @@
+package benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The stages of parsing an expression, each of which is benchmarked separately, and the
+ * evaluation of an expression over many rows at once.
+ *
+ * The parser's classes are in the default package, which cannot be named from a package, and JMH
+ * does not allow benchmarks in the default package. ParserStages, in the default package,
+ * implements this interface to give the benchmarks access to each stage.
+ */
+public interface Stages {
+
+	/**
+	 * @param input A string representing a mathematical expression.
+	 * @return The Lexer of the input.
+	 * @throws IOException If an invalid character is encountered.
+	 */
+	Object lex(String input) throws IOException;
+
+	/**
+	 * @param lexer A Lexer, from lex.
+	 * @return The syntax tree built from the lexer's tokens.
+	 * @throws IOException If the parentheses are unbalanced or there are no tokens.
+	 */
+	Object buildSyntaxTree(Object lexer) throws IOException;
+
+	/**
+	 * @param tree A syntax tree, from buildSyntaxTree.
+	 * @return The result of the tree.
+	 */
+	double evaluateSyntaxTree(Object tree);
+
+	/**
+	 * Prints the tree with TreePrinter.
+	 *
+	 * @param tree A syntax tree, from buildSyntaxTree.
+	 */
+	void print(Object tree);
+
+	/**
+	 * @param input A string representing a mathematical expression.
+	 * @return A BatchEvaluator of the expression.
+	 * @throws IOException If the input is invalid.
+	 */
+	Object compileBatch(String input) throws IOException;
+
+	/**
+	 * Evaluates every row on the given pool with BatchEvaluator.evaluateParallel.
+	 *
+	 * @param batch   A BatchEvaluator, from compileBatch.
+	 * @param columns The values of the variables, indexed by binding slot and then by row.
+	 * @param output  The array the result of each row is written to.
+	 * @param pool    The pool to evaluate on.
+	 */
+	void evaluateParallel(Object batch, double[][] columns, double[] output, ForkJoinPool pool);
+}
@@ -0,0 +1,115 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * The Java Flight Recorder events of the parser, found by ParseEvents when the JVM has a flight
+ * recorder. This is compiled against jdk.jfr, separately from the rest of the parser, which does
+ * not depend on it.
+ *
+ * The events are enabled in any recording with the default settings, and each has a threshold of
+ * 1 ms. To see faster work, lower the threshold of the event, for example with
+ * recording.enable("mathparser.Evaluate").withThreshold(Duration.ZERO).
+ */
+final class FlightRecorderEvents implements ParseEvents.Factory {
+
+	private final EventType lex = EventType.getEventType(Lex.class);
+	private final EventType build = EventType.getEventType(Build.class);
+	private final EventType optimize = EventType.getEventType(Optimize.class);
+	private final EventType compile = EventType.getEventType(Compile.class);
+	private final EventType evaluate = EventType.getEventType(Evaluate.class);
+
+	public ParseEvents.Event begin(ParseEvents.Kind kind) {
+		// nothing is allocated unless a recording has the event enabled
+		ParseEvent event;
+		if (kind == ParseEvents.Kind.LEX) {
+			event = lex.isEnabled() ? new Lex() : null;
+		} else if (kind == ParseEvents.Kind.BUILD) {
+			event = build.isEnabled() ? new Build() : null;
+		} else if (kind == ParseEvents.Kind.OPTIMIZE) {
+			event = optimize.isEnabled() ? new Optimize() : null;
+		} else if (kind == ParseEvents.Kind.COMPILE) {
+			event = compile.isEnabled() ? new Compile() : null;
+		} else {
+			event = evaluate.isEnabled() ? new Evaluate() : null;
+		}
+
+		if (event != null) {
+			event.begin();
+		}
+		return event;
+	}
+
+	/**
+	 * The fields every event of the parser has.
+	 */
+	@Category("Math Parser")
+	@StackTrace(false)
+	@Threshold("1 ms")
+	abstract static class ParseEvent extends Event implements ParseEvents.Event {
+
+		@Label("Expression Length")
+		@Description("The number of characters of the expression, or 0 if it is not known")
+		int length;
+
+		@Label("Tokens")
+		@Description("The number of tokens of the expression, or 0 if it is not known")
+		int tokens;
+
+		@Label("Tree Depth")
+		@Description("The depth of the syntax tree, or 0 if it is not known")
+		int depth;
+
+		@Label("Engine")
+		@Description("The engine that did the work: tree, postfix, dag, or jit")
+		String engine;
+
+		public boolean finish() {
+			end();
+			return shouldCommit();
+		}
+
+		public void commit(int length, int tokens, int depth, String engine) {
+			this.length = length;
+			this.tokens = tokens;
+			this.depth = depth;
+			this.engine = engine;
+			commit();
+		}
+	}
+
+	@Name("mathparser.Lex")
+	@Label("Lex")
+	@Description("An expression was split into tokens")
+	static final class Lex extends ParseEvent {
+	}
+
+	@Name("mathparser.Build")
+	@Label("Build Syntax Tree")
+	@Description("The syntax tree of an expression was built from its tokens")
+	static final class Build extends ParseEvent {
+	}
+
+	@Name("mathparser.Optimize")
+	@Label("Optimize")
+	@Description("The syntax tree of an expression was simplified")
+	static final class Optimize extends ParseEvent {
+	}
+
+	@Name("mathparser.Compile")
+	@Label("Compile")
+	@Description("An expression was compiled for an engine")
+	static final class Compile extends ParseEvent {
+	}
+
+	@Name("mathparser.Evaluate")
+	@Label("Evaluate")
+	@Description("An expression was evaluated")
+	static final class Evaluate extends ParseEvent {
+	}
+}
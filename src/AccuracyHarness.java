@@ -0,0 +1,275 @@
+import java.util.Random;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Measures how far the FastMath approximations are from their strict counterparts in Math over
+ * dense sweeps of inputs, and fails if any is further than FastMath.MAX_RELATIVE_ERROR.
+ *
+ * The angles sweep evenly over several periods, over every binade of magnitudes up to
+ * FastMath.MAX_REDUCED_ARGUMENT, and over the doubles next to multiples of pi/2 throughout that
+ * range, where the reduction is hardest and sin, cos, and tan have their zeros and poles. The
+ * powers sweep every binade of positive and negative bases against integer, half-integer, and
+ * random exponents. Both include infinities, NaN, and signed zeros, which must match exactly.
+ *
+ * sin and cos must also never exceed 1 in magnitude, and must be exactly 1 or -1 wherever Math
+ * is, as at 0 and pi/2, since expressions such as sqrt(1 - cos(x)^2) rely on both.
+ *
+ * Pass the number of angles per part of the sweep as the only argument; the default is 2^20, with
+ * a 256th as many bases.
+ */
+public class AccuracyHarness {
+
+	private static final int DEFAULT_POINTS = 1 << 20;
+
+	private static final double[] SPECIAL_VALUES = {
+			  0.0, -0.0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NaN,
+			  Double.MIN_VALUE, -Double.MIN_VALUE, Double.MIN_NORMAL, Double.MAX_VALUE, 1, -1,
+	};
+
+	// the multiples of pi/2 where sin or cos peak
+	private static final double[] PEAKS = {
+			  0, Math.PI / 2, -Math.PI / 2, Math.PI, -Math.PI, 3 * Math.PI / 2, 2 * Math.PI,
+			  -2 * Math.PI, 1000 * Math.PI, 1001 * Math.PI / 2,
+	};
+
+	public static void main(String[] args) {
+		int points = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_POINTS;
+		boolean passed = true;
+		double[] angles = angles(points);
+		passed &= report("sin", sweep(FastMath::sin, Math::sin, angles));
+		passed &= report("cos", sweep(FastMath::cos, Math::cos, angles));
+		passed &= report("tan", sweep(FastMath::tan, Math::tan, angles));
+		passed &= reportBound("sin", FastMath::sin, Math::sin, angles);
+		passed &= reportBound("cos", FastMath::cos, Math::cos, angles);
+		passed &= report("pow", sweep(FastMath::pow, Math::pow, bases(points / 256), exponents()));
+		if (!passed) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @param name  The name of the function.
+	 * @param sweep The sweep of the function.
+	 * @return True if the sweep is within the bound, false otherwise.
+	 */
+	private static boolean report(String name, Sweep sweep) {
+		boolean passed = sweep.maxError <= FastMath.MAX_RELATIVE_ERROR;
+		String worst = Double.toString(sweep.worstX);
+		if (sweep.binary) {
+			worst += " ^ " + sweep.worstY;
+		}
+		System.out.printf("%-4s %10d inputs  max %.3e at %-28s mean %.3e  %s%n", name, sweep.count,
+				  sweep.maxError, worst, sweep.totalError / sweep.count,
+				  passed ? "PASSED" : "FAILED");
+		return passed;
+	}
+
+	/**
+	 * @param name   The name of the function.
+	 * @param fast   An approximation of sin or cos.
+	 * @param strict The function it approximates.
+	 * @param inputs The inputs to check it at.
+	 * @return True if the approximation is within the bounds of sin and cos, false otherwise.
+	 */
+	private static boolean reportBound(String name, DoubleUnaryOperator fast,
+	                                   DoubleUnaryOperator strict, double[] inputs) {
+		double max = maxMagnitude(fast, inputs);
+		int misses = peakMisses(fast, strict, inputs);
+		boolean passed = max <= 1 && misses == 0;
+		System.out.printf("%-4s %10d inputs  max |%s| %.17f  %d peaks missed  %s%n", name,
+				  inputs.length, name, max, misses, passed ? "PASSED" : "FAILED");
+		return passed;
+	}
+
+	/**
+	 * @param fast   An approximation.
+	 * @param inputs The inputs to evaluate it at.
+	 * @return The largest magnitude of the approximation at the inputs, ignoring NaN.
+	 */
+	static double maxMagnitude(DoubleUnaryOperator fast, double[] inputs) {
+		double max = 0;
+		for (double x : inputs) {
+			double magnitude = Math.abs(fast.applyAsDouble(x));
+			if (magnitude > max) {
+				max = magnitude;
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * @param fast   An approximation.
+	 * @param strict The function it approximates.
+	 * @param inputs The inputs to compare them at.
+	 * @return The number of inputs where the strict result is 1 or -1 and the approximate one
+	 * is not identical.
+	 */
+	static int peakMisses(DoubleUnaryOperator fast, DoubleUnaryOperator strict, double[] inputs) {
+		int misses = 0;
+		for (double x : inputs) {
+			double peak = strict.applyAsDouble(x);
+			if (Math.abs(peak) == 1 && fast.applyAsDouble(x) != peak) {
+				misses++;
+			}
+		}
+		return misses;
+	}
+
+	/**
+	 * @param points The number of angles in each part of the sweep.
+	 * @return Angles spread evenly over several periods, over every binade up to
+	 * FastMath.MAX_REDUCED_ARGUMENT, and next to multiples of pi/2, and peaks and special values.
+	 */
+	static double[] angles(int points) {
+		double[] angles = new double[points * 3 + PEAKS.length + SPECIAL_VALUES.length];
+		int count = 0;
+		for (int i = 0; i < points; i++) {
+			angles[count++] = -8 * Math.PI + 16 * Math.PI * i / points;
+		}
+
+		// from the smallest subnormal up to the largest reduced argument, alternating in sign
+		double binades = Math.getExponent(FastMath.MAX_REDUCED_ARGUMENT) + 1074;
+		for (int i = 0; i < points; i++) {
+			double angle = Math.pow(2, -1074 + binades * i / points);
+			angles[count++] = i % 2 == 0 ? angle : -angle;
+		}
+
+		// the nearest doubles to multiples of pi/2, and the doubles on either side of them
+		double multiples = FastMath.MAX_REDUCED_ARGUMENT / (Math.PI / 2);
+		for (int i = 0; i < points; i += 3) {
+			double multiple = Math.rint(Math.pow(multiples, (double) i / points));
+			double angle = multiple * (Math.PI / 2);
+			angles[count++] = angle;
+			if (i + 1 < points) {
+				angles[count++] = Math.nextDown(angle);
+			}
+			if (i + 2 < points) {
+				angles[count++] = -Math.nextUp(angle);
+			}
+		}
+
+		System.arraycopy(PEAKS, 0, angles, count, PEAKS.length);
+		count += PEAKS.length;
+		System.arraycopy(SPECIAL_VALUES, 0, angles, count, SPECIAL_VALUES.length);
+		return angles;
+	}
+
+	/**
+	 * @param points The number of bases.
+	 * @return Positive and negative bases over every binade, and special values.
+	 */
+	static double[] bases(int points) {
+		double[] bases = new double[points + SPECIAL_VALUES.length];
+		double binades = Double.MAX_EXPONENT + 1074;
+		for (int i = 0; i < points; i++) {
+			double base = Math.pow(2, -1074 + binades * i / points);
+			bases[i] = i % 4 == 3 ? -base : base;
+		}
+		System.arraycopy(SPECIAL_VALUES, 0, bases, points, SPECIAL_VALUES.length);
+		return bases;
+	}
+
+	/**
+	 * @return Every integer and half-integer exponent a little beyond
+	 * FastMath.MAX_INTEGER_EXPONENT, random exponents, and special values.
+	 */
+	static double[] exponents() {
+		int limit = FastMath.MAX_INTEGER_EXPONENT + 2;
+		double[] exponents = new double[4 * limit + 1 + 64 + SPECIAL_VALUES.length];
+		int count = 0;
+		for (int i = -2 * limit; i <= 2 * limit; i++) {
+			exponents[count++] = i / 2.0;
+		}
+		Random random = new Random(42);
+		for (int i = 0; i < 64; i++) {
+			exponents[count++] = (random.nextDouble() - 0.5) * 20;
+		}
+		System.arraycopy(SPECIAL_VALUES, 0, exponents, count, SPECIAL_VALUES.length);
+		return exponents;
+	}
+
+	/**
+	 * @param fast   An approximation.
+	 * @param strict The function it approximates.
+	 * @param inputs The inputs to compare them at.
+	 * @return The errors of the approximation at the inputs.
+	 */
+	static Sweep sweep(DoubleUnaryOperator fast, DoubleUnaryOperator strict, double[] inputs) {
+		Sweep sweep = new Sweep(false);
+		for (double x : inputs) {
+			sweep.add(fast.applyAsDouble(x), strict.applyAsDouble(x), x, 0);
+		}
+		return sweep;
+	}
+
+	/**
+	 * @param fast      An approximation.
+	 * @param strict    The function it approximates.
+	 * @param bases     The first arguments to compare them at.
+	 * @param exponents The second arguments, each compared with every first argument.
+	 * @return The errors of the approximation at the arguments.
+	 */
+	static Sweep sweep(DoubleBinaryOperator fast, DoubleBinaryOperator strict, double[] bases,
+	                   double[] exponents) {
+		Sweep sweep = new Sweep(true);
+		for (double y : exponents) {
+			for (double x : bases) {
+				sweep.add(fast.applyAsDouble(x, y), strict.applyAsDouble(x, y), x, y);
+			}
+		}
+		return sweep;
+	}
+
+	/**
+	 * The relative errors of an approximation over a sweep of inputs.
+	 */
+	static final class Sweep {
+
+		final boolean binary;
+		long count;
+		double maxError;
+		double totalError;
+		double worstX;
+		double worstY;
+
+		/**
+		 * @param binary True if the inputs are pairs of arguments, false otherwise.
+		 */
+		Sweep(boolean binary) {
+			this.binary = binary;
+		}
+
+		/**
+		 * @param fast   The approximate result at an input.
+		 * @param strict The strict result.
+		 * @param x      The input, or its first argument.
+		 * @param y      The second argument of the input, if it has one.
+		 */
+		void add(double fast, double strict, double x, double y) {
+			double error = relativeError(fast, strict);
+			count++;
+			totalError += error;
+			if (error > maxError) {
+				maxError = error;
+				worstX = x;
+				worstY = y;
+			}
+		}
+
+		/**
+		 * @param fast   An approximate result.
+		 * @param strict The strict result.
+		 * @return The relative error of the approximate result, which is infinite unless the
+		 * results are identical when the strict one is zero, infinite, or NaN.
+		 */
+		static double relativeError(double fast, double strict) {
+			if (Double.doubleToLongBits(fast) == Double.doubleToLongBits(strict)) {
+				return 0;
+			} else if (strict == 0 || Double.isInfinite(strict) || Double.isNaN(strict)) {
+				return Double.POSITIVE_INFINITY;
+			}
+			return Math.abs((fast - strict) / strict);
+		}
+	}
+}
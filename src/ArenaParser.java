@@ -0,0 +1,591 @@
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Parses math expressions into a syntax tree stored in parallel primitive arrays, rather than
+ * one TreeNode object per token.
+ *
+ * Each node is an index into the arrays: its type is the ordinal of its TokenType, its children
+ * and parent are node indices or -1 for none, and its value is the number of a NUMBER node, the
+ * binding slot of a VARIABLE node, or the registry id of a FUNCTION node. The tree is built with
+ * the same algorithm as Parser.buildSyntaxTree and evaluates to the same results.
+ *
+ * A parser owns its arena and reuses it for every input, growing it only when an input has more
+ * tokens than any before it, so parsing and evaluating in a loop allocates almost nothing.
+ * Evaluation walks the tree through the parent links instead of recursing, so even very deep
+ * trees cannot overflow the stack. A parser is not thread-safe; use one per thread.
+ */
+public class ArenaParser {
+
+	private static final TokenType[] TYPES = TokenType.values();
+
+	private static final int NUMBER = TokenType.NUMBER.ordinal();
+	private static final int VARIABLE = TokenType.VARIABLE.ordinal();
+	private static final int OPEN_PAREN = TokenType.OPEN_PAREN.ordinal();
+	private static final int CLOSE_PAREN = TokenType.CLOSE_PAREN.ordinal();
+	private static final int COMMA = TokenType.COMMA.ordinal();
+	private static final int NEGATION = TokenType.NEGATION.ordinal();
+	private static final int ADD = TokenType.ADD.ordinal();
+	private static final int SUBTRACT = TokenType.SUBTRACT.ordinal();
+	private static final int MULTIPLY = TokenType.MULTIPLY.ordinal();
+	private static final int DIVIDE = TokenType.DIVIDE.ordinal();
+	private static final int EXPONENT = TokenType.EXPONENT.ordinal();
+	private static final int SIN = TokenType.SIN.ordinal();
+	private static final int COS = TokenType.COS.ordinal();
+	private static final int TAN = TokenType.TAN.ordinal();
+	private static final int FUNCTION = TokenType.FUNCTION.ordinal();
+
+	private static final int NONE = -1;
+	private static final int SENTINEL = 0;
+
+	private final CursorLexer lexer = new CursorLexer();
+
+	private int[] types = new int[16];
+	private int[] lefts = new int[16];
+	private int[] rights = new int[16];
+	private int[] parents = new int[16];
+	private double[] values = new double[16];
+	private int[] tokens = new int[16];
+	private int size;
+	private int root = NONE;
+
+	// the operands of the nodes being evaluated, up to two per node
+	private double[] stack = new double[2 * 16 + 2];
+
+	/**
+	 * Parses the given input, replacing the previous tree.
+	 *
+	 * @param input A string representing a mathematical expression.
+	 * @throws IOException If an invalid character is encountered, the parentheses are unbalanced,
+	 *                     there are no tokens, or a function or comma is misused.
+	 */
+	public void parse(CharSequence input) throws IOException {
+		ParseResult result = tryParse(input);
+		if (!result.isValid()) {
+			throw new SyntaxException(result.getError(), result.getMessage());
+		}
+	}
+
+	/**
+	 * Parses the given input, replacing the previous tree, and returns the first syntax error
+	 * instead of throwing it. Validating many inputs this way allocates nothing for the valid
+	 * ones and captures no stack traces for the invalid ones.
+	 *
+	 * @param input A string representing a mathematical expression.
+	 * @return ParseResult.VALID, or the first syntax error. The tree can only be evaluated if the
+	 * input is valid.
+	 */
+	public ParseResult tryParse(CharSequence input) {
+		reset();
+		ParseResult lexed = lexer.tryLex(input);
+		if (!lexed.isValid()) {
+			return lexed;
+		}
+		ensureCapacity(lexer.size() + 1);
+
+		// init the tree with the sentinel, which has the lowest precedence
+		int currentNode = newNode(OPEN_PAREN, 0, NONE, -1);
+
+		int function = NONE;
+		for (int i = 0; i < lexer.size(); i++) {
+			int type = lexer.getType(i).ordinal();
+			int precedence = Token.precedenceMap[type];
+
+			// a function must be followed by the parentheses of its arguments
+			if (function != NONE && type != OPEN_PAREN) {
+				return unclosedFunction(input, function);
+			}
+
+			// traverse up the tree if the token is not an open parentheses
+			int oldRight = NONE;
+			if (type == EXPONENT || type == CLOSE_PAREN) {
+				// the currentNode to the highest node with a precedence greater than the token
+				while (currentNode != NONE && Token.precedenceMap[types[currentNode]] > precedence) {
+					oldRight = currentNode;
+					currentNode = parents[currentNode];
+				}
+			} else if (type != OPEN_PAREN && type != NEGATION) {
+				// the currentNode to the highest node with a precedence greater than or equal to the
+				// token
+				while (currentNode != NONE && Token.precedenceMap[types[currentNode]] >= precedence) {
+					oldRight = currentNode;
+					currentNode = parents[currentNode];
+				}
+			}
+
+			if (type == CLOSE_PAREN) {
+				int paren = currentNode;
+				currentNode = removeOpenParen(currentNode);
+				if (currentNode == NONE) {
+					return error(ParseResult.Error.NO_OPENING_PARENTHESES, input, i,
+							  "Invalid Syntax: no opening parentheses found.");
+				}
+				ParseResult invalid = checkArguments(input, paren);
+				if (invalid != null) {
+					return invalid;
+				}
+			} else {
+				double value = 0;
+				if (type == NUMBER) {
+					value = lexer.getValue(i);
+				} else if (type == VARIABLE) {
+					value = lexer.getSlot(i);
+				} else if (type == FUNCTION) {
+					value = lexer.getFunctionId(i);
+				}
+				int node = newNode(type, value, currentNode, i);
+				currentNode = insertNode(node, currentNode, oldRight);
+			}
+			function = isCall(type) ? currentNode : NONE;
+		}
+
+		if (function != NONE) {
+			return unclosedFunction(input, function);
+		}
+
+		int top = rights[SENTINEL];
+		if (top == NONE) {
+			return new ParseResult(ParseResult.Error.EMPTY_EXPRESSION, input.length(), "",
+					  "Invalid Syntax: empty expression.");
+		}
+		ParseResult invalid = checkOpenParens(input, currentNode);
+		if (invalid != null) {
+			return invalid;
+		}
+		parents[top] = NONE;
+
+		// a tree cannot be deeper than its number of tokens
+		int maxDepth = Parser.getMaxDepth();
+		if (lexer.size() > maxDepth) {
+			int tooDeep = findNodeBelow(top, maxDepth);
+			if (tooDeep != NONE) {
+				String message = "Invalid Syntax: expression is nested deeper than " + maxDepth +
+						  " levels.";
+				return error(ParseResult.Error.TOO_DEEP, input, tokens[tooDeep], message);
+			}
+		}
+		root = top;
+		return ParseResult.VALID;
+	}
+
+	/**
+	 * @param error   The kind of error.
+	 * @param input   The input being parsed.
+	 * @param token   The index of the offending token.
+	 * @param message The message of the error.
+	 * @return The error at the token.
+	 */
+	private ParseResult error(ParseResult.Error error, CharSequence input, int token,
+	                          String message) {
+		int start = lexer.getStart(token);
+		String text = input.subSequence(start, lexer.getEnd(token)).toString();
+		return new ParseResult(error, start, text, message);
+	}
+
+	/**
+	 * Checks the contents of parentheses that were just closed, like Parser.removeOpenParen.
+	 *
+	 * @param input The input being parsed.
+	 * @param paren The open parentheses that were closed.
+	 * @return The error if the parentheses hold the wrong number of arguments for a function or
+	 * commas without one, otherwise null.
+	 */
+	private ParseResult checkArguments(CharSequence input, int paren) {
+		int parent = parents[paren];
+		if (isCall(types[parent])) {
+			MathFunction function = getCalledFunction(parent);
+			int count = countArguments(rights[paren]);
+			if (count != function.getArity()) {
+				return error(ParseResult.Error.WRONG_ARGUMENT_COUNT, input, tokens[parent],
+						  Parser.wrongArgumentCount(function, count));
+			}
+		} else if (isComma(rights[paren])) {
+			return misplacedComma(input, rights[paren]);
+		}
+		return null;
+	}
+
+	/**
+	 * Checks the parentheses that are still open once every token has been added, like
+	 * Parser.checkOpenParens.
+	 *
+	 * @param input       The input being parsed.
+	 * @param currentNode The current node in the tree.
+	 * @return The error if a function's parentheses or parentheses with commas are unclosed, or
+	 * the whole expression has commas, otherwise null.
+	 */
+	private ParseResult checkOpenParens(CharSequence input, int currentNode) {
+		int node = currentNode;
+		while (parents[node] != NONE) {
+			if (types[node] == OPEN_PAREN) {
+				if (isCall(types[parents[node]])) {
+					return unclosedFunction(input, parents[node]);
+				} else if (isComma(rights[node])) {
+					return misplacedComma(input, rights[node]);
+				}
+			}
+			node = parents[node];
+		}
+
+		// the sentinel
+		return isComma(rights[node]) ? misplacedComma(input, rights[node]) : null;
+	}
+
+	/**
+	 * @param arguments The contents of the parentheses of a function call, or NONE.
+	 * @return The number of arguments: one more than the number of commas down the left of the
+	 * contents, or zero if there are no contents.
+	 */
+	private int countArguments(int arguments) {
+		if (arguments == NONE) {
+			return 0;
+		}
+		int count = 1;
+		for (int node = arguments; isComma(node); node = lefts[node]) {
+			count++;
+		}
+		return count;
+	}
+
+	private boolean isComma(int node) {
+		return node != NONE && types[node] == COMMA;
+	}
+
+	/**
+	 * @param input  The input being parsed.
+	 * @param commas The top of a chain of commas down the left.
+	 * @return The error at the first comma of the chain.
+	 */
+	private ParseResult misplacedComma(CharSequence input, int commas) {
+		int first = commas;
+		while (isComma(lefts[first])) {
+			first = lefts[first];
+		}
+		return error(ParseResult.Error.MISPLACED_COMMA, input, tokens[first],
+				  "Invalid Syntax: comma outside the arguments of a function.");
+	}
+
+	private ParseResult unclosedFunction(CharSequence input, int function) {
+		return error(ParseResult.Error.UNCLOSED_FUNCTION, input, tokens[function],
+				  Parser.unclosedFunction(getCalledFunction(function)));
+	}
+
+	/**
+	 * @param type The ordinal of the type of a token.
+	 * @return True if the token calls a function, like Parser.isCall.
+	 */
+	private static boolean isCall(int type) {
+		return type == FUNCTION || type == SIN || type == COS || type == TAN;
+	}
+
+	/**
+	 * @param node A node that calls a function: a FUNCTION node, or sin, cos, or tan.
+	 * @return The function the node calls.
+	 */
+	private MathFunction getCalledFunction(int node) {
+		return types[node] == FUNCTION ? getFunction(node) :
+				  Parser.getFunction(Token.valueOf(TYPES[types[node]]));
+	}
+
+	/**
+	 * Walks the tree through the parent links, without recursing, looking for a node deeper than
+	 * the given depth.
+	 *
+	 * @param top      The root of the tree.
+	 * @param maxDepth The maximum depth.
+	 * @return The first node found below the maximum depth, or NONE if there is none.
+	 */
+	private int findNodeBelow(int top, int maxDepth) {
+		int node = top;
+		int from = NONE;
+		int depth = 1;
+		while (true) {
+			if (from == NONE && depth > maxDepth) {
+				return node;
+			}
+			if (from == NONE && lefts[node] != NONE) {
+				node = lefts[node];
+				depth++;
+				continue;
+			}
+			if ((from == NONE || from != rights[node]) && rights[node] != NONE) {
+				node = rights[node];
+				from = NONE;
+				depth++;
+				continue;
+			}
+
+			if (node == top) {
+				return NONE;
+			}
+			from = node;
+			node = parents[node];
+			depth--;
+		}
+	}
+
+	/**
+	 * @param currentNode The current node in the tree.
+	 * @return The new current node i.e. the parent of the open parentheses that was removed, or
+	 * NONE if an opening parentheses cannot be found.
+	 */
+	private int removeOpenParen(int currentNode) {
+		// the only open parentheses without a parent is the sentinel, which is never closed
+		if (currentNode == NONE || types[currentNode] != OPEN_PAREN ||
+				  parents[currentNode] == NONE) {
+			return NONE;
+		}
+
+		int parent = parents[currentNode];
+		setRight(parent, rights[currentNode]);
+		return parent;
+	}
+
+	/**
+	 * Inserts a node as the right child of the current node if it exists. The right child of the
+	 * current node becomes the left child of the new node.
+	 *
+	 * @param newNode     The node to insert.
+	 * @param currentNode The current node in the tree, or NONE.
+	 * @param oldRight    The old right child of the current node.
+	 * @return The new current node i.e. the new node.
+	 */
+	private int insertNode(int newNode, int currentNode, int oldRight) {
+		if (currentNode != NONE) {
+			setLeft(newNode, rights[currentNode]);
+			setRight(currentNode, newNode);
+		} else {
+			setLeft(newNode, oldRight);
+		}
+		return newNode;
+	}
+
+	private void setLeft(int node, int left) {
+		lefts[node] = left;
+		if (left != NONE) {
+			parents[left] = node;
+		}
+	}
+
+	private void setRight(int node, int right) {
+		rights[node] = right;
+		if (right != NONE) {
+			parents[right] = node;
+		}
+	}
+
+	/**
+	 * @param type   The ordinal of the node's token type.
+	 * @param value  The node's number or binding slot, otherwise 0.
+	 * @param parent The parent of the node, or NONE.
+	 * @param token  The index of the node's token, or -1 for the sentinel.
+	 * @return The index of the new node, which has no children.
+	 */
+	private int newNode(int type, double value, int parent, int token) {
+		types[size] = type;
+		tokens[size] = token;
+		values[size] = value;
+		lefts[size] = NONE;
+		rights[size] = NONE;
+		parents[size] = parent;
+		return size++;
+	}
+
+	/**
+	 * Grows the arena to hold at least the given number of nodes. Every node comes from a token
+	 * or is the sentinel, so the arena never grows while a tree is being built.
+	 *
+	 * @param capacity The number of nodes needed.
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity <= types.length) {
+			return;
+		}
+		capacity = Math.max(capacity, types.length * 2);
+		types = new int[capacity];
+		lefts = new int[capacity];
+		rights = new int[capacity];
+		parents = new int[capacity];
+		values = new double[capacity];
+		tokens = new int[capacity];
+		stack = new double[2 * capacity + 2];
+	}
+
+	/**
+	 * Evaluates the current tree.
+	 *
+	 * @param bindings The values of the variables, indexed by binding slot.
+	 * @return The result of the expression.
+	 * @throws IllegalStateException    If nothing has been parsed since the last reset.
+	 * @throws IllegalArgumentException If there are fewer bindings than variables.
+	 */
+	public double evaluate(double... bindings) {
+		if (root == NONE) {
+			throw new IllegalStateException("No expression has been parsed");
+		}
+		if (bindings.length < lexer.getVariables().size()) {
+			throw new IllegalArgumentException("Expected " + lexer.getVariables().size() +
+					  " bindings but got " + bindings.length);
+		}
+
+		// each finished node pushes its result, so a node's operands are the top of the stack
+		// when it is computed; missing children push 0. A comma leaves both its operands, so a
+		// function finds its arguments on the top of the stack, above its unread left operand.
+		// Both branches of an if are computed, and the function selects one.
+		Functions.Table functions = Functions.table();
+		double[] stack = this.stack;
+		int top = 0;
+		int node = root;
+		int from = NONE;
+		while (true) {
+			if (from == NONE && lefts[node] != NONE && types[node] != FUNCTION) {
+				node = lefts[node];
+				continue;
+			}
+			if (from == NONE) {
+				stack[top++] = 0;
+			}
+			if (from != rights[node] || from == NONE) {
+				if (rights[node] != NONE) {
+					node = rights[node];
+					from = NONE;
+					continue;
+				}
+				stack[top++] = 0;
+			}
+
+			if (types[node] == FUNCTION) {
+				MathFunction function = functions.get((int) values[node]);
+				// a function of no arguments has the 0 of its missing right child
+				int count = Math.max(function.getArity(), 1);
+				top -= count;
+				stack[top - 1] = function.apply(stack, top);
+			} else if (types[node] != COMMA) {
+				top--;
+				stack[top - 1] = compute(node, stack[top - 1], stack[top], bindings);
+			}
+			if (node == root) {
+				return stack[0];
+			}
+			from = node;
+			node = parents[node];
+		}
+	}
+
+	/**
+	 * @param node     A node of the tree.
+	 * @param leftVal  The result of the node's left child.
+	 * @param rightVal The result of the node's right child.
+	 * @param bindings The values of the variables, indexed by binding slot.
+	 * @return The result of the node.
+	 */
+	private double compute(int node, double leftVal, double rightVal, double[] bindings) {
+		int type = types[node];
+		if (type == NUMBER) {
+			return values[node];
+		} else if (type == VARIABLE) {
+			return bindings[(int) values[node]];
+		} else if (type == ADD) {
+			return leftVal + rightVal;
+		} else if (type == SUBTRACT) {
+			return leftVal - rightVal;
+		} else if (type == MULTIPLY) {
+			return leftVal * rightVal;
+		} else if (type == DIVIDE) {
+			return leftVal / rightVal;
+		} else if (type == EXPONENT) {
+			return Math.pow(leftVal, rightVal);
+		} else if (type == NEGATION) {
+			return -1 * rightVal;
+		} else if (type == SIN) {
+			return Math.sin(rightVal);
+		} else if (type == COS) {
+			return Math.cos(rightVal);
+		} else if (type == TAN) {
+			return Math.tan(rightVal);
+		} else if (Parser.isComparison(TYPES[type])) {
+			return Parser.compare(TYPES[type], leftVal, rightVal) ? 1 : 0;
+		} else {
+			return 0;
+		}
+	}
+
+	/**
+	 * Discards the current tree, keeping the arena for the next input.
+	 */
+	public void reset() {
+		size = 0;
+		root = NONE;
+	}
+
+	/**
+	 * @return The names of the variables in the current tree, indexed by binding slot. The list is
+	 * reused by the next call to parse.
+	 */
+	public List<String> getVariables() {
+		return lexer.getVariables();
+	}
+
+	/**
+	 * @return The root node of the current tree, or -1 if nothing has been parsed.
+	 */
+	public int getRoot() {
+		return root;
+	}
+
+	/**
+	 * @param node A node of the current tree.
+	 * @return The type of the node's token.
+	 */
+	public TokenType getType(int node) {
+		return TYPES[types[node]];
+	}
+
+	/**
+	 * @param node A node of the current tree.
+	 * @return The left child of the node, or -1 if it has none.
+	 */
+	public int getLeft(int node) {
+		return lefts[node];
+	}
+
+	/**
+	 * @param node A node of the current tree.
+	 * @return The right child of the node, or -1 if it has none.
+	 */
+	public int getRight(int node) {
+		return rights[node];
+	}
+
+	/**
+	 * @param node A node of the current tree.
+	 * @return The parent of the node, or -1 for the root.
+	 */
+	public int getParent(int node) {
+		return parents[node];
+	}
+
+	/**
+	 * @param node A NUMBER node of the current tree.
+	 * @return The value of the number.
+	 */
+	public double getValue(int node) {
+		return values[node];
+	}
+
+	/**
+	 * @param node A VARIABLE node of the current tree.
+	 * @return The binding slot of the variable.
+	 */
+	public int getSlot(int node) {
+		return (int) values[node];
+	}
+
+	/**
+	 * @param node A FUNCTION node of the current tree.
+	 * @return The function the node calls.
+	 */
+	public MathFunction getFunction(int node) {
+		return Functions.token((int) values[node]).getFunction();
+	}
+}
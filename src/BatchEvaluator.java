@@ -0,0 +1,526 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates one math expression over many rows of bindings at once.
+ *
+ * The bindings are given as columns, one double[] per variable, and the results are written to
+ * an output column. Rather than evaluating the expression row by row, each operation of its
+ * PostfixProgram is applied to a whole chunk of rows before the next one, so the dispatch on the
+ * opcode is paid once per chunk and the arithmetic runs in tight loops over arrays. Since the
+ * rows of a chunk can take different branches of an if, both branches are evaluated for the
+ * whole chunk and each row selects its own.
+ *
+ * The loops for +, -, *, /, negation, comparisons, min, max, and if are Lanes. On a JVM started
+ * with --add-modules jdk.incubator.vector they are VectorLanes, which is compiled separately
+ * against the Vector API and computes as many rows at once as the widest SIMD registers of the
+ * CPU hold. Otherwise they are plain loops, which HotSpot may still compile to SIMD instructions.
+ * Both give identical results. The loops for ^, sin, cos, and tan call Math for each element,
+ * and the loops for other functions call the function for each element.
+ *
+ * Large batches can be evaluated in parallel on a ForkJoinPool. The rows are split in halves
+ * until each piece is small enough, and idle workers steal pieces from busy ones. Each worker
+ * thread keeps its own operand stack of chunks for each batch evaluator.
+ *
+ * Batch evaluators can be shared between threads.
+ */
+public final class BatchEvaluator {
+
+	/**
+	 * The number of rows evaluated at a time, small enough that the operand stack of chunks
+	 * stays in cache.
+	 */
+	static final int CHUNK_SIZE = 1024;
+
+	/**
+	 * The default number of rows below which evaluateParallel evaluates on the calling thread.
+	 */
+	public static final int DEFAULT_PARALLEL_THRESHOLD = 64 * CHUNK_SIZE;
+
+	private static final Lanes LANES = loadLanes();
+
+	private final int[] code;
+	private final double[] constants;
+	private final MathFunction[] functions;
+	private final int stackSize;
+	private final int variableCount;
+
+	// the operand stack of each thread that evaluates in parallel
+	private final ThreadLocal<double[][]> stacks;
+
+	/**
+	 * @param program The program to evaluate over columns.
+	 */
+	private BatchEvaluator(PostfixProgram program) {
+		this.code = program.getCode();
+		this.constants = program.getConstants();
+		this.functions = program.getFunctions();
+		this.stackSize = program.getStackSize();
+		this.variableCount = program.getVariableCount();
+		this.stacks = ThreadLocal.withInitial(this::newStack);
+	}
+
+	/**
+	 * @param expression The expression to evaluate over columns.
+	 * @return A batch evaluator for the expression.
+	 */
+	public static BatchEvaluator compile(Expression expression) {
+		return new BatchEvaluator(PostfixProgram.compile(expression, false));
+	}
+
+	/**
+	 * Evaluates the expression for every row. The number of rows is the length of output.
+	 *
+	 * @param columns The values of the variables, indexed by binding slot and then by row.
+	 * @param output  The array the result of each row is written to.
+	 * @throws IllegalArgumentException If there are too few columns or a column is too short.
+	 */
+	public void evaluate(double[][] columns, double[] output) {
+		evaluate(columns, output, 0, output.length);
+	}
+
+	/**
+	 * Evaluates the expression for the rows from start to end.
+	 *
+	 * @param columns The values of the variables, indexed by binding slot and then by row.
+	 * @param output  The array the result of each row is written to.
+	 * @param start   The first row to evaluate.
+	 * @param end     One past the last row to evaluate.
+	 * @throws IllegalArgumentException If there are too few columns or a column is too short.
+	 */
+	public void evaluate(double[][] columns, double[] output, int start, int end) {
+		checkColumns(columns, end);
+		evaluate(columns, output, start, end, newStack());
+	}
+
+	/**
+	 * Evaluates the expression for every row, in parallel on the common ForkJoinPool if there
+	 * are at least DEFAULT_PARALLEL_THRESHOLD rows.
+	 *
+	 * @param columns The values of the variables, indexed by binding slot and then by row.
+	 * @param output  The array the result of each row is written to.
+	 * @throws IllegalArgumentException If there are too few columns or a column is too short.
+	 */
+	public void evaluateParallel(double[][] columns, double[] output) {
+		evaluateParallel(columns, output, ForkJoinPool.commonPool(), DEFAULT_PARALLEL_THRESHOLD);
+	}
+
+	/**
+	 * Evaluates the expression for every row, in parallel on the given pool if there are enough
+	 * rows to be worth it.
+	 *
+	 * @param columns   The values of the variables, indexed by binding slot and then by row.
+	 * @param output    The array the result of each row is written to.
+	 * @param pool      The pool to evaluate on.
+	 * @param threshold The number of rows below which the rows are evaluated on the calling
+	 *                  thread.
+	 * @throws IllegalArgumentException If there are too few columns or a column is too short.
+	 */
+	public void evaluateParallel(double[][] columns, double[] output, ForkJoinPool pool,
+	                             int threshold) {
+		checkColumns(columns, output.length);
+		if (output.length < threshold || pool.getParallelism() == 1) {
+			evaluate(columns, output, 0, output.length, stacks.get());
+			return;
+		}
+
+		// enough pieces for every worker to steal several, but never less than a chunk each
+		int pieceSize = output.length / (pool.getParallelism() * 8);
+		pieceSize = Math.max(CHUNK_SIZE, pieceSize - pieceSize % CHUNK_SIZE);
+		pool.invoke(new Piece(columns, output, 0, output.length, pieceSize));
+	}
+
+	/**
+	 * @param columns The values of the variables, indexed by binding slot and then by row.
+	 * @param rows    The number of rows that will be read.
+	 * @throws IllegalArgumentException If there are too few columns or a column is too short.
+	 */
+	void checkColumns(double[][] columns, int rows) {
+		if (columns.length < variableCount) {
+			throw new IllegalArgumentException("Expected " + variableCount +
+					  " columns but got " + columns.length);
+		}
+		for (int slot = 0; slot < variableCount; slot++) {
+			if (columns[slot].length < rows) {
+				throw new IllegalArgumentException("Column " + slot + " has " +
+						  columns[slot].length + " rows but " + rows + " are needed");
+			}
+		}
+	}
+
+	/**
+	 * @return A new operand stack of chunks large enough to evaluate this expression with.
+	 */
+	double[][] newStack() {
+		return new double[Math.max(stackSize, 1)][CHUNK_SIZE];
+	}
+
+	/**
+	 * Evaluates the expression for the rows from start to end on the given stack of chunks,
+	 * allocating nothing. The columns must already have been checked.
+	 *
+	 * @param columns The values of the variables, indexed by binding slot and then by row.
+	 * @param output  The array the result of each row is written to.
+	 * @param start   The first row to evaluate.
+	 * @param end     One past the last row to evaluate.
+	 * @param stack   The operand stack, from newStack. Its contents are overwritten.
+	 */
+	void evaluate(double[][] columns, double[] output, int start, int end, double[][] stack) {
+		for (int row = start; row < end; row += CHUNK_SIZE) {
+			int length = Math.min(CHUNK_SIZE, end - row);
+			evaluateChunk(columns, row, length, stack);
+			System.arraycopy(stack[0], 0, output, row, length);
+		}
+	}
+
+	/**
+	 * Runs the program once over a chunk of rows, leaving the results in stack[0].
+	 *
+	 * @param columns The values of the variables, indexed by binding slot and then by row.
+	 * @param row     The first row of the chunk.
+	 * @param length  The number of rows in the chunk.
+	 * @param stack   The operand stack of chunks.
+	 */
+	private void evaluateChunk(double[][] columns, int row, int length, double[][] stack) {
+		int top = -1;
+		int pc = 0;
+		while (pc < code.length) {
+			switch (code[pc++]) {
+				case PostfixProgram.CONST:
+					Arrays.fill(stack[++top], 0, length, constants[code[pc++]]);
+					break;
+				case PostfixProgram.LOAD:
+					System.arraycopy(columns[code[pc++]], row, stack[++top], 0, length);
+					break;
+				case PostfixProgram.ADD:
+					top--;
+					LANES.add(stack[top], stack[top + 1], length);
+					break;
+				case PostfixProgram.SUBTRACT:
+					top--;
+					LANES.subtract(stack[top], stack[top + 1], length);
+					break;
+				case PostfixProgram.MULTIPLY:
+					top--;
+					LANES.multiply(stack[top], stack[top + 1], length);
+					break;
+				case PostfixProgram.DIVIDE:
+					top--;
+					LANES.divide(stack[top], stack[top + 1], length);
+					break;
+				case PostfixProgram.EXPONENT: {
+					double[] a = stack[--top];
+					double[] b = stack[top + 1];
+					for (int i = 0; i < length; i++) {
+						a[i] = Math.pow(a[i], b[i]);
+					}
+					break;
+				}
+				case PostfixProgram.NEGATE:
+					LANES.negate(stack[top], length);
+					break;
+				case PostfixProgram.SIN: {
+					double[] a = stack[top];
+					for (int i = 0; i < length; i++) {
+						a[i] = Math.sin(a[i]);
+					}
+					break;
+				}
+				case PostfixProgram.COS: {
+					double[] a = stack[top];
+					for (int i = 0; i < length; i++) {
+						a[i] = Math.cos(a[i]);
+					}
+					break;
+				}
+				case PostfixProgram.TAN: {
+					double[] a = stack[top];
+					for (int i = 0; i < length; i++) {
+						a[i] = Math.tan(a[i]);
+					}
+					break;
+				}
+				case PostfixProgram.LESS:
+				case PostfixProgram.LESS_EQUAL:
+				case PostfixProgram.GREATER:
+				case PostfixProgram.GREATER_EQUAL:
+				case PostfixProgram.EQUAL:
+				case PostfixProgram.NOT_EQUAL:
+					top--;
+					LANES.compare(code[pc - 1], stack[top], stack[top + 1], length);
+					break;
+				case PostfixProgram.MIN:
+					top--;
+					LANES.min(stack[top], stack[top + 1], length);
+					break;
+				case PostfixProgram.MAX:
+					top--;
+					LANES.max(stack[top], stack[top + 1], length);
+					break;
+				case PostfixProgram.SELECT:
+					top -= 2;
+					LANES.select(stack[top], stack[top + 1], stack[top + 2], length);
+					break;
+				case PostfixProgram.CALL: {
+					MathFunction function = functions[code[pc++]];
+					top = top - function.getArity() + 1;
+					call(function, stack, top, length);
+					break;
+				}
+				default:
+					throw new IllegalStateException("Unknown opcode: " + code[pc - 1]);
+			}
+		}
+	}
+
+	/**
+	 * @return The vector lanes if the JVM has the Vector API and they were built, otherwise the
+	 * plain loops.
+	 */
+	private static Lanes loadLanes() {
+		try {
+			Class.forName("jdk.incubator.vector.DoubleVector");
+			return (Lanes) Class.forName("VectorLanes").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return new ScalarLanes();
+		}
+	}
+
+	/**
+	 * @return True if the loops run on the Vector API, false if they are plain loops.
+	 */
+	static boolean isVectorized() {
+		return !(LANES instanceof ScalarLanes);
+	}
+
+	/**
+	 * Calls a function for every row of a chunk, replacing its arguments with the results.
+	 *
+	 * @param function The function to call.
+	 * @param stack    The operand stack of chunks.
+	 * @param first    The index in the stack of the chunk of the first argument, where the
+	 *                 results are written.
+	 * @param length   The number of rows in the chunk.
+	 */
+	private static void call(MathFunction function, double[][] stack, int first, int length) {
+		double[] a = stack[first];
+		int arity = function.getArity();
+		if (arity == 0) {
+			for (int i = 0; i < length; i++) {
+				a[i] = function.apply();
+			}
+		} else if (arity == 1) {
+			for (int i = 0; i < length; i++) {
+				a[i] = function.apply(a[i]);
+			}
+		} else if (arity == 2) {
+			double[] b = stack[first + 1];
+			for (int i = 0; i < length; i++) {
+				a[i] = function.apply(a[i], b[i]);
+			}
+		} else {
+			double[] args = new double[arity];
+			for (int i = 0; i < length; i++) {
+				for (int j = 0; j < arity; j++) {
+					args[j] = stack[first + j][i];
+				}
+				a[i] = function.apply(args, 0);
+			}
+		}
+	}
+
+	/**
+	 * The loops over chunks that can compute several rows at once. Each replaces its first chunk
+	 * with the results, row by row.
+	 */
+	interface Lanes {
+
+		/**
+		 * @param a      The chunk of left operands, where the results are written.
+		 * @param b      The chunk of right operands.
+		 * @param length The number of rows in the chunks.
+		 */
+		void add(double[] a, double[] b, int length);
+
+		/**
+		 * @param a      The chunk of left operands, where the results are written.
+		 * @param b      The chunk of right operands.
+		 * @param length The number of rows in the chunks.
+		 */
+		void subtract(double[] a, double[] b, int length);
+
+		/**
+		 * @param a      The chunk of left operands, where the results are written.
+		 * @param b      The chunk of right operands.
+		 * @param length The number of rows in the chunks.
+		 */
+		void multiply(double[] a, double[] b, int length);
+
+		/**
+		 * @param a      The chunk of left operands, where the results are written.
+		 * @param b      The chunk of right operands.
+		 * @param length The number of rows in the chunks.
+		 */
+		void divide(double[] a, double[] b, int length);
+
+		/**
+		 * @param a      The chunk of operands, where the results are written.
+		 * @param length The number of rows in the chunk.
+		 */
+		void negate(double[] a, int length);
+
+		/**
+		 * @param a      The chunk of first arguments, where the results are written.
+		 * @param b      The chunk of second arguments.
+		 * @param length The number of rows in the chunks.
+		 */
+		void min(double[] a, double[] b, int length);
+
+		/**
+		 * @param a      The chunk of first arguments, where the results are written.
+		 * @param b      The chunk of second arguments.
+		 * @param length The number of rows in the chunks.
+		 */
+		void max(double[] a, double[] b, int length);
+
+		/**
+		 * @param opcode The opcode of the comparison.
+		 * @param a      The chunk of left operands, where 1 or 0 is written.
+		 * @param b      The chunk of right operands.
+		 * @param length The number of rows in the chunks.
+		 */
+		void compare(int opcode, double[] a, double[] b, int length);
+
+		/**
+		 * @param a      The chunk of conditions, where the results are written.
+		 * @param b      The chunk of results where the condition is not 0.
+		 * @param c      The chunk of results where the condition is 0.
+		 * @param length The number of rows in the chunks.
+		 */
+		void select(double[] a, double[] b, double[] c, int length);
+	}
+
+	/**
+	 * The loops over chunks as plain loops.
+	 */
+	private static final class ScalarLanes implements Lanes {
+
+		public void add(double[] a, double[] b, int length) {
+			for (int i = 0; i < length; i++) {
+				a[i] = a[i] + b[i];
+			}
+		}
+
+		public void subtract(double[] a, double[] b, int length) {
+			for (int i = 0; i < length; i++) {
+				a[i] = a[i] - b[i];
+			}
+		}
+
+		public void multiply(double[] a, double[] b, int length) {
+			for (int i = 0; i < length; i++) {
+				a[i] = a[i] * b[i];
+			}
+		}
+
+		public void divide(double[] a, double[] b, int length) {
+			for (int i = 0; i < length; i++) {
+				a[i] = a[i] / b[i];
+			}
+		}
+
+		public void negate(double[] a, int length) {
+			for (int i = 0; i < length; i++) {
+				a[i] = -1 * a[i];
+			}
+		}
+
+		public void min(double[] a, double[] b, int length) {
+			for (int i = 0; i < length; i++) {
+				a[i] = Math.min(a[i], b[i]);
+			}
+		}
+
+		public void max(double[] a, double[] b, int length) {
+			for (int i = 0; i < length; i++) {
+				a[i] = Math.max(a[i], b[i]);
+			}
+		}
+
+		public void compare(int opcode, double[] a, double[] b, int length) {
+			if (opcode == PostfixProgram.LESS) {
+				for (int i = 0; i < length; i++) {
+					a[i] = a[i] < b[i] ? 1 : 0;
+				}
+			} else if (opcode == PostfixProgram.LESS_EQUAL) {
+				for (int i = 0; i < length; i++) {
+					a[i] = a[i] <= b[i] ? 1 : 0;
+				}
+			} else if (opcode == PostfixProgram.GREATER) {
+				for (int i = 0; i < length; i++) {
+					a[i] = a[i] > b[i] ? 1 : 0;
+				}
+			} else if (opcode == PostfixProgram.GREATER_EQUAL) {
+				for (int i = 0; i < length; i++) {
+					a[i] = a[i] >= b[i] ? 1 : 0;
+				}
+			} else if (opcode == PostfixProgram.EQUAL) {
+				for (int i = 0; i < length; i++) {
+					a[i] = a[i] == b[i] ? 1 : 0;
+				}
+			} else {
+				for (int i = 0; i < length; i++) {
+					a[i] = a[i] != b[i] ? 1 : 0;
+				}
+			}
+		}
+
+		public void select(double[] a, double[] b, double[] c, int length) {
+			for (int i = 0; i < length; i++) {
+				a[i] = a[i] != 0 ? b[i] : c[i];
+			}
+		}
+	}
+
+	/**
+	 * A range of rows to evaluate in parallel, split in halves until it is small enough.
+	 */
+	private class Piece extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final double[][] columns;
+		private final double[] output;
+		private final int start;
+		private final int end;
+		private final int pieceSize;
+
+		/**
+		 * @param columns   The values of the variables, indexed by binding slot and then by row.
+		 * @param output    The array the result of each row is written to.
+		 * @param start     The first row to evaluate.
+		 * @param end       One past the last row to evaluate.
+		 * @param pieceSize The most rows a piece evaluates without splitting.
+		 */
+		Piece(double[][] columns, double[] output, int start, int end, int pieceSize) {
+			this.columns = columns;
+			this.output = output;
+			this.start = start;
+			this.end = end;
+			this.pieceSize = pieceSize;
+		}
+
+		protected void compute() {
+			if (end - start <= pieceSize) {
+				evaluate(columns, output, start, end, stacks.get());
+				return;
+			}
+
+			// split on a chunk boundary so that only the last piece has a partial chunk
+			int half = (end - start) / 2;
+			int middle = start + Math.max(CHUNK_SIZE, half - half % CHUNK_SIZE);
+			invokeAll(new Piece(columns, output, start, middle, pieceSize),
+					  new Piece(columns, output, middle, end, pieceSize));
+		}
+	}
+}
@@ -0,0 +1,147 @@
+import java.nio.ByteBuffer;
+
+/**
+ * A view of a range of ASCII bytes in a ByteBuffer or byte[] as a CharSequence, without decoding
+ * or copying them. Each byte is one char, so bytes outside ASCII are read as the Latin-1 char
+ * with the same value.
+ *
+ * Views let the lexer and parser read expressions straight from the bytes of sockets and files,
+ * with the same grammar and errors as Strings. Bytes in a heap buffer or array are read from the
+ * array, and bytes in a direct or mapped buffer with absolute gets, so no view changes the
+ * position of its buffer. The bytes must not change while a view of them is being read.
+ *
+ * The view can be moved to another range with reset, so one instance can be reused for every
+ * line of a file. A view is not thread-safe.
+ */
+public class ByteCharSequence implements CharSequence {
+
+	private static final byte[] NO_BYTES = new byte[0];
+
+	// the array holding the bytes, or null if they are only in the buffer
+	private byte[] array;
+	private ByteBuffer buffer;
+	private int start;
+	private int length;
+
+	/**
+	 * Creates a new view of no bytes.
+	 */
+	ByteCharSequence() {
+		this.array = NO_BYTES;
+	}
+
+	/**
+	 * Creates a new view of the remaining bytes of the given buffer, from its position to its
+	 * limit.
+	 *
+	 * @param buffer The buffer holding the bytes. Its position and limit are not changed.
+	 */
+	public ByteCharSequence(ByteBuffer buffer) {
+		reset(buffer, buffer.position(), buffer.limit());
+	}
+
+	/**
+	 * Creates a new view of the given range of an array.
+	 *
+	 * @param bytes  The array holding the bytes.
+	 * @param offset The index in the array of the first byte.
+	 * @param length The number of bytes.
+	 * @throws IndexOutOfBoundsException If the range is not within the array.
+	 */
+	public ByteCharSequence(byte[] bytes, int offset, int length) {
+		if (offset < 0 || length < 0 || length > bytes.length - offset) {
+			throw new IndexOutOfBoundsException("Range [" + offset + ", " + offset + " + " +
+					  length + ") is outside an array of " + bytes.length + " bytes");
+		}
+		this.array = bytes;
+		this.start = offset;
+		this.length = length;
+	}
+
+	/**
+	 * Creates a new view of the given range of bytes.
+	 *
+	 * @param buffer The buffer holding the bytes. Its position and limit are ignored.
+	 * @param start  The index in the buffer of the first byte.
+	 * @param end    The index in the buffer just past the last byte.
+	 */
+	ByteCharSequence(ByteBuffer buffer, int start, int end) {
+		reset(buffer, start, end);
+	}
+
+	/**
+	 * Moves the view to the given range of bytes.
+	 *
+	 * @param newBuffer The buffer holding the bytes. Its position and limit are ignored.
+	 * @param newStart  The index in the buffer of the first byte.
+	 * @param end       The index in the buffer just past the last byte.
+	 * @return This view.
+	 * @throws IndexOutOfBoundsException If the range is not within the buffer's capacity.
+	 */
+	ByteCharSequence reset(ByteBuffer newBuffer, int newStart, int end) {
+		if (newStart < 0 || end < newStart || end > newBuffer.capacity()) {
+			throw new IndexOutOfBoundsException("Range [" + newStart + ", " + end +
+					  ") is outside a buffer of " + newBuffer.capacity() + " bytes");
+		}
+		if (newBuffer.hasArray()) {
+			array = newBuffer.array();
+			buffer = null;
+			start = newBuffer.arrayOffset() + newStart;
+		} else {
+			array = null;
+			buffer = newBuffer;
+			start = newStart;
+		}
+		length = end - newStart;
+		return this;
+	}
+
+	/**
+	 * @return The number of bytes in the view.
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * @param index The index of a byte in the view.
+	 * @return The byte as a char.
+	 */
+	public char charAt(int index) {
+		if (index < 0 || index >= length) {
+			throw new IndexOutOfBoundsException("Index " + index + " is outside a view of " +
+					  length + " bytes");
+		}
+		if (array != null) {
+			return (char) (array[start + index] & 0xff);
+		}
+		return (char) (buffer.get(start + index) & 0xff);
+	}
+
+	/**
+	 * @param from The index of the first byte of the subsequence.
+	 * @param to   The index just past the last byte of the subsequence.
+	 * @return A new view of the bytes from the given range of this view.
+	 */
+	public CharSequence subSequence(int from, int to) {
+		if (from < 0 || to < from || to > length) {
+			throw new IndexOutOfBoundsException("Range [" + from + ", " + to +
+					  ") is outside a view of " + length + " bytes");
+		}
+		if (array != null) {
+			return new ByteCharSequence(array, start + from, to - from);
+		}
+		return new ByteCharSequence(buffer, start + from, start + to);
+	}
+
+	/**
+	 * @return The bytes in the view, decoded as a String.
+	 */
+	public String toString() {
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = charAt(i);
+		}
+		return new String(chars);
+	}
+}
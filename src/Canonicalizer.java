@@ -0,0 +1,308 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.List;
+
+/**
+ * Rewrites math expressions into a canonical form, so that inputs that differ only in
+ * formatting produce the same string.
+ *
+ * The canonical form has no whitespace and only the parentheses the grammar needs. Numbers are
+ * printed in their shortest plain decimal form, so 2, 2.0, and 02. all become 2. The two operands
+ * of each ADD and MULTIPLY are put in a fixed order, so a + b*2 and (2*b)+a both become 2*b+a.
+ * Swapping the operands of a single addition or multiplication never changes its result, but
+ * regrouping a chain such as a + b + c would change its rounding, so chains are not flattened.
+ *
+ * Parsing the canonical form gives an expression with the same results as the original. The
+ * variables' binding slots follow their order in the canonical form, which may differ from the
+ * original.
+ */
+public class Canonicalizer {
+
+	/**
+	 * @param input A string representing a mathematical expression.
+	 * @return The canonical form of the expression.
+	 * @throws IOException If an invalid character is encountered.
+	 */
+	public static String canonicalize(String input) throws IOException {
+		return canonicalize(Parser.compile(input).getRoot());
+	}
+
+	/**
+	 * Lays out the canonical form children first, in the order of Parser.postOrder, so that deep
+	 * trees do not recurse, and then prints it in one pass.
+	 *
+	 * @param root The root of a syntax tree, or null.
+	 * @return The canonical form of the tree. Missing operands and nodes that evaluate to zero,
+	 * such as unclosed parentheses, are printed as 0.
+	 */
+	static String canonicalize(Parser.TreeNode root) {
+		List<Parser.TreeNode> order = Parser.postOrder(root);
+		Layout layout = new Layout(order.size());
+		for (Parser.TreeNode node : order) {
+			layout.add(node);
+		}
+		return layout.print();
+	}
+
+	/**
+	 * @param token The token of a leaf node.
+	 * @return The canonical form of the leaf. Nodes that evaluate to zero, such as unclosed
+	 * parentheses, are printed as 0.
+	 */
+	private static String canonicalizeLeaf(Token token) {
+		TokenType type = token.getType();
+		if (type == TokenType.NUMBER) {
+			return formatNumber(((NumberToken) token).getValue());
+		} else if (type == TokenType.VARIABLE) {
+			return ((VariableToken) token).getName();
+		} else if (type == TokenType.FUNCTION) {
+			// a function of no arguments
+			return token + "()";
+		} else {
+			return "0";
+		}
+	}
+
+	/**
+	 * The canonical form of a syntax tree as pieces: each node prints one string before its first
+	 * operand, one between its operands, and one after its last. A node's operands are put in
+	 * order when it is added, by reading their canonical forms from the pieces with a Cursor, so
+	 * no subtree's form is ever built as a string of its own. Ordering the operands reads only as
+	 * far as they differ, which is never more than the smaller of them, and printing writes each
+	 * piece once, so the whole layout takes time about linear in the length of the form.
+	 */
+	private static final class Layout {
+
+		private static final int BEFORE = 0;
+		private static final int BETWEEN = 1;
+		private static final int AFTER = 2;
+
+		private final String[] befores;
+		private final String[] betweens;
+		private final String[] afters;
+		private final int[] firsts;
+		private final int[] seconds;
+		private final int[] parents;
+		// the first node of each subtree that prints something, which is the root of the subtree
+		// unless it prints nothing before its first operand
+		private final int[] starts;
+		private final int[] precedences;
+		// the indices of the operands of the nodes still to come
+		private final int[] operands;
+		private int top;
+		private int size;
+		private final Cursor left = new Cursor();
+		private final Cursor right = new Cursor();
+
+		/**
+		 * @param capacity The number of nodes, including null ones, in the tree.
+		 */
+		Layout(int capacity) {
+			befores = new String[capacity];
+			betweens = new String[capacity];
+			afters = new String[capacity];
+			firsts = new int[capacity];
+			seconds = new int[capacity];
+			parents = new int[capacity];
+			starts = new int[capacity];
+			precedences = new int[capacity];
+			operands = new int[capacity];
+		}
+
+		/**
+		 * Adds a node whose operands were the last ones added.
+		 *
+		 * @param node A node, or null.
+		 */
+		void add(Parser.TreeNode node) {
+			int first = -1;
+			int second = -1;
+			String before = "";
+			String between = "";
+			String after = "";
+			int precedence = Integer.MAX_VALUE;
+			if (node == null) {
+				before = "0";
+			} else if (node.token.getType() == TokenType.COMMA) {
+				// arguments never need parentheses, since every operator binds tighter than commas
+				second = operands[--top];
+				first = operands[--top];
+				between = ",";
+			} else if (Parser.isBinary(node.token.getType())) {
+				second = operands[--top];
+				first = operands[--top];
+				TokenType type = node.token.getType();
+				if ((type == TokenType.ADD || type == TokenType.MULTIPLY) &&
+						  compare(first, second) > 0) {
+					int operand = first;
+					first = second;
+					second = operand;
+				}
+
+				// parentheses are needed around an operand with lower precedence, or with equal
+				// precedence on the side the operator does not associate towards
+				precedence = node.token.getPrecedence();
+				boolean rightAssociative = node.token.isRightAssociative();
+				boolean firstParenthesized = precedence > precedences[first] ||
+						  (rightAssociative && precedence == precedences[first]);
+				boolean secondParenthesized = precedence > precedences[second] ||
+						  (!rightAssociative && precedence == precedences[second]);
+				before = firstParenthesized ? "(" : "";
+				between = (firstParenthesized ? ")" : "") + node.token +
+						  (secondParenthesized ? "(" : "");
+				after = secondParenthesized ? ")" : "";
+			} else if (Parser.readsRight(node.token)) {
+				first = operands[--top];
+				if (node.token.getType() == TokenType.NEGATION) {
+					precedence = node.token.getPrecedence();
+					boolean parenthesized = precedence > precedences[first];
+					before = parenthesized ? "-(" : "-";
+					after = parenthesized ? ")" : "";
+				} else {
+					before = node.token + "(";
+					after = ")";
+				}
+			} else {
+				before = canonicalizeLeaf(node.token);
+			}
+
+			int index = size++;
+			befores[index] = before;
+			betweens[index] = between;
+			afters[index] = after;
+			firsts[index] = first;
+			seconds[index] = second;
+			precedences[index] = precedence;
+			starts[index] = before.isEmpty() ? starts[first] : index;
+			if (first != -1) {
+				parents[first] = index;
+			}
+			if (second != -1) {
+				parents[second] = index;
+			}
+			operands[top++] = index;
+		}
+
+		/**
+		 * @param first  The index of a node.
+		 * @param second The index of another node.
+		 * @return A negative number, zero, or a positive number as the canonical form of the
+		 * first node is less than, equal to, or greater than that of the second, as by
+		 * String.compareTo.
+		 */
+		private int compare(int first, int second) {
+			left.reset(first);
+			right.reset(second);
+			while (true) {
+				int leftChar = left.next();
+				int rightChar = right.next();
+				if (leftChar != rightChar || leftChar == -1) {
+					return leftChar - rightChar;
+				}
+			}
+		}
+
+		/**
+		 * @return The canonical form of the last node added.
+		 */
+		String print() {
+			StringBuilder builder = new StringBuilder();
+			left.reset(operands[top - 1]);
+			left.appendTo(builder);
+			return builder.toString();
+		}
+
+		/**
+		 * Reads the canonical form of a subtree piece by piece, in the order it is printed. Each
+		 * node is left once, after it has printed at least one character, and entering a subtree
+		 * jumps straight to its start, so reading costs about as much as the characters read.
+		 */
+		private final class Cursor {
+			private int root;
+			private int node;
+			private int part;
+			private String piece;
+			private int offset;
+
+			/**
+			 * @param root The index of the root of the subtree to read from its start.
+			 */
+			void reset(int root) {
+				this.root = root;
+				enter(starts[root], BEFORE);
+			}
+
+			/**
+			 * @return The next character, or -1 at the end of the subtree.
+			 */
+			int next() {
+				while (offset == piece.length()) {
+					if (!advance()) {
+						return -1;
+					}
+				}
+				return piece.charAt(offset++);
+			}
+
+			/**
+			 * Appends the rest of the subtree.
+			 *
+			 * @param builder The builder to append to.
+			 */
+			void appendTo(StringBuilder builder) {
+				do {
+					builder.append(piece, offset, piece.length());
+				} while (advance());
+			}
+
+			/**
+			 * Moves to the next piece.
+			 *
+			 * @return False if the subtree has ended, true otherwise.
+			 */
+			private boolean advance() {
+				if (part == BEFORE && firsts[node] != -1) {
+					enter(starts[firsts[node]], BEFORE);
+				} else if (part == BETWEEN) {
+					enter(starts[seconds[node]], BEFORE);
+				} else if (part == BEFORE) {
+					enter(node, AFTER);
+				} else if (node == root) {
+					return false;
+				} else {
+					int parent = parents[node];
+					boolean fromFirst = firsts[parent] == node && seconds[parent] != -1;
+					enter(parent, fromFirst ? BETWEEN : AFTER);
+				}
+				return true;
+			}
+
+			private void enter(int newNode, int newPart) {
+				node = newNode;
+				part = newPart;
+				offset = 0;
+				if (part == BEFORE) {
+					piece = befores[node];
+				} else if (part == BETWEEN) {
+					piece = betweens[node];
+				} else {
+					piece = afters[node];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Formats a number in its shortest plain decimal form, such as 2 or 0.25 rather than 2.0 or
+	 * 2.5E-1. Only numbers too long to be doubles are infinite, and they are printed as 1/0.
+	 *
+	 * @param value The value of a NUMBER token.
+	 * @return The canonical form of the number.
+	 */
+	private static String formatNumber(double value) {
+		if (Double.isInfinite(value)) {
+			return "(1/0)";
+		}
+		return new BigDecimal(Double.toString(value)).stripTrailingZeros().toPlainString();
+	}
+}
@@ -0,0 +1,545 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Lexer that tokenizes into reusable primitive arrays rather than a list of Token objects.
+ *
+ * The input is scanned once with an index cursor and whitespace is skipped as it is found, so
+ * the grammar is the same as if all whitespace had been removed first. After the first few
+ * inputs the arrays are large enough and lexing short inputs allocates nothing, apart from the
+ * name of each new variable and the rare number that DecimalConverter cannot convert in place.
+ * Function names are found in the registry of Functions from the characters of the input.
+ *
+ * A CursorLexer is not thread-safe. Use one instance per thread and call lex for each input.
+ */
+public class CursorLexer implements Iterable<Token> {
+
+	private static final TokenType[] TYPES = TokenType.values();
+
+	/**
+	 * The largest power of ten an exponent is read up to; any larger one overflows or
+	 * underflows every number just the same.
+	 */
+	private static final int MAX_EXPONENT = 100000;
+
+	private byte[] types = new byte[16];
+	private double[] values = new double[16];
+	private int[] slots = new int[16];
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	private int size;
+
+	private List<String> variables = new ArrayList<>();
+	private char[] scratch = new char[16];
+
+	// the functions of the current input
+	private Functions.Table functions;
+
+	/**
+	 * Tokenizes the given input, replacing the tokens of the previous input.
+	 *
+	 * @param input The input to tokenize.
+	 * @throws IOException If an unknown character is encountered or a number is malformed.
+	 */
+	public void lex(CharSequence input) throws IOException {
+		ParseResult result = tryLex(input);
+		if (!result.isValid()) {
+			throw new SyntaxException(result.getError(), result.getMessage());
+		}
+	}
+
+	/**
+	 * Tokenizes the given input, replacing the tokens of the previous input, and returns the
+	 * first error instead of throwing it. The tokens before the error are kept.
+	 *
+	 * @param input The input to tokenize.
+	 * @return ParseResult.VALID, or the unknown character or malformed number.
+	 */
+	public ParseResult tryLex(CharSequence input) {
+		size = 0;
+		variables.clear();
+		functions = Functions.table();
+
+		int length = input.length();
+		int i = skipWhitespace(input, 0);
+		while (i < length) {
+			char c = input.charAt(i);
+
+			if (Character.isDigit(c) || c == '.') {
+				int start = i;
+				i = addNumber(i, input);
+				if (i < 0) {
+					return numberError(input, start, ~i);
+				}
+			} else if (Character.isLetter(c)) {
+				i = addIdentifier(i, input);
+			} else if (c == '-') {
+				add(subtractOrNegate(), i, i + 1);
+				i = skipWhitespace(input, i + 1);
+			} else if (c == '<' || c == '>' || c == '=' || c == '!') {
+				// the comparison may be two characters, which whitespace can separate
+				int next = skipWhitespace(input, i + 1);
+				boolean orEqual = next < length && input.charAt(next) == '=';
+				TokenType type = getComparisonType(c, orEqual);
+				if (type == null) {
+					return unknownCharacter(c, i);
+				}
+				int end = orEqual ? next + 1 : i + 1;
+				add(type, i, end);
+				i = skipWhitespace(input, end);
+			} else {
+				TokenType type = getNonNumberType(c);
+				if (type == null) {
+					return unknownCharacter(c, i);
+				}
+				add(type, i, i + 1);
+				i = skipWhitespace(input, i + 1);
+			}
+		}
+		return ParseResult.VALID;
+	}
+
+	/**
+	 * @param c The unknown character.
+	 * @param i The index of the character in the input.
+	 * @return The error for the character.
+	 */
+	private static ParseResult unknownCharacter(char c, int i) {
+		String message = "Encountered unknown character. Unicode value: \\u" +
+				  Integer.toHexString(c | 0x10000).substring(1);
+		return new ParseResult(ParseResult.Error.UNKNOWN_CHARACTER, i, String.valueOf(c), message);
+	}
+
+	/**
+	 * @param input The input being tokenized.
+	 * @param start The index of the malformed number.
+	 * @param bad   The index of the character that made it malformed.
+	 * @return The error for the number.
+	 */
+	private static ParseResult numberError(CharSequence input, int start, int bad) {
+		if (bad == start) {
+			return new ParseResult(ParseResult.Error.FLOATING_DECIMAL, start, ".",
+					  "Floating decimal");
+		} else {
+			return new ParseResult(ParseResult.Error.TOO_MANY_DECIMALS, start,
+					  input.subSequence(start, bad + 1).toString(),
+					  "Too many decimals in the number");
+		}
+	}
+
+	/**
+	 * @param input The input being tokenized.
+	 * @param i     The current index in the input.
+	 * @return The index of the first non-whitespace character at or after i.
+	 */
+	private static int skipWhitespace(CharSequence input, int i) {
+		while (i < input.length() && isWhitespace(input.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @param c A character.
+	 * @return True if c is one of the characters matched by the regex \s, false otherwise.
+	 */
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+	/**
+	 * Determines if the '-' character is a NEGATION or SUBTRACT token.
+	 *
+	 * @return SUBTRACT or NEGATION.
+	 */
+	private TokenType subtractOrNegate() {
+		TokenType prev = (size > 0) ? TYPES[types[size - 1]] : TokenType.MULTIPLY;
+
+		// The token is subtract only if the previous token is a close parentheses, a number, or a
+		// variable.
+		if (prev == TokenType.CLOSE_PAREN || prev == TokenType.NUMBER ||
+				  prev == TokenType.VARIABLE) {
+			return TokenType.SUBTRACT;
+		} else {
+			return TokenType.NEGATION;
+		}
+	}
+
+	/**
+	 * Scans a function or variable name starting at the given index and adds its token. A name is
+	 * a letter followed by any letters and digits, so x2 and atan2 are names. Whitespace inside a
+	 * name is skipped, but a digit after whitespace starts a number, so "sin 3" is not sin3.
+	 *
+	 * @param i     The current index in the input.
+	 * @param input The input being tokenized.
+	 * @return The index just past the name and any whitespace that follows it.
+	 */
+	private int addIdentifier(int i, CharSequence input) {
+		int start = i;
+		int end = i;
+		int length = 0;
+		int multiplier = functions.getMultiplier();
+		int hash = 0;
+		while (i < input.length() && (Character.isLetter(input.charAt(i)) ||
+				  i == end && Character.isDigit(input.charAt(i)))) {
+			char c = input.charAt(i);
+			length = appendScratch(length, c);
+			hash = hash * multiplier + c;
+			end = i + 1;
+			i = skipWhitespace(input, i + 1);
+		}
+
+		int function = functions.find(scratch, length, hash);
+		if (function != -1) {
+			add(functions.getType(function), start, end);
+			slots[size - 1] = function;
+		} else {
+			int slot = findVariable(length);
+			if (slot == -1) {
+				slot = variables.size();
+				variables.add(new String(scratch, 0, length));
+			}
+			add(TokenType.VARIABLE, start, end);
+			slots[size - 1] = slot;
+		}
+		return i;
+	}
+
+	/**
+	 * Scans a number starting at the given index and adds its token. A number has digits with at
+	 * most one decimal point, and may be followed by an exponent: 'e' or 'E', an optional sign,
+	 * and digits, as in 1.5e-3. An 'e' that is not followed by digits starts a name instead.
+	 *
+	 * The digits are converted as they are scanned, without copying them to a String.
+	 *
+	 * @param i     The current index in the input.
+	 * @param input The input being tokenized.
+	 * @return The index just past the number and any whitespace that follows it, or if the number
+	 * is malformed, the bitwise complement of the index of the offending character: the second
+	 * decimal point, or the start of a number that is only a decimal point.
+	 */
+	private int addNumber(int i, CharSequence input) {
+		int start = i;
+		int end = i;
+		int length = 0;
+		long significand = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean truncated = false;
+		boolean foundDecimal = false;
+
+		while (i < input.length() && (Character.isDigit(input.charAt(i)) || input.charAt(i) == '.')) {
+			char c = input.charAt(i);
+			if (c == '.' && !foundDecimal) {
+				foundDecimal = true;
+			} else if (c == '.') {
+				return ~i;
+			} else {
+				int digit = Character.digit(c, 10);
+				if (digits < DecimalConverter.MAX_DIGITS && (digits > 0 || digit != 0)) {
+					significand = significand * 10 + digit;
+					digits++;
+					if (foundDecimal) {
+						exponent--;
+					}
+				} else if (digits == 0) {
+					// a leading zero
+					if (foundDecimal) {
+						exponent--;
+					}
+				} else {
+					// a digit past the significand only shifts it, unless it is after the point
+					truncated |= digit != 0;
+					if (!foundDecimal) {
+						exponent++;
+					}
+				}
+				c = (char) ('0' + digit);
+			}
+
+			length = appendScratch(length, c);
+			end = i + 1;
+			i = skipWhitespace(input, i + 1);
+		}
+
+		if (length == 1 && foundDecimal) {
+			return ~start;
+		}
+
+		if (isExponent(i, input)) {
+			length = appendScratch(length, 'e');
+			i = skipWhitespace(input, i + 1);
+			boolean negative = input.charAt(i) == '-';
+			if (negative || input.charAt(i) == '+') {
+				length = appendScratch(length, input.charAt(i));
+				i = skipWhitespace(input, i + 1);
+			}
+			int power = 0;
+			while (i < input.length() && Character.isDigit(input.charAt(i))) {
+				int digit = Character.digit(input.charAt(i), 10);
+				power = Math.min(power * 10 + digit, MAX_EXPONENT);
+				length = appendScratch(length, (char) ('0' + digit));
+				end = i + 1;
+				i = skipWhitespace(input, i + 1);
+			}
+			if (i < input.length() && input.charAt(i) == '.') {
+				return ~i;
+			}
+			exponent += negative ? -power : power;
+		}
+
+		double value = DecimalConverter.toDouble(significand, exponent, truncated);
+		if (Double.isNaN(value)) {
+			value = Double.parseDouble(new String(scratch, 0, length));
+		}
+
+		add(TokenType.NUMBER, start, end);
+		values[size - 1] = value;
+		return i;
+	}
+
+	/**
+	 * @param i     The index just past the digits of a number and any whitespace after them.
+	 * @param input The input being tokenized.
+	 * @return True if an exponent starts at i, false otherwise.
+	 */
+	private static boolean isExponent(int i, CharSequence input) {
+		if (i == input.length() || (input.charAt(i) != 'e' && input.charAt(i) != 'E')) {
+			return false;
+		}
+		int j = skipWhitespace(input, i + 1);
+		if (j < input.length() && (input.charAt(j) == '-' || input.charAt(j) == '+')) {
+			j = skipWhitespace(input, j + 1);
+		}
+		return j < input.length() && Character.isDigit(input.charAt(j));
+	}
+
+	/**
+	 * Gets the type of a character that is not part of a number, name, or '-'.
+	 *
+	 * @param c The character to get the type of.
+	 * @return The type of the token the character represents, or null if it is unknown.
+	 */
+	private static TokenType getNonNumberType(char c) {
+		if (c == '+') {
+			return TokenType.ADD;
+		} else if (c == '*') {
+			return TokenType.MULTIPLY;
+		} else if (c == '/') {
+			return TokenType.DIVIDE;
+		} else if (c == '(') {
+			return TokenType.OPEN_PAREN;
+		} else if (c == ')') {
+			return TokenType.CLOSE_PAREN;
+		} else if (c == ',') {
+			return TokenType.COMMA;
+		} else if (c == '^') {
+			return TokenType.EXPONENT;
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the type of a comparison, which starts with '<', '>', '=', or '!'.
+	 *
+	 * @param c       The first character of the comparison.
+	 * @param orEqual True if the character is followed by '='.
+	 * @return The type of the comparison, or null if '=' or '!' is not followed by '='.
+	 */
+	private static TokenType getComparisonType(char c, boolean orEqual) {
+		if (c == '<') {
+			return orEqual ? TokenType.LESS_EQUAL : TokenType.LESS;
+		} else if (c == '>') {
+			return orEqual ? TokenType.GREATER_EQUAL : TokenType.GREATER;
+		} else if (!orEqual) {
+			return null;
+		} else if (c == '=') {
+			return TokenType.EQUAL;
+		} else {
+			return TokenType.NOT_EQUAL;
+		}
+	}
+
+	/**
+	 * Appends a token of the given type, growing the arrays if they are full.
+	 *
+	 * @param type  The type of the token.
+	 * @param start The index of the token's first character in the input.
+	 * @param end   The index just past the token's last character in the input.
+	 */
+	private void add(TokenType type, int start, int end) {
+		if (size == types.length) {
+			int capacity = size * 2;
+			types = Arrays.copyOf(types, capacity);
+			values = Arrays.copyOf(values, capacity);
+			slots = Arrays.copyOf(slots, capacity);
+			starts = Arrays.copyOf(starts, capacity);
+			ends = Arrays.copyOf(ends, capacity);
+		}
+		starts[size] = start;
+		ends[size] = end;
+		types[size++] = (byte) type.ordinal();
+	}
+
+	/**
+	 * @param length The number of characters in the scratch buffer.
+	 * @param c      The character to append.
+	 * @return The new number of characters in the scratch buffer.
+	 */
+	private int appendScratch(int length, char c) {
+		if (length == scratch.length) {
+			char[] newScratch = new char[length * 2];
+			System.arraycopy(scratch, 0, newScratch, 0, length);
+			scratch = newScratch;
+		}
+		scratch[length] = c;
+		return length + 1;
+	}
+
+	/**
+	 * @param length The number of characters in the scratch buffer.
+	 * @param str    The string to compare to.
+	 * @return True if the scratch buffer holds exactly the given string, false otherwise.
+	 */
+	private boolean scratchEquals(int length, String str) {
+		if (length != str.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (scratch[i] != str.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param length The number of characters in the scratch buffer.
+	 * @return The slot of the variable named by the scratch buffer, or -1 if it is new.
+	 */
+	private int findVariable(int length) {
+		for (int slot = 0; slot < variables.size(); slot++) {
+			if (scratchEquals(length, variables.get(slot))) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The number of tokens in the current input.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param i The index of a token.
+	 * @return The type of the token.
+	 */
+	public TokenType getType(int i) {
+		return TYPES[types[i]];
+	}
+
+	/**
+	 * @param i The index of a NUMBER token.
+	 * @return The value of the number.
+	 */
+	public double getValue(int i) {
+		return values[i];
+	}
+
+	/**
+	 * @param i The index of a VARIABLE token.
+	 * @return The binding slot of the variable.
+	 */
+	public int getSlot(int i) {
+		return slots[i];
+	}
+
+	/**
+	 * @param i The index of a FUNCTION token.
+	 * @return The function the token calls.
+	 */
+	public MathFunction getFunction(int i) {
+		return Functions.token(slots[i]).getFunction();
+	}
+
+	/**
+	 * @param i The index of a FUNCTION token.
+	 * @return The id of the function the token calls in the registry.
+	 */
+	int getFunctionId(int i) {
+		return slots[i];
+	}
+
+	/**
+	 * @param i The index of a token.
+	 * @return The index of the token's first character in the input.
+	 */
+	public int getStart(int i) {
+		return starts[i];
+	}
+
+	/**
+	 * @param i The index of a token.
+	 * @return The index just past the token's last character in the input.
+	 */
+	public int getEnd(int i) {
+		return ends[i];
+	}
+
+	/**
+	 * @return The names of the variables in the current input, indexed by binding slot. The list
+	 * is reused by the next call to lex.
+	 */
+	public List<String> getVariables() {
+		return variables;
+	}
+
+	/**
+	 * Gets the token at the given index as a Token object. Operator, parentheses, and function
+	 * tokens are shared instances from Token.valueOf and Functions, so only numbers and variables
+	 * allocate.
+	 *
+	 * @param i The index of a token.
+	 * @return The token.
+	 */
+	public Token getToken(int i) {
+		TokenType type = getType(i);
+		if (type == TokenType.NUMBER) {
+			return new NumberToken(values[i]);
+		} else if (type == TokenType.VARIABLE) {
+			return new VariableToken(variables.get(slots[i]), slots[i]);
+		} else if (type == TokenType.FUNCTION) {
+			return Functions.token(slots[i]);
+		} else {
+			return Token.valueOf(type);
+		}
+	}
+
+	/**
+	 * @return An iterator over the tokens of the current input, as Token objects.
+	 */
+	public Iterator<Token> iterator() {
+		return new Iterator<Token>() {
+			private int next = 0;
+
+			public boolean hasNext() {
+				return next < size;
+			}
+
+			public Token next() {
+				if (next >= size) {
+					throw new NoSuchElementException();
+				}
+				return getToken(next++);
+			}
+		};
+	}
+}
@@ -0,0 +1,594 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A math expression with its repeated subexpressions merged, so that each distinct
+ * subexpression is computed once per evaluation.
+ *
+ * The syntax tree is hash-consed into a directed acyclic graph: two subtrees with the same
+ * operator and the same operands, compared structurally, become one node. The nodes are stored
+ * children first in parallel arrays and evaluated in that order into a scratch array of
+ * temporaries, so in sin(a*b)+cos(a*b)*(a*b)^2 the product a*b is computed once and read three
+ * times. Numbers are only merged when their bits are identical, so 0 and -0 stay distinct, and
+ * calls to impure functions are never merged, so each is still made once per evaluation.
+ *
+ * Every node is computed on every evaluation, so both branches of an if are computed and one is
+ * selected; a branch may share its subexpressions with the rest of the graph.
+ *
+ * Programs are immutable and can be shared between threads; each thread needs its own
+ * temporaries, from newTemporaries. Past the value of every node, the temporaries have room for
+ * the arguments of the widest call to a function of three or more arguments, which are copied
+ * there to be passed to it.
+ */
+public final class DagProgram implements Evaluator {
+
+	// the engine named in flight recorder events
+	private static final String ENGINE = "dag";
+
+	private final int[] opcodes;
+	private final int[] lefts;
+	private final int[] rights;
+	private final double[] constants;
+	private final MathFunction[] functions;
+	private final int[] arguments;
+	private final int result;
+	private final int variableCount;
+	private final int sourceLength;
+	private final int temporaryCount;
+
+	/**
+	 * @param opcodes       The PostfixProgram opcode of each node.
+	 * @param lefts         The left operand of each node, the binding slot of a LOAD node, or
+	 *                      the index in functions of a CALL node.
+	 * @param rights        The right operand of each node, the only operand of unary nodes, or
+	 *                      the index in arguments of the first operand of a CALL or SELECT
+	 *                      node.
+	 * @param constants     The value of each CONST node.
+	 * @param functions     The functions called by CALL nodes.
+	 * @param arguments     The operands of the CALL and SELECT nodes, consecutive for each
+	 *                      node.
+	 * @param result        The index of the node for the whole expression.
+	 * @param variableCount The number of bindings the program reads.
+	 * @param sourceLength  The length of the expression the program was compiled from.
+	 */
+	private DagProgram(int[] opcodes, int[] lefts, int[] rights, double[] constants,
+	                   MathFunction[] functions, int[] arguments, int result, int variableCount,
+	                   int sourceLength) {
+		this.opcodes = opcodes;
+		this.lefts = lefts;
+		this.rights = rights;
+		this.constants = constants;
+		this.functions = functions;
+		this.arguments = arguments;
+		this.result = result;
+		this.variableCount = variableCount;
+		this.sourceLength = sourceLength;
+		int widest = 0;
+		for (MathFunction function : functions) {
+			if (function.getArity() > 2) {
+				widest = Math.max(widest, function.getArity());
+			}
+		}
+		temporaryCount = opcodes.length + widest;
+	}
+
+	/**
+	 * Merges the repeated subtrees of the given expression.
+	 *
+	 * @param expression The expression to compile.
+	 * @return A program that evaluates to the same results as the expression.
+	 */
+	public static DagProgram compile(Expression expression) {
+		ParseEvents.Event event = ParseEvents.begin(ParseEvents.Kind.COMPILE);
+		Builder builder = new Builder();
+		int result = builder.add(expression.getRoot());
+		int length = expression.toString().length();
+		DagProgram program = builder.build(result, expression.getVariableCount(), length);
+		if (event != null && event.finish()) {
+			event.commit(length, 0, Parser.depth(expression.getRoot()), ENGINE);
+		}
+		return program;
+	}
+
+	/**
+	 * @return The number of distinct subexpressions, each of which is computed once.
+	 */
+	public int getNodeCount() {
+		return opcodes.length;
+	}
+
+	/**
+	 * @return A new array of temporaries large enough to evaluate this program with.
+	 */
+	public double[] newTemporaries() {
+		return new double[temporaryCount];
+	}
+
+	/**
+	 * Evaluates the program with new temporaries.
+	 *
+	 * @param bindings The values of the variables, indexed by binding slot.
+	 * @return The result of the expression.
+	 */
+	public double evaluate(double... bindings) {
+		return evaluate(bindings, newTemporaries());
+	}
+
+	/**
+	 * Evaluates the program with the given temporaries, allocating nothing.
+	 *
+	 * @param bindings    The values of the variables, indexed by binding slot.
+	 * @param temporaries The temporaries, from newTemporaries. Their contents are overwritten.
+	 * @return The result of the expression.
+	 * @throws IllegalArgumentException If there are fewer bindings than variables.
+	 */
+	public double evaluate(double[] bindings, double[] temporaries) {
+		if (bindings.length < variableCount) {
+			throw new IllegalArgumentException("Expected " + variableCount +
+					  " bindings but got " + bindings.length);
+		}
+
+		ParseEvents.Event event = ParseEvents.begin(ParseEvents.Kind.EVALUATE);
+		double result = run(bindings, temporaries);
+		if (event != null && event.finish()) {
+			event.commit(sourceLength, 0, 0, ENGINE);
+		}
+		return result;
+	}
+
+	/**
+	 * @param bindings    The values of the variables, indexed by binding slot.
+	 * @param temporaries The temporaries. Their contents are overwritten.
+	 * @return The result of the expression.
+	 */
+	private double run(double[] bindings, double[] temporaries) {
+		run(bindings, temporaries, 0, opcodes.length);
+		return temporaries[result];
+	}
+
+	/**
+	 * Computes a range of nodes, whose operands outside the range are already computed.
+	 *
+	 * @param bindings    The values of the variables, indexed by binding slot.
+	 * @param temporaries The temporaries. The values of the nodes in the range are overwritten.
+	 * @param start       The index of the first node to compute.
+	 * @param end         The index after the last node to compute.
+	 */
+	void run(double[] bindings, double[] temporaries, int start, int end) {
+		double[] t = temporaries;
+		for (int i = start; i < end; i++) {
+			switch (opcodes[i]) {
+				case PostfixProgram.CONST:
+					t[i] = constants[i];
+					break;
+				case PostfixProgram.LOAD:
+					t[i] = bindings[lefts[i]];
+					break;
+				case PostfixProgram.ADD:
+					t[i] = t[lefts[i]] + t[rights[i]];
+					break;
+				case PostfixProgram.SUBTRACT:
+					t[i] = t[lefts[i]] - t[rights[i]];
+					break;
+				case PostfixProgram.MULTIPLY:
+					t[i] = t[lefts[i]] * t[rights[i]];
+					break;
+				case PostfixProgram.DIVIDE:
+					t[i] = t[lefts[i]] / t[rights[i]];
+					break;
+				case PostfixProgram.EXPONENT:
+					t[i] = Math.pow(t[lefts[i]], t[rights[i]]);
+					break;
+				case PostfixProgram.NEGATE:
+					t[i] = -1 * t[rights[i]];
+					break;
+				case PostfixProgram.SIN:
+					t[i] = Math.sin(t[rights[i]]);
+					break;
+				case PostfixProgram.COS:
+					t[i] = Math.cos(t[rights[i]]);
+					break;
+				case PostfixProgram.TAN:
+					t[i] = Math.tan(t[rights[i]]);
+					break;
+				case PostfixProgram.LESS:
+					t[i] = t[lefts[i]] < t[rights[i]] ? 1 : 0;
+					break;
+				case PostfixProgram.LESS_EQUAL:
+					t[i] = t[lefts[i]] <= t[rights[i]] ? 1 : 0;
+					break;
+				case PostfixProgram.GREATER:
+					t[i] = t[lefts[i]] > t[rights[i]] ? 1 : 0;
+					break;
+				case PostfixProgram.GREATER_EQUAL:
+					t[i] = t[lefts[i]] >= t[rights[i]] ? 1 : 0;
+					break;
+				case PostfixProgram.EQUAL:
+					t[i] = t[lefts[i]] == t[rights[i]] ? 1 : 0;
+					break;
+				case PostfixProgram.NOT_EQUAL:
+					t[i] = t[lefts[i]] != t[rights[i]] ? 1 : 0;
+					break;
+				case PostfixProgram.MIN:
+					t[i] = Math.min(t[lefts[i]], t[rights[i]]);
+					break;
+				case PostfixProgram.MAX:
+					t[i] = Math.max(t[lefts[i]], t[rights[i]]);
+					break;
+				case PostfixProgram.SELECT: {
+					int first = rights[i];
+					t[i] = t[arguments[first]] != 0 ? t[arguments[first + 1]] :
+							  t[arguments[first + 2]];
+					break;
+				}
+				case PostfixProgram.CALL:
+					t[i] = call(functions[lefts[i]], rights[i], t);
+					break;
+				default:
+					throw new IllegalStateException("Unknown opcode: " + opcodes[i]);
+			}
+		}
+	}
+
+	/**
+	 * @param node A node.
+	 * @return The number of nodes the node reads.
+	 */
+	int getOperandCount(int node) {
+		int opcode = opcodes[node];
+		if (opcode == PostfixProgram.CONST || opcode == PostfixProgram.LOAD) {
+			return 0;
+		} else if (opcode == PostfixProgram.CALL) {
+			return functions[lefts[node]].getArity();
+		} else if (opcode == PostfixProgram.SELECT) {
+			return 3;
+		}
+		return lefts[node] == -1 ? 1 : 2;
+	}
+
+	/**
+	 * @param node  A node.
+	 * @param index The index of one of its operands, less than getOperandCount.
+	 * @return The index of the operand's node, which comes before the node.
+	 */
+	int getOperand(int node, int index) {
+		int opcode = opcodes[node];
+		if (opcode == PostfixProgram.CALL || opcode == PostfixProgram.SELECT) {
+			return arguments[rights[node] + index];
+		}
+		return getOperandCount(node) == 2 && index == 0 ? lefts[node] : rights[node];
+	}
+
+	/**
+	 * @param node A node.
+	 * @return The binding slot the node loads, or -1 if it is not a LOAD node.
+	 */
+	int getSlot(int node) {
+		return opcodes[node] == PostfixProgram.LOAD ? lefts[node] : -1;
+	}
+
+	/**
+	 * @param node A node.
+	 * @return True if the node calls an impure function, false otherwise.
+	 */
+	boolean isImpure(int node) {
+		return opcodes[node] == PostfixProgram.CALL && !functions[lefts[node]].isPure();
+	}
+
+	/**
+	 * @return The index of the node for the whole expression.
+	 */
+	int getResult() {
+		return result;
+	}
+
+	/**
+	 * @return The number of bindings the program reads.
+	 */
+	int getVariableCount() {
+		return variableCount;
+	}
+
+	/**
+	 * @return The length of the expression the program was compiled from.
+	 */
+	int getSourceLength() {
+		return sourceLength;
+	}
+
+	/**
+	 * @param function The function to call.
+	 * @param first    The index in arguments of the node of the first argument.
+	 * @param t        The temporaries, holding the values of the arguments.
+	 * @return The result of the call.
+	 */
+	private double call(MathFunction function, int first, double[] t) {
+		int arity = function.getArity();
+		if (arity == 0) {
+			return function.apply();
+		} else if (arity == 1) {
+			return function.apply(t[arguments[first]]);
+		} else if (arity == 2) {
+			return function.apply(t[arguments[first]], t[arguments[first + 1]]);
+		}
+		int scratch = opcodes.length;
+		for (int i = 0; i < arity; i++) {
+			t[scratch + i] = t[arguments[first + i]];
+		}
+		return function.apply(t, scratch);
+	}
+
+	/**
+	 * Hash-conses a syntax tree into nodes stored children first.
+	 */
+	private static class Builder {
+		private final Map<Key, Integer> nodes = new HashMap<>();
+		private int[] opcodes = new int[16];
+		private int[] lefts = new int[16];
+		private int[] rights = new int[16];
+		private double[] constants = new double[16];
+		private int size;
+		private final List<MathFunction> functions = new ArrayList<>();
+		private int[] arguments = new int[16];
+		private int argumentCount;
+
+		/**
+		 * Adds the tree rooted at the given node, reusing existing nodes where possible. The tree
+		 * is walked in the order of Parser.postOrder, so deep trees do not recurse.
+		 *
+		 * @param root The root of the tree, or null for zero.
+		 * @return The index of the node for the tree.
+		 */
+		int add(Parser.TreeNode root) {
+			// the node indices of the operands of the nodes still to come
+			int[] operands = new int[16];
+			int top = 0;
+			for (Parser.TreeNode node : Parser.postOrder(root)) {
+				int right = -1;
+				int left = -1;
+				if (node != null && node.token.getType() == TokenType.COMMA) {
+					// both operands stay for the function
+					continue;
+				} else if (node != null && node.token.getType() == TokenType.FUNCTION) {
+					MathFunction function = ((FunctionToken) node.token).getFunction();
+					top -= function.getArity();
+					int[] args = Arrays.copyOfRange(operands, top, top + function.getArity());
+					if (top == operands.length) {
+						operands = Arrays.copyOf(operands, top * 2);
+					}
+					operands[top++] = addCall(function, args);
+					continue;
+				} else if (node != null && (Parser.isBinary(node.token.getType()) ||
+						  Parser.isUnary(node.token.getType()))) {
+					right = operands[--top];
+					if (Parser.isBinary(node.token.getType())) {
+						left = operands[--top];
+					}
+				}
+
+				if (top == operands.length) {
+					operands = Arrays.copyOf(operands, top * 2);
+				}
+				operands[top++] = addNode(node, left, right);
+			}
+			return operands[0];
+		}
+
+		/**
+		 * @param node  A node, or null for zero.
+		 * @param left  The index of the node's left operand, or -1 if it has none.
+		 * @param right The index of the node's right operand, or -1 if it has none.
+		 * @return The index of the node.
+		 */
+		private int addNode(Parser.TreeNode node, int left, int right) {
+			if (node == null) {
+				return addConstant(0);
+			}
+
+			TokenType type = node.token.getType();
+			if (type == TokenType.NUMBER) {
+				return addConstant(((NumberToken) node.token).getValue());
+			} else if (type == TokenType.VARIABLE) {
+				return intern(PostfixProgram.LOAD, ((VariableToken) node.token).getSlot(), -1, 0);
+			} else if (type == TokenType.ADD) {
+				return intern(PostfixProgram.ADD, left, right, 0);
+			} else if (type == TokenType.SUBTRACT) {
+				return intern(PostfixProgram.SUBTRACT, left, right, 0);
+			} else if (type == TokenType.MULTIPLY) {
+				return intern(PostfixProgram.MULTIPLY, left, right, 0);
+			} else if (type == TokenType.DIVIDE) {
+				return intern(PostfixProgram.DIVIDE, left, right, 0);
+			} else if (type == TokenType.EXPONENT) {
+				return intern(PostfixProgram.EXPONENT, left, right, 0);
+			} else if (type == TokenType.NEGATION) {
+				return intern(PostfixProgram.NEGATE, -1, right, 0);
+			} else if (type == TokenType.SIN) {
+				return intern(PostfixProgram.SIN, -1, right, 0);
+			} else if (type == TokenType.COS) {
+				return intern(PostfixProgram.COS, -1, right, 0);
+			} else if (type == TokenType.TAN) {
+				return intern(PostfixProgram.TAN, -1, right, 0);
+			} else if (type == TokenType.LESS) {
+				return intern(PostfixProgram.LESS, left, right, 0);
+			} else if (type == TokenType.LESS_EQUAL) {
+				return intern(PostfixProgram.LESS_EQUAL, left, right, 0);
+			} else if (type == TokenType.GREATER) {
+				return intern(PostfixProgram.GREATER, left, right, 0);
+			} else if (type == TokenType.GREATER_EQUAL) {
+				return intern(PostfixProgram.GREATER_EQUAL, left, right, 0);
+			} else if (type == TokenType.EQUAL) {
+				return intern(PostfixProgram.EQUAL, left, right, 0);
+			} else if (type == TokenType.NOT_EQUAL) {
+				return intern(PostfixProgram.NOT_EQUAL, left, right, 0);
+			} else {
+				return addConstant(0);
+			}
+		}
+
+		private int addConstant(double value) {
+			return intern(PostfixProgram.CONST, -1, -1, value);
+		}
+
+		/**
+		 * @param function The function to call.
+		 * @param args     The indices of the nodes of the arguments.
+		 * @return The index of an existing call to a pure function with the same arguments, or of
+		 * a new node.
+		 */
+		private int addCall(MathFunction function, int[] args) {
+			if (function == Functions.MIN) {
+				return intern(PostfixProgram.MIN, args[0], args[1], 0);
+			} else if (function == Functions.MAX) {
+				return intern(PostfixProgram.MAX, args[0], args[1], 0);
+			} else if (function == Functions.IF) {
+				return addOperands(PostfixProgram.SELECT, -1, args, true);
+			}
+
+			int index = functions.indexOf(function);
+			if (index == -1) {
+				index = functions.size();
+				functions.add(function);
+			}
+
+			return addOperands(PostfixProgram.CALL, index, args, function.isPure());
+		}
+
+		/**
+		 * @param opcode The opcode of the node, CALL or SELECT.
+		 * @param left   The index in functions of the function to call, or -1.
+		 * @param args   The indices of the nodes of the operands.
+		 * @param merge  True if the node can be merged with one of the same structure.
+		 * @return The index of an existing node with the same structure, if it can be merged, or
+		 * of a new node.
+		 */
+		private int addOperands(int opcode, int left, int[] args, boolean merge) {
+			Key key = new Key(opcode, left, -1, 0, args);
+			if (merge) {
+				Integer existing = nodes.get(key);
+				if (existing != null) {
+					return existing;
+				}
+			}
+
+			if (argumentCount + args.length > arguments.length) {
+				arguments = Arrays.copyOf(arguments, Math.max(arguments.length * 2,
+						  argumentCount + args.length));
+			}
+			System.arraycopy(args, 0, arguments, argumentCount, args.length);
+			int node = newNode(opcode, left, argumentCount, 0);
+			argumentCount += args.length;
+			if (merge) {
+				nodes.put(key, node);
+			}
+			return node;
+		}
+
+		/**
+		 * @param opcode The opcode of the node.
+		 * @param left   The left operand or binding slot, or -1.
+		 * @param right  The right operand, or -1.
+		 * @param value  The value of a CONST node, otherwise 0.
+		 * @return The index of the existing node with the same structure, or of a new node.
+		 */
+		private int intern(int opcode, int left, int right, double value) {
+			Key key = new Key(opcode, left, right, Double.doubleToLongBits(value), null);
+			Integer index = nodes.get(key);
+			if (index != null) {
+				return index;
+			}
+
+			int node = newNode(opcode, left, right, value);
+			nodes.put(key, node);
+			return node;
+		}
+
+		/**
+		 * @param opcode The opcode of the node.
+		 * @param left   The left operand, binding slot, or function, or -1.
+		 * @param right  The right operand or first argument, or -1.
+		 * @param value  The value of a CONST node, otherwise 0.
+		 * @return The index of the new node.
+		 */
+		private int newNode(int opcode, int left, int right, double value) {
+			if (size == opcodes.length) {
+				grow();
+			}
+			opcodes[size] = opcode;
+			lefts[size] = left;
+			rights[size] = right;
+			constants[size] = value;
+			return size++;
+		}
+
+		private void grow() {
+			int capacity = size * 2;
+			int[] newOpcodes = new int[capacity];
+			int[] newLefts = new int[capacity];
+			int[] newRights = new int[capacity];
+			double[] newConstants = new double[capacity];
+			System.arraycopy(opcodes, 0, newOpcodes, 0, size);
+			System.arraycopy(lefts, 0, newLefts, 0, size);
+			System.arraycopy(rights, 0, newRights, 0, size);
+			System.arraycopy(constants, 0, newConstants, 0, size);
+			opcodes = newOpcodes;
+			lefts = newLefts;
+			rights = newRights;
+			constants = newConstants;
+		}
+
+		DagProgram build(int result, int variableCount, int sourceLength) {
+			int[] finalOpcodes = new int[size];
+			int[] finalLefts = new int[size];
+			int[] finalRights = new int[size];
+			double[] finalConstants = new double[size];
+			System.arraycopy(opcodes, 0, finalOpcodes, 0, size);
+			System.arraycopy(lefts, 0, finalLefts, 0, size);
+			System.arraycopy(rights, 0, finalRights, 0, size);
+			System.arraycopy(constants, 0, finalConstants, 0, size);
+			return new DagProgram(finalOpcodes, finalLefts, finalRights, finalConstants,
+					  functions.toArray(new MathFunction[0]),
+					  Arrays.copyOf(arguments, argumentCount), result, variableCount, sourceLength);
+		}
+	}
+
+	/**
+	 * The structure of a node: its opcode, its operands' node indices, its constant bits, and the
+	 * node indices of the arguments of a call.
+	 */
+	private static final class Key {
+		private final int opcode;
+		private final int left;
+		private final int right;
+		private final long bits;
+		private final int[] arguments;
+
+		Key(int opcode, int left, int right, long bits, int[] arguments) {
+			this.opcode = opcode;
+			this.left = left;
+			this.right = right;
+			this.bits = bits;
+			this.arguments = arguments;
+		}
+
+		public boolean equals(Object o) {
+			if (o instanceof Key) {
+				Key k = (Key) o;
+				return k.opcode == opcode && k.left == left && k.right == right && k.bits == bits &&
+						  Arrays.equals(k.arguments, arguments);
+			} else {
+				return false;
+			}
+		}
+
+		public int hashCode() {
+			int hash = opcode;
+			hash = hash * 31 + left;
+			hash = hash * 31 + right;
+			hash = hash * 31 + Arrays.hashCode(arguments);
+			return hash * 31 + Long.hashCode(bits);
+		}
+	}
+}
@@ -0,0 +1,189 @@
+import java.math.BigInteger;
+
+/**
+ * Converts decimal numbers, given as a significand of up to 19 digits and a power of ten, to the
+ * nearest double without going through a String.
+ *
+ * Most numbers are converted exactly by a single multiplication or division, when both the
+ * significand and the power of ten are exact doubles. The others are converted with the
+ * Eisel-Lemire algorithm: the significand is multiplied by a 128-bit approximation of the power
+ * of ten, and the top bits of the product are the double, unless they lie too close to halfway
+ * between two doubles to be sure of the rounding. Those rare numbers, and numbers out of the
+ * range of the table, are left to Double.parseDouble by the caller.
+ *
+ * See Daniel Lemire, "Number Parsing at a Gigabyte per Second", Software: Practice and
+ * Experience 51(8), 2021.
+ */
+final class DecimalConverter {
+
+	/**
+	 * The most significant digits a significand can have, the most that always fit in an
+	 * unsigned long.
+	 */
+	static final int MAX_DIGITS = 19;
+
+	/**
+	 * The result of a conversion that could not be decided.
+	 */
+	static final double UNDECIDED = Double.NaN;
+
+	/**
+	 * Powers of ten that are exactly representable as doubles.
+	 */
+	private static final double[] POWERS_OF_TEN = {
+			  1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+			  1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+	};
+
+	// the range of the powers of ten in the table; any significand times a power below it
+	// rounds to zero, and times a power above it overflows
+	private static final int MIN_EXPONENT = -348;
+	private static final int MAX_EXPONENT = 347;
+
+	private static final int EXPONENT_BIAS = 1023;
+
+	private DecimalConverter() {
+	}
+
+	/**
+	 * @param significand The significant digits of the number, as an unsigned long.
+	 * @param exponent    The power of ten the significand is multiplied by.
+	 * @param truncated   True if digits after the significand were dropped, false otherwise.
+	 * @return The nearest double to the number, or UNDECIDED if it cannot be converted here.
+	 */
+	static double toDouble(long significand, int exponent, boolean truncated) {
+		if (significand == 0) {
+			return 0;
+		}
+		if (!truncated) {
+			// both the significand and the power of ten are exact, so one operation rounds once
+			if (significand >= 0 && significand <= (1L << 53) && exponent >= -22 &&
+					  exponent <= 22) {
+				return exponent < 0 ? significand / POWERS_OF_TEN[-exponent] :
+						  significand * POWERS_OF_TEN[exponent];
+			}
+			return eiselLemire(significand, exponent);
+		}
+
+		// the number lies between the significand and the next one up, so if both round to the
+		// same double, so does the number
+		double lower = eiselLemire(significand, exponent);
+		if (Double.isNaN(lower) || lower != eiselLemire(significand + 1, exponent)) {
+			return UNDECIDED;
+		}
+		return lower;
+	}
+
+	/**
+	 * @param significand A non-zero significand, as an unsigned long.
+	 * @param exponent    The power of ten the significand is multiplied by.
+	 * @return The nearest double to the number, or UNDECIDED if it cannot be converted here.
+	 */
+	private static double eiselLemire(long significand, int exponent) {
+		if (exponent < MIN_EXPONENT || exponent > MAX_EXPONENT) {
+			return UNDECIDED;
+		}
+
+		// normalize the significand so that its most significant bit is set
+		int zeros = Long.numberOfLeadingZeros(significand);
+		long normalized = significand << zeros;
+		// 217706 / 2^16 approximates log2(10)
+		long binaryExponent = ((217706L * exponent) >> 16) + 64 + EXPONENT_BIAS - zeros;
+
+		long[] power = Table.POWERS[exponent - MIN_EXPONENT];
+		long high = unsignedMultiplyHigh(normalized, power[0]);
+		long low = normalized * power[0];
+
+		// if the low bits of the product might carry into the result, use the next 64 bits of the
+		// power too
+		if ((high & 0x1ff) == 0x1ff && Long.compareUnsigned(low + normalized, normalized) < 0) {
+			long nextHigh = unsignedMultiplyHigh(normalized, power[1]);
+			long nextLow = normalized * power[1];
+			long mergedLow = low + nextHigh;
+			long mergedHigh = high;
+			if (Long.compareUnsigned(mergedLow, low) < 0) {
+				mergedHigh++;
+			}
+			if ((mergedHigh & 0x1ff) == 0x1ff && mergedLow + 1 == 0 &&
+					  Long.compareUnsigned(nextLow + normalized, normalized) < 0) {
+				return UNDECIDED;
+			}
+			high = mergedHigh;
+			low = mergedLow;
+		}
+
+		// keep 54 bits, one more than a double has, to round with
+		int top = (int) (high >>> 63);
+		long mantissa = high >>> (top + 9);
+		binaryExponent -= 1 ^ top;
+
+		// exactly halfway between two doubles cannot be told apart from just below or above it
+		if (low == 0 && (high & 0x1ff) == 0 && (mantissa & 3) == 1) {
+			return UNDECIDED;
+		}
+
+		// round half to even to 53 bits
+		mantissa += mantissa & 1;
+		mantissa >>>= 1;
+		if ((mantissa >>> 53) > 0) {
+			mantissa >>>= 1;
+			binaryExponent++;
+		}
+
+		// subnormal numbers, infinities, and NaN are left to the caller
+		if (binaryExponent <= 0 || binaryExponent >= 0x7ff) {
+			return UNDECIDED;
+		}
+		return Double.longBitsToDouble(binaryExponent << 52 | (mantissa & 0xfffffffffffffL));
+	}
+
+	/**
+	 * @param x An unsigned long.
+	 * @param y An unsigned long.
+	 * @return The high 64 bits of the unsigned 128-bit product of x and y.
+	 */
+	static long unsignedMultiplyHigh(long x, long y) {
+		// the signed high product, as Math.multiplyHigh computes it from Java 9
+		long x1 = x >> 32;
+		long x2 = x & 0xffffffffL;
+		long y1 = y >> 32;
+		long y2 = y & 0xffffffffL;
+		long z2 = x2 * y2;
+		long t = x1 * y2 + (z2 >>> 32);
+		long z1 = (t & 0xffffffffL) + x2 * y1;
+		long signed = x1 * y1 + (t >> 32) + (z1 >> 32);
+		return signed + ((x >> 63) & y) + ((y >> 63) & x);
+	}
+
+	/**
+	 * The 128-bit approximations of the powers of ten, built on first use so that inputs whose
+	 * numbers all convert exactly never pay for it.
+	 */
+	private static final class Table {
+
+		/**
+		 * The most significant 128 bits of each power of ten from MIN_EXPONENT, rounded down,
+		 * as the high and then the low 64 bits.
+		 */
+		static final long[][] POWERS = new long[MAX_EXPONENT - MIN_EXPONENT + 1][];
+
+		static {
+			BigInteger mask = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+			for (int exponent = MIN_EXPONENT; exponent <= MAX_EXPONENT; exponent++) {
+				BigInteger bits;
+				if (exponent >= 0) {
+					bits = BigInteger.TEN.pow(exponent);
+					int shift = bits.bitLength() - 128;
+					bits = shift >= 0 ? bits.shiftRight(shift) : bits.shiftLeft(-shift);
+				} else {
+					// the reciprocal, scaled to between 2^127 and 2^128
+					BigInteger divisor = BigInteger.TEN.pow(-exponent);
+					bits = BigInteger.ONE.shiftLeft(divisor.bitLength() + 127).divide(divisor);
+				}
+				POWERS[exponent - MIN_EXPONENT] = new long[] {
+						  bits.shiftRight(64).longValue(), bits.and(mask).longValue(),
+				};
+			}
+		}
+	}
+}
@@ -0,0 +1,14 @@
+/**
+ * Something that evaluates a compiled math expression for given variable bindings.
+ */
+public interface Evaluator {
+
+	/**
+	 * Evaluates the expression.
+	 *
+	 * @param bindings The values of the variables, indexed by binding slot.
+	 * @return The result of the expression.
+	 * @throws IllegalArgumentException If there are fewer bindings than variables.
+	 */
+	double evaluate(double... bindings);
+}
@@ -0,0 +1,189 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A math expression that has been lexed and parsed once so that it can be evaluated many times.
+ *
+ * Expressions are immutable and can be shared between threads. Variables are bound by slot: the
+ * value of the variable in slot i is bindings[i] when the expression is evaluated.
+ *
+ * Each expression computes sin, cos, tan, and powers in a MathMode, STRICT unless it was made
+ * with withMathMode, and every engine compiled from it computes them in the same mode.
+ */
+public final class Expression implements Evaluator {
+
+	private final String source;
+	private final Parser.TreeNode root;
+	private final String[] variables;
+	private final MathMode mode;
+	// a tree too deep to evaluate recursively is compiled once, on its first evaluation
+	private volatile PostfixProgram deepProgram;
+	private volatile boolean depthChecked;
+
+	/**
+	 * Creates a new Expression from a syntax tree that is never modified afterwards.
+	 *
+	 * @param source    The string the expression was compiled from.
+	 * @param root      The root of the expression's syntax tree.
+	 * @param variables The names of the expression's variables, indexed by binding slot.
+	 */
+	Expression(String source, Parser.TreeNode root, List<String> variables) {
+		this(source, root, variables.toArray(new String[0]), MathMode.STRICT);
+	}
+
+	private Expression(String source, Parser.TreeNode root, String[] variables, MathMode mode) {
+		this.source = source;
+		this.root = root;
+		this.variables = variables;
+		this.mode = mode;
+	}
+
+	/**
+	 * Creates an expression with the same source, variable slots, and mode as this one but a
+	 * different syntax tree, such as an optimized one.
+	 *
+	 * @param newRoot The root of the new syntax tree, which is never modified afterwards.
+	 * @return The new expression.
+	 */
+	Expression withRoot(Parser.TreeNode newRoot) {
+		return new Expression(source, newRoot, variables, mode);
+	}
+
+	/**
+	 * Creates an expression with a different source that evaluates to the same results as this
+	 * one, with its variables bound in the given order, such as another input with the same
+	 * canonical form. The syntax tree is shared unless a variable moves to a different slot.
+	 *
+	 * @param newSource    The source of the new expression.
+	 * @param newVariables The names of this expression's variables, and possibly others, in the
+	 *                     order of their new binding slots.
+	 * @return The new expression.
+	 */
+	Expression withSource(String newSource, List<String> newVariables) {
+		String[] names = newVariables.toArray(new String[0]);
+		if (Arrays.equals(names, variables)) {
+			return new Expression(newSource, root, variables, mode);
+		}
+
+		int[] slots = new int[variables.length];
+		for (int i = 0; i < variables.length; i++) {
+			slots[i] = newVariables.indexOf(variables[i]);
+		}
+		// copy the tree children first, binding each variable to its new slot
+		List<Parser.TreeNode> operands = new ArrayList<>();
+		for (Parser.TreeNode node : Parser.postOrder(root)) {
+			if (node == null) {
+				operands.add(null);
+				continue;
+			}
+			Parser.TreeNode right = null;
+			Parser.TreeNode left = null;
+			if (Parser.readsRight(node.token)) {
+				right = operands.remove(operands.size() - 1);
+			}
+			if (Parser.readsLeft(node.token)) {
+				left = operands.remove(operands.size() - 1);
+			}
+			Token token = node.token;
+			if (token.getType() == TokenType.VARIABLE) {
+				VariableToken variable = (VariableToken) token;
+				token = new VariableToken(variable.getName(), slots[variable.getSlot()]);
+			}
+			operands.add(new Parser.TreeNode(token, left, right));
+		}
+		return new Expression(newSource, operands.get(0), names, mode);
+	}
+
+	/**
+	 * Creates an expression with the same source and variable slots as this one that computes
+	 * sin, cos, tan, and powers in the given mode.
+	 *
+	 * @param newMode The mode of the new expression.
+	 * @return The new expression, or this one if it is already in the mode.
+	 */
+	public Expression withMathMode(MathMode newMode) {
+		if (newMode == mode) {
+			return this;
+		}
+		return new Expression(source, FastMath.rewrite(root, newMode), variables, newMode);
+	}
+
+	/**
+	 * @return The mode the expression computes sin, cos, tan, and powers in.
+	 */
+	public MathMode getMathMode() {
+		return mode;
+	}
+
+	/**
+	 * @return The number of variables, and so the number of bindings needed to evaluate.
+	 */
+	public int getVariableCount() {
+		return variables.length;
+	}
+
+	/**
+	 * @param slot The binding slot of a variable.
+	 * @return The name of the variable bound by the given slot.
+	 */
+	public String getVariable(int slot) {
+		return variables[slot];
+	}
+
+	/**
+	 * @param name The name of a variable.
+	 * @return The binding slot of the variable, or -1 if the expression has no such variable.
+	 */
+	public int indexOf(String name) {
+		for (int i = 0; i < variables.length; i++) {
+			if (variables[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Evaluates the expression.
+	 *
+	 * @param bindings The values of the variables, indexed by binding slot.
+	 * @return The result of the expression.
+	 * @throws IllegalArgumentException If there are fewer bindings than variables.
+	 */
+	public double evaluate(double... bindings) {
+		if (bindings.length < variables.length) {
+			throw new IllegalArgumentException("Expected " + variables.length +
+					  " bindings but got " + bindings.length);
+		}
+		return Parser.evaluate(source, root, getDeepProgram(), bindings, Parser.getMetrics());
+	}
+
+	/**
+	 * @return The program compiled from the tree if it is too deep to evaluate recursively,
+	 * otherwise null. Threads that race to compile it each compile one, and either is kept.
+	 */
+	private PostfixProgram getDeepProgram() {
+		if (!depthChecked) {
+			if (Parser.isTooDeepToRecurse(root)) {
+				deepProgram = PostfixProgram.compile(this);
+			}
+			depthChecked = true;
+		}
+		return deepProgram;
+	}
+
+	/**
+	 * @return The root of the expression's syntax tree, which must not be modified.
+	 */
+	Parser.TreeNode getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return The string the expression was compiled from.
+	 */
+	public String toString() {
+		return source;
+	}
+}
@@ -0,0 +1,378 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe, size-bounded cache of compiled expressions, keyed by their source text.
+ *
+ * A hit is a lookup in a ConcurrentHashMap and at most one write to the entry's reference bit,
+ * with no locking, so any number of threads can share one compiled Expression. On a miss the
+ * input is compiled once even if several threads ask for it at the same time, and inputs with
+ * syntax errors are not cached.
+ *
+ * When the cache is over its maximum size, entries are evicted with the CLOCK algorithm, an
+ * approximation of least-recently-used: entries wait in insertion order, and an entry that has
+ * been hit since it was last examined gets a second chance at the back of the queue instead of
+ * being evicted. Entries can also expire a fixed time after they are compiled.
+ *
+ * A normalizing cache keys expressions by their canonical form from Canonicalizer, so inputs that
+ * differ only in whitespace, redundant parentheses, number formatting, or the order of the
+ * operands of + and * share one entry. The canonical form of each input is remembered, so only
+ * the first lookup of an input pays for compiling and canonicalizing it, and the canonical form
+ * is not compiled again: its entry shares the tree of the input that first had it, which gives
+ * the same results. Up to four times the maximum size of inputs are remembered, and the least
+ * recently used of them are forgotten one at a time with the same CLOCK algorithm. The syntax
+ * tree is shared, but each input gets an expression with its own source and its variables in the
+ * order they appear in it, just as Parser.compile would bind them; inputs whose variables appear
+ * in the same order share one copy of the tree.
+ */
+public class ExpressionCache {
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+	private final Queue<Entry> clock = new ConcurrentLinkedQueue<>();
+	private final int maximumSize;
+	private final long expireAfterNanos;
+
+	// the canonical form of each input, when normalizing; null otherwise
+	private final ConcurrentHashMap<String, Form> canonicalForms;
+	private final Queue<Form> formClock = new ConcurrentLinkedQueue<>();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Creates a new cache whose entries never expire.
+	 *
+	 * @param maximumSize The largest number of expressions to keep.
+	 */
+	public ExpressionCache(int maximumSize) {
+		this(maximumSize, 0, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param maximumSize The largest number of expressions to keep.
+	 * @param expireAfter How long after it is compiled an expression expires, or 0 to never
+	 *                    expire.
+	 * @param unit        The unit of expireAfter.
+	 * @throws IllegalArgumentException If maximumSize is not positive or expireAfter is negative.
+	 */
+	public ExpressionCache(int maximumSize, long expireAfter, TimeUnit unit) {
+		this(maximumSize, expireAfter, unit, false);
+	}
+
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param maximumSize The largest number of expressions to keep.
+	 * @param expireAfter How long after it is compiled an expression expires, or 0 to never
+	 *                    expire.
+	 * @param unit        The unit of expireAfter.
+	 * @param normalize   True to key expressions by their canonical form rather than their
+	 *                    source text.
+	 * @throws IllegalArgumentException If maximumSize is not positive or expireAfter is negative.
+	 */
+	public ExpressionCache(int maximumSize, long expireAfter, TimeUnit unit, boolean normalize) {
+		if (maximumSize <= 0) {
+			throw new IllegalArgumentException("Maximum size must be positive: " + maximumSize);
+		}
+		if (expireAfter < 0) {
+			throw new IllegalArgumentException("Expiry must not be negative: " + expireAfter);
+		}
+		this.maximumSize = maximumSize;
+		this.expireAfterNanos = unit.toNanos(expireAfter);
+		this.canonicalForms = normalize ? new ConcurrentHashMap<String, Form>() : null;
+	}
+
+	/**
+	 * Gets the compiled form of the given input, compiling it if it is not cached.
+	 *
+	 * @param input The string to compile.
+	 * @return The compiled expression, shared with every other caller for the same input.
+	 * @throws IOException If the input cannot be compiled.
+	 */
+	public Expression get(String input) throws IOException {
+		if (canonicalForms != null) {
+			Form form = canonicalForms.get(input);
+			if (form != null) {
+				if (!form.referenced) {
+					form.referenced = true;
+				}
+				return form.getExpression(getEntry(form.canonical, null));
+			}
+
+			Expression expression = Parser.compile(input);
+			form = addCanonicalForm(input, expression);
+			// the canonical form has the same results, so it can share the input's tree
+			Expression canonical = expression.withSource(form.canonical, form.variables);
+			return form.getExpression(getEntry(form.canonical, canonical));
+		}
+		return getEntry(input, null).expression;
+	}
+
+	/**
+	 * @param input    The string to compile, or its canonical form when normalizing.
+	 * @param compiled The input already compiled, to use if it is not cached, or null to
+	 *                 compile it.
+	 * @return The entry for the input, compiling it if it is not cached.
+	 * @throws IOException If the input cannot be compiled.
+	 */
+	private Entry getEntry(String input, Expression compiled) throws IOException {
+		Entry entry = entries.get(input);
+		if (entry != null && !isExpired(entry)) {
+			// only write when the bit changes, so hot entries are not written on every hit
+			if (!entry.referenced) {
+				entry.referenced = true;
+			}
+			hits.increment();
+			recordLookup(true);
+			return entry;
+		}
+
+		misses.increment();
+		recordLookup(false);
+		if (entry != null && entries.remove(input, entry)) {
+			clock.remove(entry);
+		}
+
+		Entry created;
+		try {
+			created = entries.computeIfAbsent(input, key -> {
+				try {
+					Expression expression = compiled != null ? compiled : Parser.compile(key);
+					Entry newEntry = new Entry(key, expression, System.nanoTime());
+					clock.add(newEntry);
+					return newEntry;
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+		evictIfNeeded();
+		return created;
+	}
+
+	/**
+	 * Remembers the canonical form of an input, forgetting others if too many are remembered.
+	 *
+	 * @param input      The input.
+	 * @param expression The input compiled.
+	 * @return The canonical form of the input.
+	 */
+	private Form addCanonicalForm(String input, Expression expression) {
+		List<String> variables = new ArrayList<>();
+		for (int slot = 0; slot < expression.getVariableCount(); slot++) {
+			variables.add(expression.getVariable(slot));
+		}
+		Form form = new Form(input, Canonicalizer.canonicalize(expression.getRoot()), variables);
+		Form existing = canonicalForms.putIfAbsent(input, form);
+		if (existing != null) {
+			return existing;
+		}
+		formClock.add(form);
+
+		// many inputs can share a canonical form, so bound the inputs remembered separately
+		if (canonicalForms.size() > maximumSize * 4) {
+			synchronized (formClock) {
+				while (canonicalForms.size() > maximumSize * 4) {
+					Form oldest = formClock.poll();
+					if (oldest == null) {
+						break;
+					}
+					if (oldest.referenced) {
+						oldest.referenced = false;
+						formClock.add(oldest);
+					} else {
+						canonicalForms.remove(oldest.input, oldest);
+					}
+				}
+			}
+		}
+		return form;
+	}
+
+	/**
+	 * @param hit True if the lookup found a cached expression.
+	 */
+	private static void recordLookup(boolean hit) {
+		ParseMetrics metrics = Parser.getMetrics();
+		if (metrics != null) {
+			metrics.recordCacheLookup(hit);
+		}
+	}
+
+	/**
+	 * @param entry An entry in the cache.
+	 * @return True if the entry has expired, false otherwise.
+	 */
+	private boolean isExpired(Entry entry) {
+		return expireAfterNanos > 0 && System.nanoTime() - entry.created >= expireAfterNanos;
+	}
+
+	/**
+	 * Evicts entries until the cache is no larger than its maximum size.
+	 */
+	private void evictIfNeeded() {
+		if (entries.size() <= maximumSize) {
+			return;
+		}
+
+		synchronized (clock) {
+			while (entries.size() > maximumSize) {
+				Entry entry = clock.poll();
+				if (entry == null) {
+					return;
+				}
+
+				if (entries.get(entry.key) != entry) {
+					// already removed because it expired
+					continue;
+				}
+				if (entry.referenced && !isExpired(entry)) {
+					entry.referenced = false;
+					clock.add(entry);
+				} else if (entries.remove(entry.key, entry)) {
+					evictions.increment();
+					ParseMetrics metrics = Parser.getMetrics();
+					if (metrics != null) {
+						metrics.recordCacheEviction();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The number of expressions in the cache.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Removes every expression from the cache. The counters are not reset.
+	 */
+	public void clear() {
+		synchronized (clock) {
+			entries.clear();
+			clock.clear();
+			if (canonicalForms != null) {
+				canonicalForms.clear();
+				formClock.clear();
+			}
+		}
+	}
+
+	/**
+	 * @return The number of lookups that found a cached expression.
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return The number of lookups that had to compile their input.
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return The number of expressions evicted to keep the cache within its maximum size.
+	 */
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	/**
+	 * A cached expression.
+	 */
+	private static class Entry {
+		private final String key;
+		private final Expression expression;
+		private final long created;
+		private volatile boolean referenced;
+		// the expression with its variables in each order asked for, when normalizing
+		private final ConcurrentHashMap<List<String>, Expression> orders =
+				  new ConcurrentHashMap<>();
+
+		/**
+		 * @param key        The source text of the expression.
+		 * @param expression The compiled expression.
+		 * @param created    The System.nanoTime at which the expression was compiled.
+		 */
+		Entry(String key, Expression expression, long created) {
+			this.key = key;
+			this.expression = expression;
+			this.created = created;
+		}
+
+		/**
+		 * @param variables The names of the variables in the order of their binding slots.
+		 * @return The expression with its variables in that order.
+		 */
+		Expression inOrder(List<String> variables) {
+			return orders.computeIfAbsent(variables, order -> expression.withSource(key, order));
+		}
+	}
+
+	/**
+	 * An input to a normalizing cache, with the expression last returned for it.
+	 */
+	private static final class Form {
+		private final String input;
+		private final String canonical;
+		private final List<String> variables;
+		private volatile View returned;
+		private volatile boolean referenced;
+
+		/**
+		 * @param input     The input.
+		 * @param canonical The canonical form of the input.
+		 * @param variables The names of the input's variables in the order they appear.
+		 */
+		Form(String input, String canonical, List<String> variables) {
+			this.input = input;
+			this.canonical = canonical;
+			this.variables = variables;
+		}
+
+		/**
+		 * @param entry The entry for the canonical form.
+		 * @return An expression with the entry's syntax tree and the input's source and variable
+		 * order, the same one as last time if the entry is the same.
+		 */
+		Expression getExpression(Entry entry) {
+			View last = returned;
+			if (last == null || last.entry != entry) {
+				last = new View(entry, entry.inOrder(variables).withSource(input, variables));
+				returned = last;
+			}
+			return last.expression;
+		}
+	}
+
+	/**
+	 * An expression returned for an input, and the entry it was made from.
+	 */
+	private static final class View {
+		private final Entry entry;
+		private final Expression expression;
+
+		View(Entry entry, Expression expression) {
+			this.entry = entry;
+			this.expression = expression;
+		}
+	}
+}
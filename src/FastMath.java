@@ -0,0 +1,305 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fast approximations of sin, cos, tan, and pow, for expressions evaluated in MathMode.FAST.
+ *
+ * sin, cos, and tan reduce their argument to within pi/4 of a multiple of pi/2 and evaluate the
+ * Taylor polynomials of sin and cos, of degrees 13 and 12, on the rest. sin and cos pick the
+ * polynomial and its sign by the quadrant of the multiple, and tan divides them. So the
+ * polynomials are only used where they are accurate to about 1e-13, sin and cos never exceed 1
+ * in magnitude, and cos(0), sin(pi/2), and the like are exactly 1. The reduction subtracts pi in
+ * three parts, so it is exact to well below the truncation error of the polynomials for every
+ * argument up to MAX_REDUCED_ARGUMENT in magnitude; larger arguments, infinities, and NaN are
+ * passed to Math.
+ *
+ * pow raises to integer exponents up to MAX_INTEGER_EXPONENT in magnitude by repeated squaring,
+ * which is exact to a few ulps, and positive bases to the integers between plus a half by also
+ * multiplying by the square root. Other exponents, and results that overflow or lose precision
+ * to underflow, are passed to Math.pow, whose intrinsic is faster than an approximation of the
+ * logarithm and exponential precise enough for large powers, so special cases get exactly the
+ * strict result.
+ *
+ * Every approximation is within MAX_RELATIVE_ERROR of its strict counterpart in Math, which
+ * AccuracyHarness checks over dense sweeps of inputs.
+ *
+ * An expression in MathMode.FAST has a syntax tree whose sin, cos, tan, and exponent nodes are
+ * calls to these functions instead, so every engine that compiles the expression, from the
+ * PostfixProgram to the JitCompiler, evaluates the approximations through its ordinary calls.
+ */
+public final class FastMath {
+
+	/**
+	 * The largest relative error of any approximation from its strict counterpart in Math.
+	 */
+	public static final double MAX_RELATIVE_ERROR = 1e-8;
+
+	/**
+	 * The largest argument, in magnitude, that sin, cos, and tan approximate, which keeps the
+	 * multiples of pi/2 that are subtracted from it exact.
+	 */
+	public static final double MAX_REDUCED_ARGUMENT = 0x1p20;
+
+	/**
+	 * The largest exponent, in magnitude, that pow computes by repeated squaring.
+	 */
+	public static final int MAX_INTEGER_EXPONENT = 64;
+
+	/**
+	 * sin, cos, tan, and pow as functions that a syntax tree can call.
+	 */
+	static final MathFunction SIN = MathFunction.unary("sin", true, FastMath::sin);
+	static final MathFunction COS = MathFunction.unary("cos", true, FastMath::cos);
+	static final MathFunction TAN = MathFunction.unary("tan", true, FastMath::tan);
+	static final MathFunction POW = MathFunction.binary("pow", true, FastMath::pow);
+
+	// the tokens of calls to the functions, which are not registered, so have no id
+	private static final FunctionToken SIN_TOKEN = new FunctionToken(SIN, -1);
+	private static final FunctionToken COS_TOKEN = new FunctionToken(COS, -1);
+	private static final FunctionToken TAN_TOKEN = new FunctionToken(TAN, -1);
+	private static final FunctionToken POW_TOKEN = new FunctionToken(POW, -1);
+
+	private static final double TWO_OVER_PI = 0x1.45f306dc9c883p-1;
+
+	// pi split into two 33-bit parts and the rest, so that the first two parts times any multiple
+	// of 1/2 up to 2^19 are exact
+	private static final double PI_HIGH = 0x1.921fb544p1;
+	private static final double PI_MIDDLE = 0x1.0b4611a6p-33;
+	private static final double PI_LOW = 0x1.3198a2e037073p-68;
+
+	private FastMath() {
+	}
+
+	/**
+	 * @param x An angle in radians.
+	 * @return The sine of the angle, within MAX_RELATIVE_ERROR of Math.sin.
+	 */
+	public static double sin(double x) {
+		if (!(Math.abs(x) <= MAX_REDUCED_ARGUMENT)) {
+			return Math.sin(x);
+		} else if (x == 0) {
+			// the reduction would turn -0.0 into 0.0
+			return x;
+		}
+		double n = Math.rint(x * TWO_OVER_PI);
+		return quadrant(reduce(x, 0.5 * n), (long) n);
+	}
+
+	/**
+	 * @param x An angle in radians.
+	 * @return The cosine of the angle, within MAX_RELATIVE_ERROR of Math.cos.
+	 */
+	public static double cos(double x) {
+		if (!(Math.abs(x) <= MAX_REDUCED_ARGUMENT)) {
+			return Math.cos(x);
+		}
+		// cos(x) = sin(x + pi/2)
+		double n = Math.rint(x * TWO_OVER_PI);
+		return quadrant(reduce(x, 0.5 * n), (long) n + 1);
+	}
+
+	/**
+	 * @param x An angle in radians.
+	 * @return The tangent of the angle, within MAX_RELATIVE_ERROR of Math.tan.
+	 */
+	public static double tan(double x) {
+		if (!(Math.abs(x) <= MAX_REDUCED_ARGUMENT)) {
+			return Math.tan(x);
+		} else if (x == 0) {
+			// the reduction would turn -0.0 into 0.0
+			return x;
+		}
+		// tan(n pi/2 + r) is sin(r) / cos(r) for even n and -cos(r) / sin(r) for odd n
+		double n = Math.rint(x * TWO_OVER_PI);
+		double r = reduce(x, 0.5 * n);
+		double sin = sinPolynomial(r);
+		double cos = cosPolynomial(r);
+		if (((long) n & 1) == 0) {
+			return sin / cos;
+		}
+		return -cos / sin;
+	}
+
+	/**
+	 * @param r An angle of at most pi/4 in magnitude.
+	 * @param n The quadrant, an integer.
+	 * @return The sine of n pi/2 + r.
+	 */
+	private static double quadrant(double r, long n) {
+		// sin(n pi/2 + r) is sin(r), cos(r), -sin(r), and -cos(r) for n = 0, 1, 2, and 3 mod 4
+		double value = (n & 1) == 0 ? sinPolynomial(r) : cosPolynomial(r);
+		return flipSign(value, n >> 1);
+	}
+
+	/**
+	 * @param x        An angle in radians, at most MAX_REDUCED_ARGUMENT in magnitude.
+	 * @param multiple The multiple of pi nearest to the angle, a multiple of 1/2.
+	 * @return The angle minus the multiple of pi.
+	 */
+	private static double reduce(double x, double multiple) {
+		return ((x - multiple * PI_HIGH) - multiple * PI_MIDDLE) - multiple * PI_LOW;
+	}
+
+	/**
+	 * @param x A number.
+	 * @param n An integer.
+	 * @return x if n is even, and -x if n is odd.
+	 */
+	private static double flipSign(double x, long n) {
+		return Double.longBitsToDouble(Double.doubleToRawLongBits(x) ^ n << 63);
+	}
+
+	/**
+	 * @param r An angle of at most pi/4 in magnitude.
+	 * @return The sine of the angle.
+	 */
+	private static double sinPolynomial(double r) {
+		double z = r * r;
+		return r + r * z * (-1.0 / 6 + z * (1.0 / 120 + z * (-1.0 / 5040 + z * (1.0 / 362880 +
+				  z * (-1.0 / 39916800 + z * (1.0 / 6227020800L))))));
+	}
+
+	/**
+	 * @param r An angle of at most pi/4 in magnitude.
+	 * @return The cosine of the angle, at most 1.
+	 */
+	private static double cosPolynomial(double r) {
+		double z = r * r;
+		return 1 + z * (-0.5 + z * (1.0 / 24 + z * (-1.0 / 720 + z * (1.0 / 40320 +
+				  z * (-1.0 / 3628800 + z * (1.0 / 479001600))))));
+	}
+
+	/**
+	 * @param x The base.
+	 * @param y The exponent.
+	 * @return x raised to the power of y, within MAX_RELATIVE_ERROR of Math.pow.
+	 */
+	public static double pow(double x, double y) {
+		double twice = 2 * y;
+		int n = (int) twice;
+		if (n == twice && n >= -2 * MAX_INTEGER_EXPONENT && n <= 2 * MAX_INTEGER_EXPONENT) {
+			double power;
+			if ((n & 1) == 0) {
+				power = integerPower(x, n >> 1);
+			} else if (x > 0 && x < Double.POSITIVE_INFINITY) {
+				// x^(k + 1/2) = x^k * sqrt(x)
+				power = integerPower(x, n >> 1) * Math.sqrt(x);
+			} else {
+				return Math.pow(x, y);
+			}
+			if (isNormal(power)) {
+				return power;
+			}
+		}
+		return Math.pow(x, y);
+	}
+
+	/**
+	 * @param x The base.
+	 * @param n The exponent, at most MAX_INTEGER_EXPONENT in magnitude.
+	 * @return x raised to the power of n.
+	 */
+	static double integerPower(double x, int n) {
+		double power = 1;
+		double square = x;
+		for (int bits = Math.abs(n); bits != 0; bits >>= 1) {
+			if ((bits & 1) != 0) {
+				power *= square;
+			}
+			square *= square;
+		}
+		return n < 0 ? 1 / power : power;
+	}
+
+	/**
+	 * @param x A number.
+	 * @return True if x is a finite number whose precision has not been lost to underflow,
+	 * false if it is subnormal, zero, infinite, or NaN.
+	 */
+	private static boolean isNormal(double x) {
+		double magnitude = Math.abs(x);
+		return magnitude >= Double.MIN_NORMAL && magnitude <= Double.MAX_VALUE;
+	}
+
+	/**
+	 * Builds a copy of the tree rooted at the given node that computes sin, cos, tan, and powers
+	 * in the given mode, children first and without recursing. Children that the evaluator never
+	 * reads are dropped.
+	 *
+	 * @param root The root of the tree, or null.
+	 * @param mode The mode to compute in.
+	 * @return The root of the copy, or null if root is null.
+	 */
+	static Parser.TreeNode rewrite(Parser.TreeNode root, MathMode mode) {
+		// the copies of the operands of the nodes still to come
+		List<Parser.TreeNode> operands = new ArrayList<>();
+		for (Parser.TreeNode node : Parser.postOrder(root)) {
+			if (node == null) {
+				operands.add(null);
+				continue;
+			}
+			Parser.TreeNode right = null;
+			Parser.TreeNode left = null;
+			if (Parser.readsRight(node.token)) {
+				right = operands.remove(operands.size() - 1);
+			}
+			if (Parser.readsLeft(node.token)) {
+				left = operands.remove(operands.size() - 1);
+			}
+			if (mode == MathMode.FAST) {
+				operands.add(approximate(node.token, left, right));
+			} else {
+				operands.add(strict(node.token, left, right));
+			}
+		}
+		return operands.get(0);
+	}
+
+	/**
+	 * @param token The token of a node.
+	 * @param left  The copy of its left child, or null.
+	 * @param right The copy of its right child, or null.
+	 * @return A copy of the node that calls the approximations instead of sin, cos, tan, or pow.
+	 */
+	private static Parser.TreeNode approximate(Token token, Parser.TreeNode left,
+	                                           Parser.TreeNode right) {
+		TokenType type = token.getType();
+		if (type == TokenType.SIN) {
+			return new Parser.TreeNode(SIN_TOKEN, null, right);
+		} else if (type == TokenType.COS) {
+			return new Parser.TreeNode(COS_TOKEN, null, right);
+		} else if (type == TokenType.TAN) {
+			return new Parser.TreeNode(TAN_TOKEN, null, right);
+		} else if (type == TokenType.EXPONENT) {
+			Parser.TreeNode arguments =
+					  new Parser.TreeNode(Token.valueOf(TokenType.COMMA), left, right);
+			return new Parser.TreeNode(POW_TOKEN, null, arguments);
+		}
+		return new Parser.TreeNode(token, left, right);
+	}
+
+	/**
+	 * @param token The token of a node.
+	 * @param left  The copy of its left child, or null.
+	 * @param right The copy of its right child, or null.
+	 * @return A copy of the node that computes sin, cos, tan, or pow strictly, if it calls the
+	 * approximations.
+	 */
+	private static Parser.TreeNode strict(Token token, Parser.TreeNode left,
+	                                      Parser.TreeNode right) {
+		if (token.getType() == TokenType.FUNCTION) {
+			MathFunction function = ((FunctionToken) token).getFunction();
+			if (function == SIN) {
+				return new Parser.TreeNode(Token.valueOf(TokenType.SIN), null, right);
+			} else if (function == COS) {
+				return new Parser.TreeNode(Token.valueOf(TokenType.COS), null, right);
+			} else if (function == TAN) {
+				return new Parser.TreeNode(Token.valueOf(TokenType.TAN), null, right);
+			} else if (function == POW) {
+				return new Parser.TreeNode(Token.valueOf(TokenType.EXPONENT), right.left,
+						  right.right);
+			}
+		}
+		return new Parser.TreeNode(token, left, right);
+	}
+}
@@ -0,0 +1,253 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Evaluates files of math expressions, one expression per line, in bulk.
+ *
+ * The file is split on line boundaries into pieces, and each piece is memory-mapped and
+ * evaluated on a thread pool. Lines are parsed straight from the mapped bytes through a reused
+ * ByteCharSequence and ArenaParser, with no String per line. The result of each line is written
+ * to the output as text, one per line, in the same order as the input; pieces are written as soon
+ * as they and all the pieces before them are done, so only a few pieces are held in memory at
+ * once.
+ *
+ * A line that cannot be evaluated is written as an empty line and reported as a LineError, and
+ * the rest of the file is still evaluated.
+ */
+public class FileEvaluator {
+
+	private static final int MIN_PIECE_SIZE = 1 << 16;
+	private static final int MAX_PIECE_SIZE = 1 << 26;
+
+	/**
+	 * Evaluates every line of the given file.
+	 *
+	 * @param input   The file of expressions, one per line, in ASCII.
+	 * @param output  The channel the results are written to.
+	 * @param threads The number of threads to evaluate on.
+	 * @return The lines that could not be evaluated, in order.
+	 * @throws IOException If the input cannot be read or the output cannot be written.
+	 */
+	public static List<LineError> evaluate(Path input, WritableByteChannel output, int threads)
+			  throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+			return evaluate(channel, output, executor, threads);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @param channel  The file of expressions.
+	 * @param output   The channel the results are written to.
+	 * @param executor The executor to evaluate pieces on.
+	 * @param threads  The number of threads of the executor.
+	 * @return The lines that could not be evaluated, in order.
+	 * @throws IOException If the input cannot be read or the output cannot be written.
+	 */
+	private static List<LineError> evaluate(FileChannel channel, WritableByteChannel output,
+	                                        ExecutorService executor, int threads)
+			  throws IOException {
+		long size = channel.size();
+		long pieceSize = Math.min(MAX_PIECE_SIZE, Math.max(MIN_PIECE_SIZE, size / (threads * 4L)));
+
+		List<LineError> errors = new ArrayList<>();
+		Queue<Future<Piece>> pending = new ArrayDeque<>();
+		int linesBefore = 0;
+		long start = 0;
+		while (start < size || !pending.isEmpty()) {
+			// keep a couple of pieces per thread in flight
+			while (start < size && pending.size() < threads * 2) {
+				long end = findLineEnd(channel, Math.min(size, start + pieceSize), size);
+				pending.add(executor.submit(new Piece(channel, start, end)));
+				start = end;
+			}
+
+			Piece piece = await(pending.remove());
+			for (LineError error : piece.errors) {
+				errors.add(new LineError(linesBefore + error.line, error.message));
+			}
+			linesBefore += piece.lines;
+
+			ByteBuffer results = ByteBuffer.wrap(piece.results);
+			while (results.hasRemaining()) {
+				output.write(results);
+			}
+		}
+		return errors;
+	}
+
+	/**
+	 * @param channel  The file of expressions.
+	 * @param position A position in the file.
+	 * @param size     The size of the file.
+	 * @return The position just past the first newline at or after position, or the size.
+	 * @throws IOException If the file cannot be read.
+	 */
+	private static long findLineEnd(FileChannel channel, long position, long size)
+			  throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		while (position < size) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			for (int i = 0; i < read; i++) {
+				if (buffer.get(i) == '\n') {
+					return position + i + 1;
+				}
+			}
+			position += read;
+		}
+		return size;
+	}
+
+	/**
+	 * @param future The future of an evaluated piece.
+	 * @return The piece.
+	 * @throws IOException If the piece could not be read.
+	 */
+	private static Piece await(Future<Piece> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while evaluating", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Failed to evaluate", e.getCause());
+		}
+	}
+
+	/**
+	 * A line that could not be evaluated.
+	 */
+	public static class LineError {
+		private final int line;
+		private final String message;
+
+		/**
+		 * @param line    The number of the line, starting at 1.
+		 * @param message Why the line could not be evaluated.
+		 */
+		LineError(int line, String message) {
+			this.line = line;
+			this.message = message;
+		}
+
+		/**
+		 * @return The number of the line, starting at 1.
+		 */
+		public int getLine() {
+			return line;
+		}
+
+		/**
+		 * @return Why the line could not be evaluated.
+		 */
+		public String getMessage() {
+			return message;
+		}
+
+		/**
+		 * @return A string representation of the error.
+		 */
+		public String toString() {
+			return "Line " + line + ": " + message;
+		}
+	}
+
+	/**
+	 * A range of whole lines of the file, evaluated on one thread.
+	 */
+	private static class Piece implements Callable<Piece> {
+		private final FileChannel channel;
+		private final long start;
+		private final long end;
+
+		private int lines;
+		private List<LineError> errors = Collections.emptyList();
+		private byte[] results;
+
+		/**
+		 * @param channel The file of expressions.
+		 * @param start   The position of the first byte of the first line.
+		 * @param end     The position just past the newline of the last line, or the end of
+		 *                the file.
+		 */
+		Piece(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+		}
+
+		/**
+		 * Evaluates every line of the piece.
+		 *
+		 * @return This piece, with its results and errors. Line numbers count from the start of
+		 * the piece.
+		 * @throws IOException If the piece cannot be mapped.
+		 */
+		public Piece call() throws IOException {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+			ByteCharSequence line = new ByteCharSequence();
+			ArenaParser parser = new ArenaParser();
+			StringBuilder out = new StringBuilder();
+
+			int length = buffer.capacity();
+			int lineStart = 0;
+			while (lineStart < length) {
+				int lineEnd = lineStart;
+				while (lineEnd < length && buffer.get(lineEnd) != '\n') {
+					lineEnd++;
+				}
+				lines++;
+
+				// invalid lines are common, so they are reported without throwing
+				ParseResult result = parser.tryParse(line.reset(buffer, lineStart, lineEnd));
+				if (!result.isValid()) {
+					addError(result.getMessage());
+				} else if (!parser.getVariables().isEmpty()) {
+					addError("Unbound variable: " + parser.getVariables().get(0));
+				} else {
+					out.append(parser.evaluate());
+				}
+				out.append('\n');
+				lineStart = lineEnd + 1;
+			}
+
+			// the results are all ASCII
+			results = new byte[out.length()];
+			for (int i = 0; i < out.length(); i++) {
+				results[i] = (byte) out.charAt(i);
+			}
+			return this;
+		}
+
+		/**
+		 * @param message Why the current line could not be evaluated.
+		 */
+		private void addError(String message) {
+			if (errors.isEmpty()) {
+				errors = new ArrayList<>();
+			}
+			errors.add(new LineError(lines, message));
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/**
+ * A token that represents a call to a registered function.
+ */
+public class FunctionToken extends Token {
+
+	private final MathFunction function;
+	private final int id;
+
+	/**
+	 * Creates a new FunctionToken for the given function. Each registered function has one
+	 * shared token, from Functions.
+	 *
+	 * @param function The function.
+	 * @param id       The id of the function in the registry.
+	 */
+	FunctionToken(MathFunction function, int id) {
+		super(TokenType.FUNCTION);
+		this.function = function;
+		this.id = id;
+	}
+
+	/**
+	 * @return The function this token calls.
+	 */
+	public MathFunction getFunction() {
+		return function;
+	}
+
+	/**
+	 * @return The id of the function in the registry.
+	 */
+	int getId() {
+		return id;
+	}
+
+	/**
+	 * @return A string representation of the FunctionToken
+	 */
+	public String toString() {
+		return function.getName();
+	}
+
+	/**
+	 * @param o The object to compare to.
+	 * @return True if o is a FunctionToken for the same function, false otherwise.
+	 */
+	public boolean equals(Object o) {
+		if (o instanceof FunctionToken) {
+			return ((FunctionToken) o).function == this.function;
+		} else {
+			return false;
+		}
+	}
+
+	/**
+	 * @return A hash code consistent with equals.
+	 */
+	public int hashCode() {
+		return function.hashCode();
+	}
+}
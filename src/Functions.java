@@ -0,0 +1,258 @@
+import java.util.Arrays;
+
+/**
+ * The registry of the functions that expressions can call by name.
+ *
+ * Besides the built-in sin, cos, and tan, the registry starts with exp, log (the natural
+ * logarithm), sqrt, abs, min, max, hypot, atan2, and if, and more can be registered at any time.
+ * Names are looked up by the lexer straight from the characters of the input, without making a
+ * String: every registration rebuilds a perfect hash table over the names, so a lookup is one
+ * hash and at most one comparison, whether or not the name is a function. Once registered, a
+ * function cannot be replaced or removed, so expressions compiled earlier keep their meaning;
+ * names that were variables in them stay variables.
+ *
+ * Every function is given an id in the order it was registered, which never changes.
+ */
+public final class Functions {
+
+	private static final int GOLDEN_RATIO = 0x9e3779b9;
+
+	/**
+	 * The sine, cosine, and tangent, whose calls have token types of their own, which the engines
+	 * compute inline.
+	 */
+	static final MathFunction SIN = MathFunction.unary("sin", true, Math::sin);
+	static final MathFunction COS = MathFunction.unary("cos", true, Math::cos);
+	static final MathFunction TAN = MathFunction.unary("tan", true, Math::tan);
+
+	/**
+	 * The smaller of two numbers, which the compiled engines compute inline.
+	 */
+	static final MathFunction MIN = MathFunction.binary("min", true, Math::min);
+
+	/**
+	 * The larger of two numbers, which the compiled engines compute inline.
+	 */
+	static final MathFunction MAX = MathFunction.binary("max", true, Math::max);
+
+	/**
+	 * if(condition, a, b) is a if the condition is not zero, including NaN, and b if it is. The
+	 * tree evaluator, PostfixProgram, and JitCompiler evaluate only the argument they return;
+	 * engines that evaluate every argument, and direct calls, get the same result from this
+	 * function as long as the other argument calls no impure function.
+	 */
+	static final MathFunction IF = MathFunction.of("if", 3, true,
+			  (a, i) -> a[i] != 0 ? a[i + 1] : a[i + 2]);
+
+	private static volatile Table table;
+
+	static {
+		MathFunction[] functions = {
+				  SIN,
+				  COS,
+				  TAN,
+				  MathFunction.unary("exp", true, Math::exp),
+				  MathFunction.unary("log", true, Math::log),
+				  MathFunction.unary("sqrt", true, Math::sqrt),
+				  MathFunction.unary("abs", true, Math::abs),
+				  MIN,
+				  MAX,
+				  MathFunction.binary("hypot", true, Math::hypot),
+				  MathFunction.binary("atan2", true, Math::atan2),
+				  IF,
+		};
+		TokenType[] types = new TokenType[functions.length];
+		Arrays.fill(types, TokenType.FUNCTION);
+		types[0] = TokenType.SIN;
+		types[1] = TokenType.COS;
+		types[2] = TokenType.TAN;
+		table = new Table(functions, types);
+	}
+
+	private Functions() {
+	}
+
+	/**
+	 * Makes a function callable by its name in every expression compiled from now on.
+	 *
+	 * @param function The function to register.
+	 * @throws IllegalArgumentException If a function with the same name is already registered.
+	 */
+	public static synchronized void register(MathFunction function) {
+		Table current = table;
+		if (current.find(function.getName()) != -1) {
+			throw new IllegalArgumentException("Function already registered: " +
+					  function.getName());
+		}
+
+		int count = current.functions.length;
+		MathFunction[] functions = Arrays.copyOf(current.functions, count + 1);
+		TokenType[] types = Arrays.copyOf(current.types, count + 1);
+		functions[count] = function;
+		types[count] = TokenType.FUNCTION;
+		table = new Table(functions, types);
+	}
+
+	/**
+	 * @param name The name of a function.
+	 * @return The registered function with the given name, or null if there is none.
+	 */
+	public static MathFunction get(String name) {
+		Table current = table;
+		int id = current.find(name);
+		return id == -1 ? null : current.functions[id];
+	}
+
+	/**
+	 * @return The current table of functions, which never changes.
+	 */
+	static Table table() {
+		return table;
+	}
+
+	/**
+	 * @param id The id of a registered function.
+	 * @return The shared token of the function.
+	 */
+	static FunctionToken token(int id) {
+		return table.tokens[id];
+	}
+
+	/**
+	 * A snapshot of the registry: the functions by id and a perfect hash table of their names.
+	 *
+	 * The hash of a name of n characters c[0..n-1] is the sum of c[i] * multiplier^(n-1-i),
+	 * which the lexer can compute a character at a time while it scans a name. The multiplier and
+	 * the size of the table are chosen when the table is built so that no two names share a
+	 * slot.
+	 */
+	static final class Table {
+		private final MathFunction[] functions;
+		private final TokenType[] types;
+		private final FunctionToken[] tokens;
+		private final char[][] names;
+		private int multiplier;
+		private int shift;
+		private int[] slots;
+
+		/**
+		 * @param functions The functions, indexed by id.
+		 * @param types     The type of the tokens of each function: FUNCTION, or the built-in SIN,
+		 *                  COS, or TAN.
+		 */
+		Table(MathFunction[] functions, TokenType[] types) {
+			this.functions = functions;
+			this.types = types;
+			tokens = new FunctionToken[functions.length];
+			names = new char[functions.length][];
+			for (int id = 0; id < functions.length; id++) {
+				tokens[id] = new FunctionToken(functions[id], id);
+				names[id] = functions[id].getName().toCharArray();
+			}
+
+			int bits = 4;
+			while ((1 << bits) < functions.length * 2) {
+				bits++;
+			}
+			// a different multiplier separates names that collide with another; the odd numbers
+			// tried first keep the hash cheap, and a bigger table is tried when none works
+			int candidate = 31;
+			while (!place(candidate, bits)) {
+				candidate += 2;
+				if (candidate > 1024) {
+					candidate = 31;
+					bits++;
+				}
+			}
+		}
+
+		/**
+		 * @param candidate The multiplier to try.
+		 * @param bits      The log2 of the size of the table.
+		 * @return True if every name was given a slot of its own, false otherwise.
+		 */
+		private boolean place(int candidate, int bits) {
+			multiplier = candidate;
+			shift = 32 - bits;
+			slots = new int[1 << bits];
+			Arrays.fill(slots, -1);
+			for (int id = 0; id < names.length; id++) {
+				int slot = slot(hash(names[id], names[id].length));
+				if (slots[slot] != -1) {
+					return false;
+				}
+				slots[slot] = id;
+			}
+			return true;
+		}
+
+		/**
+		 * @return The multiplier of the hash of names.
+		 */
+		int getMultiplier() {
+			return multiplier;
+		}
+
+		/**
+		 * @param chars  The characters of a name.
+		 * @param length The length of the name.
+		 * @return The hash of the name.
+		 */
+		int hash(char[] chars, int length) {
+			int hash = 0;
+			for (int i = 0; i < length; i++) {
+				hash = hash * multiplier + chars[i];
+			}
+			return hash;
+		}
+
+		private int slot(int hash) {
+			return (hash * GOLDEN_RATIO) >>> shift;
+		}
+
+		/**
+		 * @param chars  A buffer holding a name.
+		 * @param length The length of the name.
+		 * @param hash   The hash of the name.
+		 * @return The id of the function with the name, or -1 if there is none.
+		 */
+		int find(char[] chars, int length, int hash) {
+			int id = slots[slot(hash)];
+			if (id == -1 || names[id].length != length) {
+				return -1;
+			}
+			char[] name = names[id];
+			for (int i = 0; i < length; i++) {
+				if (name[i] != chars[i]) {
+					return -1;
+				}
+			}
+			return id;
+		}
+
+		/**
+		 * @param name The name of a function.
+		 * @return The id of the function with the name, or -1 if there is none.
+		 */
+		int find(String name) {
+			char[] chars = name.toCharArray();
+			return find(chars, chars.length, hash(chars, chars.length));
+		}
+
+		/**
+		 * @param id The id of a function.
+		 * @return The function.
+		 */
+		MathFunction get(int id) {
+			return functions[id];
+		}
+
+		/**
+		 * @param id The id of a function.
+		 * @return The type of the function's tokens.
+		 */
+		TokenType getType(int id) {
+			return types[id];
+		}
+	}
+}
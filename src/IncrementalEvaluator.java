@@ -0,0 +1,225 @@
+import java.util.Arrays;
+
+/**
+ * Evaluates a DagProgram incrementally: the value of every node is kept between evaluations, and
+ * only the nodes that depend on changed bindings are recomputed.
+ *
+ * Each node lists the nodes that read it. Changing a binding dirties the node that loads it, and
+ * the dirty nodes are recomputed children first, in the order of the program, so each is
+ * recomputed at most once however many of its operands changed. A node whose value comes out
+ * the same, bit for bit, does not dirty its readers, so a propagation stops as soon as a change
+ * is absorbed, as by a comparison or a min, and costs time in proportion to the paths from the
+ * changed bindings to the result rather than to the size of the expression.
+ *
+ * Bindings can be set one at a time and then propagated together, so a tick that changes several
+ * of them recomputes the nodes they share once. Calls to impure functions are made again on every
+ * propagation, as the program makes them on every evaluation.
+ *
+ * An evaluator holds the bindings and values of the expression, so it is not thread-safe; any
+ * number of evaluators can share a program.
+ */
+public final class IncrementalEvaluator implements Evaluator {
+
+	// the engine named in flight recorder events
+	private static final String ENGINE = "incremental";
+
+	private final DagProgram program;
+	private final double[] bindings;
+	private final double[] values;
+	// the nodes that read node i are readers[readerStarts[i]] up to readers[readerStarts[i + 1]]
+	private final int[] readerStarts;
+	private final int[] readers;
+	// the node that loads each binding slot, or -1 if the program does not read it
+	private final int[] loads;
+	private final int[] impureNodes;
+	// a bit for each node, set if the node must be recomputed
+	private final long[] dirty;
+	private int recomputedCount;
+
+	/**
+	 * Evaluates the program fully with the given bindings.
+	 *
+	 * @param program  The program to evaluate.
+	 * @param bindings The initial values of the variables, indexed by binding slot.
+	 * @throws IllegalArgumentException If there are fewer bindings than variables.
+	 */
+	public IncrementalEvaluator(DagProgram program, double... bindings) {
+		int variableCount = program.getVariableCount();
+		if (bindings.length < variableCount) {
+			throw new IllegalArgumentException("Expected " + variableCount +
+					  " bindings but got " + bindings.length);
+		}
+		this.program = program;
+		this.bindings = Arrays.copyOf(bindings, variableCount);
+		values = program.newTemporaries();
+		program.evaluate(this.bindings, values);
+
+		int nodeCount = program.getNodeCount();
+		dirty = new long[(nodeCount + 63) >> 6];
+		readerStarts = new int[nodeCount + 1];
+		loads = new int[variableCount];
+		Arrays.fill(loads, -1);
+		int impureCount = 0;
+		for (int node = 0; node < nodeCount; node++) {
+			for (int i = 0; i < program.getOperandCount(node); i++) {
+				readerStarts[program.getOperand(node, i) + 1]++;
+			}
+			if (program.getSlot(node) != -1) {
+				loads[program.getSlot(node)] = node;
+			} else if (program.isImpure(node)) {
+				impureCount++;
+			}
+		}
+		for (int node = 0; node < nodeCount; node++) {
+			readerStarts[node + 1] += readerStarts[node];
+		}
+
+		readers = new int[readerStarts[nodeCount]];
+		impureNodes = new int[impureCount];
+		int[] next = Arrays.copyOf(readerStarts, nodeCount);
+		impureCount = 0;
+		for (int node = 0; node < nodeCount; node++) {
+			for (int i = 0; i < program.getOperandCount(node); i++) {
+				readers[next[program.getOperand(node, i)]++] = node;
+			}
+			if (program.isImpure(node)) {
+				impureNodes[impureCount++] = node;
+			}
+		}
+	}
+
+	/**
+	 * Compiles the given expression into a DagProgram and evaluates it fully.
+	 *
+	 * @param expression The expression to evaluate.
+	 * @param bindings   The initial values of the variables, indexed by binding slot.
+	 * @return An evaluator of the expression.
+	 * @throws IllegalArgumentException If there are fewer bindings than variables.
+	 */
+	public static IncrementalEvaluator compile(Expression expression, double... bindings) {
+		return new IncrementalEvaluator(DagProgram.compile(expression), bindings);
+	}
+
+	/**
+	 * Sets the value of a variable, without recomputing anything until the next propagation.
+	 *
+	 * @param slot  The binding slot of the variable.
+	 * @param value The new value of the variable.
+	 */
+	public void set(int slot, double value) {
+		if (Double.doubleToLongBits(bindings[slot]) != Double.doubleToLongBits(value)) {
+			bindings[slot] = value;
+			if (loads[slot] != -1) {
+				markDirty(loads[slot]);
+			}
+		}
+	}
+
+	/**
+	 * @param slot The binding slot of a variable.
+	 * @return The value of the variable, as last set.
+	 */
+	public double get(int slot) {
+		return bindings[slot];
+	}
+
+	/**
+	 * Recomputes the nodes that depend on the variables set since the last propagation, in a
+	 * single pass.
+	 *
+	 * @return The result of the expression.
+	 */
+	public double propagate() {
+		ParseEvents.Event event = ParseEvents.begin(ParseEvents.Kind.EVALUATE);
+		for (int node : impureNodes) {
+			markDirty(node);
+		}
+
+		// readers come after the nodes they read, so taking the lowest dirty node each time
+		// reaches them later in the same pass
+		int count = 0;
+		for (int word = 0; word < dirty.length; word++) {
+			while (dirty[word] != 0) {
+				int node = (word << 6) + Long.numberOfTrailingZeros(dirty[word]);
+				dirty[word] &= dirty[word] - 1;
+				count++;
+				long before = Double.doubleToLongBits(values[node]);
+				program.run(bindings, values, node, node + 1);
+				if (Double.doubleToLongBits(values[node]) != before) {
+					for (int i = readerStarts[node]; i < readerStarts[node + 1]; i++) {
+						markDirty(readers[i]);
+					}
+				}
+			}
+		}
+		recomputedCount = count;
+
+		if (event != null && event.finish()) {
+			event.commit(program.getSourceLength(), 0, 0, ENGINE);
+		}
+		return values[program.getResult()];
+	}
+
+	/**
+	 * @param node A node to recompute in the next propagation.
+	 */
+	private void markDirty(int node) {
+		dirty[node >> 6] |= 1L << node;
+	}
+
+	/**
+	 * Sets the value of a variable and propagates it.
+	 *
+	 * @param slot  The binding slot of the variable.
+	 * @param value The new value of the variable.
+	 * @return The result of the expression.
+	 */
+	public double update(int slot, double value) {
+		set(slot, value);
+		return propagate();
+	}
+
+	/**
+	 * Sets the values of several variables and propagates them together.
+	 *
+	 * @param slots  The binding slots of the variables.
+	 * @param values The new values of the variables, in the same order.
+	 * @return The result of the expression.
+	 * @throws IllegalArgumentException If there are not as many values as slots.
+	 */
+	public double update(int[] slots, double[] values) {
+		if (slots.length != values.length) {
+			throw new IllegalArgumentException("Expected " + slots.length + " values but got " +
+					  values.length);
+		}
+		for (int i = 0; i < slots.length; i++) {
+			set(slots[i], values[i]);
+		}
+		return propagate();
+	}
+
+	/**
+	 * Sets every variable and propagates the ones that changed.
+	 *
+	 * @param bindings The values of the variables, indexed by binding slot.
+	 * @return The result of the expression.
+	 * @throws IllegalArgumentException If there are fewer bindings than variables.
+	 */
+	public double evaluate(double... bindings) {
+		if (bindings.length < this.bindings.length) {
+			throw new IllegalArgumentException("Expected " + this.bindings.length +
+					  " bindings but got " + bindings.length);
+		}
+		for (int slot = 0; slot < this.bindings.length; slot++) {
+			set(slot, bindings[slot]);
+		}
+		return propagate();
+	}
+
+	/**
+	 * @return The number of nodes recomputed by the last propagation.
+	 */
+	public int getRecomputedCount() {
+		return recomputedCount;
+	}
+}
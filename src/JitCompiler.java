@@ -0,0 +1,983 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles math expressions into JVM classes so that HotSpot can optimize them like
+ * hand-written Java.
+ *
+ * Each expression becomes a class whose evaluate method is arithmetic over its bindings, calling
+ * Math.sin, Math.cos, Math.tan, Math.pow, Math.min, and Math.max directly. Comparisons and if
+ * become branches, so only the branch of an if that is taken is evaluated. Registered functions are
+ * called through the functional interface they are bound to, held in a field of the class, so
+ * HotSpot can inline them too. On Java 15 and later the class is defined with
+ * MethodHandles.Lookup.defineHiddenClass; on older JVMs it is defined by a class loader of its
+ * own. Either way the class is unloaded once the Evaluator returned for it is no longer
+ * reachable.
+ *
+ * Expressions in MathMode.FAST call the FastMath approximations like any other function instead.
+ *
+ * HotSpot never compiles a method of more than 8000 bytes of bytecode, so a large expression in
+ * one method would stay interpreted, many times slower. Instead the largest subtrees of such an
+ * expression are moved into private methods of their own, each under that size, which are
+ * called in place of the subtrees.
+ *
+ * If a class cannot be generated or defined, for example because the expression has more
+ * constants than a class can hold, the expression is evaluated by a PostfixProgram instead.
+ */
+public class JitCompiler {
+
+	private static final String CLASS_NAME = "JitExpression";
+	private static final String INTERFACE_NAME = "Evaluator";
+	private static final String FIELD_DESCRIPTOR = "[Ljava/lang/Object;";
+
+	// a call stores its arguments in local variables, two words each, after this and bindings
+	private static final int FIRST_ARGUMENT_LOCAL = 2;
+	private static final int MAX_ARGUMENTS = (0xff - FIRST_ARGUMENT_LOCAL) / 2;
+
+	// class file version 49 is verified by type inference, so branches need no stack map frames
+	private static final int CLASS_VERSION = 49;
+
+	// the most bytes of code HotSpot compiles in a method, less room for the bindings check
+	private static final int MAX_METHOD_SIZE = 8000 - 32;
+	// aload_0, aload_1, and invokespecial, which call the method a subtree was moved to
+	private static final int CALL_SIZE = 5;
+
+	/**
+	 * MethodHandles.Lookup.defineHiddenClass, or null before Java 15.
+	 */
+	private static final Method DEFINE_HIDDEN_CLASS;
+	private static final Object NO_CLASS_OPTIONS;
+
+	static {
+		Method method = null;
+		Object options = null;
+		try {
+			Class<?> optionClass = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+			options = Array.newInstance(optionClass, 0);
+			method = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class,
+					  boolean.class, options.getClass());
+		} catch (ReflectiveOperationException e) {
+			method = null;
+		}
+		DEFINE_HIDDEN_CLASS = method;
+		NO_CLASS_OPTIONS = options;
+	}
+
+	/**
+	 * Compiles the given expression into a class of its own.
+	 *
+	 * @param expression The expression to compile.
+	 * @return An evaluator running the generated class, or a PostfixProgram if the class could
+	 * not be generated.
+	 */
+	public static Evaluator compile(Expression expression) {
+		ParseEvents.Event event = ParseEvents.begin(ParseEvents.Kind.COMPILE);
+		Evaluator evaluator = define(expression);
+		if (event != null && event.finish()) {
+			event.commit(expression.toString().length(), 0, Parser.depth(expression.getRoot()),
+					  evaluator instanceof PostfixProgram ? "postfix" : "jit");
+		}
+		return evaluator;
+	}
+
+	/**
+	 * @param expression The expression to compile.
+	 * @return An evaluator running the generated class, or a PostfixProgram if the class could
+	 * not be generated.
+	 */
+	private static Evaluator define(Expression expression) {
+		ParseMetrics metrics = Parser.getMetrics();
+		try {
+			List<Object> operators = new ArrayList<>();
+			Class<?> generated = defineClass(generate(expression, operators));
+			Evaluator evaluator = (Evaluator) generated.getConstructor(Object[].class)
+					  .newInstance((Object) operators.toArray());
+			if (metrics != null) {
+				metrics.recordJitCompile(false);
+			}
+			return evaluator;
+		} catch (Exception | LinkageError e) {
+			if (metrics != null) {
+				metrics.recordJitCompile(true);
+			}
+			return PostfixProgram.compile(expression);
+		}
+	}
+
+	/**
+	 * @return True if classes are defined as hidden classes, false if each has a class loader.
+	 */
+	public static boolean usesHiddenClasses() {
+		return DEFINE_HIDDEN_CLASS != null;
+	}
+
+	/**
+	 * Defines a generated class without making it strongly reachable from any existing class
+	 * loader.
+	 *
+	 * @param bytes The class file.
+	 * @return The defined class.
+	 * @throws ReflectiveOperationException If the hidden class cannot be defined.
+	 */
+	private static Class<?> defineClass(byte[] bytes) throws ReflectiveOperationException {
+		if (DEFINE_HIDDEN_CLASS != null) {
+			Object lookup = DEFINE_HIDDEN_CLASS.invoke(MethodHandles.lookup(), bytes, true,
+					  NO_CLASS_OPTIONS);
+			return ((MethodHandles.Lookup) lookup).lookupClass();
+		} else {
+			return new SingleClassLoader(JitCompiler.class.getClassLoader()).define(bytes);
+		}
+	}
+
+	/**
+	 * Generates the class file for the given expression. The class is constructed with the
+	 * operators of the functions the expression calls.
+	 *
+	 * @param expression The expression to generate a class for.
+	 * @param operators  The list the operators of the called functions are added to, in the order
+	 *                   the constructor takes them.
+	 * @return The class file.
+	 * @throws IOException If the class would exceed a limit of the class file format.
+	 */
+	static byte[] generate(Expression expression, List<Object> operators) throws IOException {
+		ClassFile file = new ClassFile();
+		int variableCount = expression.getVariableCount();
+
+		// public JitExpression(Object[] functions) { super(); this.functions = functions; }
+		Code init = new Code(file, operators);
+		init.op(ALOAD_0);
+		init.push(1);
+		init.op(INVOKESPECIAL);
+		init.u2(file.methodRef("java/lang/Object", "<init>", "()V"));
+		init.op(ALOAD_0);
+		init.op(ALOAD_1);
+		init.push(1);
+		init.op(PUTFIELD);
+		init.u2(file.fieldRef(CLASS_NAME, "functions", FIELD_DESCRIPTOR));
+		init.op(RETURN);
+
+		List<Parser.TreeNode> order = Parser.postOrder(expression.getRoot());
+		byte[] branches = Parser.branches(order);
+		int[] starts = new int[order.size()];
+		int[] parts = split(order, starts);
+
+		// public double evaluate(double[] bindings) { return <expression>; }
+		Code evaluate = new Code(file, operators);
+		if (variableCount > 0) {
+			evaluate.emitBindingsCheck(variableCount);
+		}
+		evaluate.emit(order, branches, starts, parts, order.size() - 1);
+		evaluate.op(DRETURN);
+
+		// private double part<n>(double[] bindings) { return <subtree>; }
+		List<Code> methods = new ArrayList<>();
+		for (int i = 0; i < order.size(); i++) {
+			if (parts[i] != 0) {
+				Code part = new Code(file, operators);
+				part.emit(order, branches, starts, parts, i);
+				part.op(DRETURN);
+				methods.add(part);
+			}
+		}
+
+		return file.toBytes(init, evaluate, methods);
+	}
+
+	/**
+	 * Chooses the subtrees to move into methods of their own, so that no method is too large for
+	 * HotSpot to compile. Whenever a node and the operands still inline in it would be too
+	 * large, its largest operands are moved out until it fits. The operands of a comma are those
+	 * of the function that reads it, since a method can return only one value.
+	 *
+	 * @param order  The nodes of the tree, from Parser.postOrder.
+	 * @param starts Filled with the index of the first node of the subtree that ends at each node.
+	 * @return For each node, the number of the method its subtree is moved to, counting from 1,
+	 * or 0 if it stays inline.
+	 */
+	private static int[] split(List<Parser.TreeNode> order, int[] starts) {
+		int[] parts = new int[order.size()];
+		int[] sizes = new int[order.size()];
+		int[] lefts = new int[order.size()];
+		int[] rights = new int[order.size()];
+		// the operands of the nodes still to come
+		int[] stack = new int[16];
+		int top = 0;
+		int count = 0;
+		for (int i = 0; i < order.size(); i++) {
+			Parser.TreeNode node = order.get(i);
+			lefts[i] = -1;
+			rights[i] = -1;
+			if (node != null && Parser.readsRight(node.token)) {
+				rights[i] = stack[--top];
+			}
+			if (node != null && Parser.readsLeft(node.token)) {
+				lefts[i] = stack[--top];
+			}
+			starts[i] = lefts[i] != -1 ? starts[lefts[i]] :
+					  rights[i] != -1 ? starts[rights[i]] : i;
+			sizes[i] = codeSize(node) + (lefts[i] != -1 ? sizes[lefts[i]] : 0) +
+					  (rights[i] != -1 ? sizes[rights[i]] : 0);
+
+			if (sizes[i] > MAX_METHOD_SIZE && node.token.getType() != TokenType.COMMA) {
+				List<Integer> operands = new ArrayList<>();
+				Deque<Integer> pending = new ArrayDeque<>();
+				pending.push(i);
+				while (!pending.isEmpty()) {
+					int j = pending.pop();
+					if (j == i || order.get(j) != null &&
+							  order.get(j).token.getType() == TokenType.COMMA) {
+						if (lefts[j] != -1) {
+							pending.push(lefts[j]);
+						}
+						if (rights[j] != -1) {
+							pending.push(rights[j]);
+						}
+					} else {
+						operands.add(j);
+					}
+				}
+				operands.sort((a, b) -> Integer.compare(sizes[b], sizes[a]));
+				for (int operand : operands) {
+					if (sizes[i] <= MAX_METHOD_SIZE || sizes[operand] <= CALL_SIZE) {
+						break;
+					}
+					sizes[i] -= sizes[operand] - CALL_SIZE;
+					parts[operand] = ++count;
+				}
+			}
+
+			if (top == stack.length) {
+				stack = Arrays.copyOf(stack, top * 2);
+			}
+			stack[top++] = i;
+		}
+
+		// numbered in the order the methods are generated
+		count = 0;
+		for (int i = 0; i < parts.length; i++) {
+			if (parts[i] != 0) {
+				parts[i] = ++count;
+			}
+		}
+		return parts;
+	}
+
+	/**
+	 * @param node A node of a tree, or null for zero.
+	 * @return The most bytes of code that Code.emitNode and Code.emitBranch emit for the node
+	 * alone.
+	 */
+	private static int codeSize(Parser.TreeNode node) {
+		if (node == null) {
+			return 1;
+		}
+		TokenType type = node.token.getType();
+		if (type == TokenType.NUMBER) {
+			return 3;
+		} else if (type == TokenType.VARIABLE) {
+			return 5;
+		} else if (type == TokenType.EXPONENT || type == TokenType.SIN || type == TokenType.COS ||
+				  type == TokenType.TAN) {
+			return 3;
+		} else if (type == TokenType.LESS || type == TokenType.LESS_EQUAL ||
+				  type == TokenType.GREATER || type == TokenType.GREATER_EQUAL ||
+				  type == TokenType.EQUAL || type == TokenType.NOT_EQUAL) {
+			return 9;
+		} else if (type == TokenType.FUNCTION) {
+			MathFunction function = ((FunctionToken) node.token).getFunction();
+			if (function == Functions.IF) {
+				// the jumps after the condition and the first branch
+				return 8;
+			}
+			// the stores, loads, and array of a call, and the operator and its invocation
+			return 24 + 11 * function.getArity();
+		} else if (type == TokenType.COMMA) {
+			return 0;
+		}
+		return 1;
+	}
+
+	// opcodes
+	private static final int ICONST_0 = 0x03;
+	private static final int DCONST_0 = 0x0e;
+	private static final int DCONST_1 = 0x0f;
+	private static final int BIPUSH = 0x10;
+	private static final int SIPUSH = 0x11;
+	private static final int LDC_W = 0x13;
+	private static final int LDC2_W = 0x14;
+	private static final int DLOAD = 0x18;
+	private static final int ALOAD_0 = 0x2a;
+	private static final int ALOAD_1 = 0x2b;
+	private static final int DALOAD = 0x31;
+	private static final int AALOAD = 0x32;
+	private static final int DSTORE = 0x39;
+	private static final int DASTORE = 0x52;
+	private static final int DUP = 0x59;
+	private static final int DADD = 0x63;
+	private static final int DSUB = 0x67;
+	private static final int DMUL = 0x6b;
+	private static final int DDIV = 0x6f;
+	private static final int DNEG = 0x77;
+	private static final int DCMPL = 0x97;
+	private static final int DCMPG = 0x98;
+	private static final int IFEQ = 0x99;
+	private static final int IFNE = 0x9a;
+	private static final int IFLT = 0x9b;
+	private static final int IFGE = 0x9c;
+	private static final int IFGT = 0x9d;
+	private static final int IFLE = 0x9e;
+	private static final int IF_ICMPGE = 0xa2;
+	private static final int GOTO = 0xa7;
+	private static final int DRETURN = 0xaf;
+	private static final int RETURN = 0xb1;
+	private static final int INVOKESPECIAL = 0xb7;
+	private static final int GETFIELD = 0xb4;
+	private static final int PUTFIELD = 0xb5;
+	private static final int INVOKESTATIC = 0xb8;
+	private static final int INVOKEINTERFACE = 0xb9;
+	private static final int NEW = 0xbb;
+	private static final int NEWARRAY = 0xbc;
+	private static final int ARRAYLENGTH = 0xbe;
+	private static final int ATHROW = 0xbf;
+	private static final int CHECKCAST = 0xc0;
+
+	// the element type of newarray for double[]
+	private static final int T_DOUBLE = 7;
+
+	/**
+	 * The body of one method, with the operand stack depth and local variables tracked in words.
+	 */
+	private static class Code {
+		private final ClassFile file;
+		private final List<Object> operators;
+		private final Bytes bytes = new Bytes();
+		private int depth;
+		private int maxDepth;
+		private int maxLocals = FIRST_ARGUMENT_LOCAL;
+		// the addresses of the jumps whose targets are not yet known, innermost last
+		private final List<Integer> jumps = new ArrayList<>();
+
+		/**
+		 * @param file      The class the method belongs to.
+		 * @param operators The operators of the functions the class calls, shared by its methods.
+		 */
+		Code(ClassFile file, List<Object> operators) {
+			this.file = file;
+			this.operators = operators;
+		}
+
+		/**
+		 * Emits the code that pushes the value of the subtree ending at the given node, using
+		 * the same rules as Parser.evaluateSyntaxTree, in the order of Parser.postOrder so that
+		 * deep trees do not recurse. Subtrees moved to methods of their own are called instead.
+		 *
+		 * @param order    The nodes of the whole tree, from Parser.postOrder.
+		 * @param branches The branches of the tree, from Parser.branches.
+		 * @param starts   The index of the first node of the subtree that ends at each node.
+		 * @param parts    The number of the method each subtree is moved to, or 0.
+		 * @param root     The index of the root of the subtree.
+		 * @throws IOException If the constant pool overflows.
+		 */
+		void emit(List<Parser.TreeNode> order, byte[] branches, int[] starts, int[] parts,
+		          int root) throws IOException {
+			// walked backwards, stepping over the subtrees of other methods
+			List<Integer> nodes = new ArrayList<>();
+			for (int i = root; i >= starts[root]; ) {
+				nodes.add(i);
+				i = (i != root && parts[i] != 0) ? starts[i] - 1 : i - 1;
+			}
+			for (int j = nodes.size() - 1; j >= 0; j--) {
+				int i = nodes.get(j);
+				if (i != root && parts[i] != 0) {
+					emitPart(parts[i]);
+				} else {
+					emitNode(order.get(i));
+				}
+				// the jumps around a moved branch are in the method that calls it
+				if (branches[i] != 0 && i != root) {
+					emitBranch(branches[i]);
+				}
+			}
+		}
+
+		/**
+		 * Emits a call to the method a subtree was moved to, which pushes its value.
+		 *
+		 * @param part The number of the method.
+		 * @throws IOException If the constant pool overflows.
+		 */
+		private void emitPart(int part) throws IOException {
+			op(ALOAD_0);
+			op(ALOAD_1);
+			push(2);
+			op(INVOKESPECIAL);
+			u2(file.methodRef(CLASS_NAME, "part" + part, "([D)D"));
+		}
+
+		/**
+		 * Emits the jump after a part of an if, and points the jump before it here. The
+		 * condition is followed by an ifeq to the second branch, and the first branch by a goto
+		 * past the second.
+		 *
+		 * @param branch The part that was just emitted: Parser.CONDITION, THEN, or ELSE.
+		 * @throws IOException If a branch is too long to jump over.
+		 */
+		private void emitBranch(byte branch) throws IOException {
+			if (branch == Parser.CONDITION) {
+				// NaN is not zero, so dcmpl
+				op(DCONST_0);
+				push(2);
+				op(DCMPL);
+				push(-3);
+				jumps.add(bytes.size());
+				op(IFEQ);
+				u2(0);
+				push(-1);
+			} else if (branch == Parser.THEN) {
+				int jump = bytes.size();
+				op(GOTO);
+				u2(0);
+				patch(jumps.remove(jumps.size() - 1));
+				jumps.add(jump);
+				// the second branch starts without the result of the first
+				push(-2);
+			} else {
+				patch(jumps.remove(jumps.size() - 1));
+			}
+		}
+
+		/**
+		 * Points a jump at the end of the code.
+		 *
+		 * @param jump The address of the jump.
+		 * @throws IOException If the jump is too long.
+		 */
+		private void patch(int jump) throws IOException {
+			int offset = bytes.size() - jump;
+			if (offset > Short.MAX_VALUE) {
+				throw new IOException("Branch too long");
+			}
+			bytes.set(jump + 1, offset >>> 8);
+			bytes.set(jump + 2, offset);
+		}
+
+		/**
+		 * Emits the code for a single node, whose operands are already on the stack.
+		 *
+		 * @param node The node to emit, or null for zero.
+		 * @throws IOException If the constant pool overflows.
+		 */
+		private void emitNode(Parser.TreeNode node) throws IOException {
+			if (node == null) {
+				op(DCONST_0);
+				push(2);
+				return;
+			}
+
+			TokenType type = node.token.getType();
+			if (type == TokenType.NUMBER) {
+				op(LDC2_W);
+				u2(file.doubleConstant(((NumberToken) node.token).getValue()));
+				push(2);
+			} else if (type == TokenType.VARIABLE) {
+				op(ALOAD_1);
+				push(1);
+				emitInt(((VariableToken) node.token).getSlot());
+				// daload replaces the array and index with the two words of the value
+				op(DALOAD);
+			} else if (type == TokenType.ADD) {
+				emitBinary(DADD);
+			} else if (type == TokenType.SUBTRACT) {
+				emitBinary(DSUB);
+			} else if (type == TokenType.MULTIPLY) {
+				emitBinary(DMUL);
+			} else if (type == TokenType.DIVIDE) {
+				emitBinary(DDIV);
+			} else if (type == TokenType.EXPONENT) {
+				emitMath("pow", "(DD)D");
+				push(-2);
+			} else if (type == TokenType.NEGATION) {
+				op(DNEG);
+			} else if (type == TokenType.SIN) {
+				emitMath("sin", "(D)D");
+			} else if (type == TokenType.COS) {
+				emitMath("cos", "(D)D");
+			} else if (type == TokenType.TAN) {
+				emitMath("tan", "(D)D");
+			} else if (type == TokenType.LESS) {
+				emitComparison(DCMPG, IFLT);
+			} else if (type == TokenType.LESS_EQUAL) {
+				emitComparison(DCMPG, IFLE);
+			} else if (type == TokenType.GREATER) {
+				emitComparison(DCMPL, IFGT);
+			} else if (type == TokenType.GREATER_EQUAL) {
+				emitComparison(DCMPL, IFGE);
+			} else if (type == TokenType.EQUAL) {
+				emitComparison(DCMPL, IFEQ);
+			} else if (type == TokenType.NOT_EQUAL) {
+				emitComparison(DCMPL, IFNE);
+			} else if (type == TokenType.FUNCTION) {
+				emitFunction(((FunctionToken) node.token).getFunction());
+			} else if (type == TokenType.COMMA) {
+				// both arguments stay on the stack for the function
+			} else {
+				op(DCONST_0);
+				push(2);
+			}
+		}
+
+		/**
+		 * Emits a comparison of the two numbers on the stack, which pushes 1 if it holds and 0 if
+		 * not.
+		 *
+		 * @param compare DCMPG or DCMPL, whichever makes NaN fail the branch.
+		 * @param branch  The branch taken if the comparison holds.
+		 */
+		private void emitComparison(int compare, int branch) {
+			op(compare);
+			push(-3);
+			// if, dconst_0, and goto take 3 + 1 + 3 bytes, and dconst_1 takes 1
+			op(branch);
+			u2(3 + 1 + 3);
+			push(-1);
+			op(DCONST_0);
+			op(GOTO);
+			u2(3 + 1);
+			op(DCONST_1);
+			push(2);
+		}
+
+		/**
+		 * @param function A function whose arguments are on the stack, or for an if, the branch
+		 *                 it took.
+		 * @throws IOException If the call cannot be emitted.
+		 */
+		private void emitFunction(MathFunction function) throws IOException {
+			if (function == Functions.MIN) {
+				emitMath("min", "(DD)D");
+				push(-2);
+			} else if (function == Functions.MAX) {
+				emitMath("max", "(DD)D");
+				push(-2);
+			} else if (function != Functions.IF) {
+				emitCall(function);
+			}
+		}
+
+		/**
+		 * Emits a call to a function whose arguments are on the stack. The arguments are moved to
+		 * local variables so that the function's operator can be pushed below them.
+		 *
+		 * @param function The function to call.
+		 * @throws IOException If the function takes too many arguments or the constant pool
+		 *                     overflows.
+		 */
+		private void emitCall(MathFunction function) throws IOException {
+			int arity = function.getArity();
+			if (arity > MAX_ARGUMENTS) {
+				throw new IOException("Too many arguments");
+			}
+			for (int i = arity - 1; i >= 0; i--) {
+				op(DSTORE);
+				bytes.write(FIRST_ARGUMENT_LOCAL + 2 * i);
+				push(-2);
+			}
+			maxLocals = Math.max(maxLocals, FIRST_ARGUMENT_LOCAL + 2 * arity);
+
+			Object operator = function.getOperator();
+			int index = operators.indexOf(operator);
+			if (index == -1) {
+				index = operators.size();
+				operators.add(operator);
+			}
+			op(ALOAD_0);
+			push(1);
+			op(GETFIELD);
+			u2(file.fieldRef(CLASS_NAME, "functions", FIELD_DESCRIPTOR));
+			emitInt(index);
+			op(AALOAD);
+			push(-1);
+
+			String owner;
+			String name;
+			String descriptor;
+			if (arity == 0) {
+				owner = "java/util/function/DoubleSupplier";
+				name = "getAsDouble";
+				descriptor = "()D";
+			} else if (arity == 1) {
+				owner = "java/util/function/DoubleUnaryOperator";
+				name = "applyAsDouble";
+				descriptor = "(D)D";
+			} else if (arity == 2) {
+				owner = "java/util/function/DoubleBinaryOperator";
+				name = "applyAsDouble";
+				descriptor = "(DD)D";
+			} else {
+				owner = "MathFunction$Operator";
+				name = "apply";
+				descriptor = "([DI)D";
+			}
+			op(CHECKCAST);
+			u2(file.classRef(owner));
+
+			int words;
+			if (arity <= 2) {
+				for (int i = 0; i < arity; i++) {
+					op(DLOAD);
+					bytes.write(FIRST_ARGUMENT_LOCAL + 2 * i);
+					push(2);
+				}
+				words = 2 * arity;
+			} else {
+				// a new array for every call, which escape analysis removes once it is inlined
+				emitInt(arity);
+				op(NEWARRAY);
+				bytes.write(T_DOUBLE);
+				for (int i = 0; i < arity; i++) {
+					op(DUP);
+					push(1);
+					emitInt(i);
+					op(DLOAD);
+					bytes.write(FIRST_ARGUMENT_LOCAL + 2 * i);
+					push(2);
+					op(DASTORE);
+					push(-4);
+				}
+				emitInt(0);
+				words = 2;
+			}
+			op(INVOKEINTERFACE);
+			u2(file.interfaceMethodRef(owner, name, descriptor));
+			bytes.write(words + 1);
+			bytes.write(0);
+			// the receiver and arguments are replaced by the two words of the result
+			push(2 - words - 1);
+		}
+
+		private void emitBinary(int opcode) {
+			op(opcode);
+			push(-2);
+		}
+
+		private void emitMath(String name, String descriptor) throws IOException {
+			op(INVOKESTATIC);
+			u2(file.methodRef("java/lang/Math", name, descriptor));
+		}
+
+		/**
+		 * Emits: if (bindings.length < count) throw new IllegalArgumentException(...);
+		 *
+		 * @param count The number of variables.
+		 * @throws IOException If the constant pool overflows.
+		 */
+		void emitBindingsCheck(int count) throws IOException {
+			op(ALOAD_1);
+			op(ARRAYLENGTH);
+			push(1);
+			emitInt(count);
+			op(IF_ICMPGE);
+			depth -= 2;
+			int exception = file.classRef("java/lang/IllegalArgumentException");
+			int message = file.stringConstant("Expected " + count + " bindings");
+			int constructor = file.methodRef("java/lang/IllegalArgumentException", "<init>",
+					  "(Ljava/lang/String;)V");
+			// new, dup, ldc_w, invokespecial, and athrow take 3 + 1 + 3 + 3 + 1 bytes
+			u2(3 + 11);
+			op(NEW);
+			u2(exception);
+			op(DUP);
+			op(LDC_W);
+			u2(message);
+			op(INVOKESPECIAL);
+			u2(constructor);
+			op(ATHROW);
+			push(3);
+			depth = 0;
+		}
+
+		private void emitInt(int value) throws IOException {
+			if (value <= 5) {
+				op(ICONST_0 + value);
+			} else if (value <= Byte.MAX_VALUE) {
+				op(BIPUSH);
+				bytes.write(value);
+			} else if (value <= Short.MAX_VALUE) {
+				op(SIPUSH);
+				u2(value);
+			} else {
+				op(LDC_W);
+				u2(file.intConstant(value));
+			}
+			push(1);
+		}
+
+		void push(int words) {
+			depth += words;
+			maxDepth = Math.max(maxDepth, depth);
+		}
+
+		void op(int opcode) {
+			bytes.write(opcode);
+		}
+
+		void u2(int value) {
+			bytes.write(value >>> 8);
+			bytes.write(value);
+		}
+
+		/**
+		 * Writes this code as a Code attribute.
+		 *
+		 * @param out The stream to write to.
+		 * @throws IOException If the code is longer than a method can be.
+		 */
+		void write(DataOutputStream out) throws IOException {
+			if (bytes.size() > 0xffff) {
+				throw new IOException("Method too large");
+			}
+			out.writeShort(file.utf8("Code"));
+			out.writeInt(2 + 2 + 4 + bytes.size() + 2 + 2);
+			out.writeShort(maxDepth);
+			out.writeShort(maxLocals);
+			out.writeInt(bytes.size());
+			bytes.writeTo(out);
+			out.writeShort(0);
+			out.writeShort(0);
+		}
+	}
+
+	/**
+	 * The bytes of a method's code, which can be patched once the targets of jumps are known.
+	 */
+	private static class Bytes extends ByteArrayOutputStream {
+
+		/**
+		 * @param index The index of a byte already written.
+		 * @param value The new value of the byte.
+		 */
+		void set(int index, int value) {
+			buf[index] = (byte) value;
+		}
+	}
+
+	/**
+	 * The constant pool and layout of the generated class.
+	 */
+	private static class ClassFile {
+		private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+		private final DataOutputStream poolOut = new DataOutputStream(pool);
+		private final Map<String, Integer> entries = new HashMap<>();
+		private int poolCount = 1;
+
+		int utf8(String value) throws IOException {
+			Integer index = entries.get("Utf8:" + value);
+			if (index == null) {
+				poolOut.writeByte(1);
+				poolOut.writeUTF(value);
+				index = add("Utf8:" + value, 1);
+			}
+			return index;
+		}
+
+		int classRef(String name) throws IOException {
+			Integer index = entries.get("Class:" + name);
+			if (index == null) {
+				int nameIndex = utf8(name);
+				poolOut.writeByte(7);
+				poolOut.writeShort(nameIndex);
+				index = add("Class:" + name, 1);
+			}
+			return index;
+		}
+
+		int stringConstant(String value) throws IOException {
+			Integer index = entries.get("String:" + value);
+			if (index == null) {
+				int valueIndex = utf8(value);
+				poolOut.writeByte(8);
+				poolOut.writeShort(valueIndex);
+				index = add("String:" + value, 1);
+			}
+			return index;
+		}
+
+		int intConstant(int value) throws IOException {
+			Integer index = entries.get("Integer:" + value);
+			if (index == null) {
+				poolOut.writeByte(3);
+				poolOut.writeInt(value);
+				index = add("Integer:" + value, 1);
+			}
+			return index;
+		}
+
+		int doubleConstant(double value) throws IOException {
+			long bits = Double.doubleToRawLongBits(value);
+			Integer index = entries.get("Double:" + bits);
+			if (index == null) {
+				poolOut.writeByte(6);
+				poolOut.writeLong(bits);
+				index = add("Double:" + bits, 2);
+			}
+			return index;
+		}
+
+		int fieldRef(String owner, String name, String descriptor) throws IOException {
+			return memberRef(9, "Fieldref:", owner, name, descriptor);
+		}
+
+		int methodRef(String owner, String name, String descriptor) throws IOException {
+			return memberRef(10, "Methodref:", owner, name, descriptor);
+		}
+
+		int interfaceMethodRef(String owner, String name, String descriptor)
+				  throws IOException {
+			return memberRef(11, "InterfaceMethodref:", owner, name, descriptor);
+		}
+
+		/**
+		 * @param tag        The constant pool tag of the reference.
+		 * @param kind       The prefix of the reference's key.
+		 * @param owner      The class that declares the member.
+		 * @param name       The name of the member.
+		 * @param descriptor The descriptor of the member.
+		 * @return The index of the reference.
+		 * @throws IOException If the pool is full.
+		 */
+		private int memberRef(int tag, String kind, String owner, String name, String descriptor)
+				  throws IOException {
+			String key = kind + owner + "." + name + descriptor;
+			Integer index = entries.get(key);
+			if (index == null) {
+				int ownerIndex = classRef(owner);
+				int nameIndex = utf8(name);
+				int descriptorIndex = utf8(descriptor);
+				poolOut.writeByte(12);
+				poolOut.writeShort(nameIndex);
+				poolOut.writeShort(descriptorIndex);
+				int nameAndType = add(key + ":NameAndType", 1);
+				poolOut.writeByte(tag);
+				poolOut.writeShort(ownerIndex);
+				poolOut.writeShort(nameAndType);
+				index = add(key, 1);
+			}
+			return index;
+		}
+
+		/**
+		 * Records an entry that was just written to the pool.
+		 *
+		 * @param key   The key the entry is looked up by.
+		 * @param slots The number of pool slots the entry takes.
+		 * @return The index of the entry.
+		 * @throws IOException If the pool is full.
+		 */
+		private int add(String key, int slots) throws IOException {
+			int index = poolCount;
+			poolCount += slots;
+			if (poolCount > 0xffff) {
+				throw new IOException("Constant pool too large");
+			}
+			entries.put(key, index);
+			return index;
+		}
+
+		/**
+		 * @param init     The body of the constructor.
+		 * @param evaluate The body of the evaluate method.
+		 * @param parts    The bodies of the methods subtrees were moved to, by number from 1.
+		 * @return The complete class file.
+		 * @throws IOException If the class exceeds a limit of the class file format.
+		 */
+		byte[] toBytes(Code init, Code evaluate, List<Code> parts) throws IOException {
+			int thisClass = classRef(CLASS_NAME);
+			int superClass = classRef("java/lang/Object");
+			int evaluator = classRef(INTERFACE_NAME);
+			int initName = utf8("<init>");
+			int initDescriptor = utf8("(" + FIELD_DESCRIPTOR + ")V");
+			int fieldName = utf8("functions");
+			int fieldDescriptor = utf8(FIELD_DESCRIPTOR);
+			int evaluateName = utf8("evaluate");
+			int evaluateDescriptor = utf8("([D)D");
+			int[] partNames = new int[parts.size()];
+			for (int i = 0; i < parts.size(); i++) {
+				partNames[i] = utf8("part" + (i + 1));
+			}
+			utf8("Code");
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0xcafebabe);
+			out.writeShort(0);
+			out.writeShort(CLASS_VERSION);
+			out.writeShort(poolCount);
+			pool.writeTo(out);
+
+			// public final super class JitExpression implements Evaluator
+			out.writeShort(0x0001 | 0x0010 | 0x0020);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(1);
+			out.writeShort(evaluator);
+
+			// private final Object[] functions
+			out.writeShort(1);
+			out.writeShort(0x0002 | 0x0010);
+			out.writeShort(fieldName);
+			out.writeShort(fieldDescriptor);
+			out.writeShort(0);
+
+			out.writeShort(2 + parts.size());
+			out.writeShort(0x0001);
+			out.writeShort(initName);
+			out.writeShort(initDescriptor);
+			out.writeShort(1);
+			init.write(out);
+
+			// public varargs double evaluate(double[])
+			out.writeShort(0x0001 | 0x0080);
+			out.writeShort(evaluateName);
+			out.writeShort(evaluateDescriptor);
+			out.writeShort(1);
+			evaluate.write(out);
+
+			// private double part<n>(double[])
+			for (int i = 0; i < parts.size(); i++) {
+				out.writeShort(0x0002);
+				out.writeShort(partNames[i]);
+				out.writeShort(evaluateDescriptor);
+				out.writeShort(1);
+				parts.get(i).write(out);
+			}
+
+			out.writeShort(0);
+			return bytes.toByteArray();
+		}
+	}
+
+	/**
+	 * Class loader for exactly one generated class, so that the class can be unloaded on its own.
+	 */
+	private static class SingleClassLoader extends ClassLoader {
+
+		SingleClassLoader(ClassLoader parent) {
+			super(parent);
+		}
+
+		Class<?> define(byte[] bytes) {
+			return defineClass(CLASS_NAME, bytes, 0, bytes.length);
+		}
+	}
+}
@@ -1,4 +1,5 @@
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -9,177 +10,69 @@ import java.util.List;
  */
 public class Lexer implements Iterable<Token> {
 	private List<Token> tokens;
+	private List<String> variables;
 
 	/**
 	 * Creates a new lexer for the given input.
 	 *
-	 * @param input The input to tokenize.
-	 * @throws IOException If an unknown character is encountered.
-	 */
-	public Lexer(String input) throws IOException {
-		tokens = getTokens(input);
-	}
-
-	/**
-	 * Converts an input string into a list of tokens
-	 *
 	 * Valid characters are:
-	 * - Digits from 0 to 9.
-	 * - '+', '-', '*', '/', '(', and ')'.
+	 * - Digits from 0 to 9, and '.' as a decimal point.
+	 * - 'e' or 'E' right after a number and followed by digits, for scientific notation: 1.5e-3.
+	 * - '+', '-', '*', '/', '^', '(', and ')'.
+	 * - '<', '<=', '>', '>=', '==', and '!=', which compare to 1 if they hold and 0 if not.
+	 * - ',', which separates the arguments of a function.
+	 * - Letters, followed by any letters and digits, which form function names or variable names.
 	 *
-	 * @param input The string to tokenize.
-	 * @return The to
-	 * @throws IOException If an unrecognized character is encountered.
-	 */
-	private static List<Token> getTokens(String input) throws IOException {
-
-		// remove all whitespace from the input string
-		input = input.replaceAll("\\s", "");
-
-		List<Token> tokens = new ArrayList<>();
-
-		for (int i = 0; i < input.length(); i++) {
-			char c = input.charAt(i);
-
-			if (Character.isDigit(c) || c == '.') {
-				i = addNumberToken(i, input, tokens);
-			} else if (Character.isLetter(c)) {
-				i = addFunction(i, input, tokens);
-			} else if (c == '-') {
-				tokens.add(subtractOrNegate(tokens));
-			} else {
-				tokens.add(getNonNumberToken(c));
-			}
-		}
-
-		return tokens;
-	}
-
-	/**
-	 * Determines if the '-' character is a NEGATION or SUBTRACT token and returns the correct
-	 * token.
+	 * Whitespace is ignored. Names that are not registered with Functions are variables, and each
+	 * distinct variable is given the next free binding slot.
 	 *
-	 * @param tokens List of all tokens so far.
-	 * @return A SUBTRACT ot NEGATION token.
+	 * @param input The input to tokenize.
+	 * @throws IOException If an unknown character is encountered.
 	 */
-	private static Token subtractOrNegate(List<Token> tokens) {
-
-		TokenType prev;
-		if (tokens.size() > 0) {
-			prev = tokens.get(tokens.size() - 1).getType();
-		} else {
-			prev = TokenType.MULTIPLY;
-		}
-
-		// The token is subtract only if the previous token is a close parentheses, a number, or a
-		// variable.
-		if (prev == TokenType.CLOSE_PAREN || prev == TokenType.NUMBER ||
-				  prev == TokenType.VARIABLE) {
-			return new Token(TokenType.SUBTRACT);
-		} else {
-			return new Token(TokenType.NEGATION);
-		}
+	public Lexer(String input) throws IOException {
+		this(input, new CursorLexer());
 	}
 
 	/**
-	 * Pulls a function from the input string and adds it to the list of tokens.
+	 * Creates a new lexer for the remaining bytes of the given buffer, from its position to its
+	 * limit, read in place as ASCII. The grammar and errors are those of the String constructor.
 	 *
-	 * @param i      The current index in the input.
-	 * @param input  The input string.
-	 * @param tokens The tokens found so far.
-	 * @return The new index in the input.
-	 * @throws IOException If the function is unrecognized.
+	 * @param input The buffer to tokenize, heap, direct, or mapped. Its position and limit are not
+	 *              changed.
+	 * @throws IOException If an unknown character is encountered.
 	 */
-	private static int addFunction(int i, String input, List<Token> tokens) throws IOException {
-		StringBuilder value = new StringBuilder();
-
-		while (i < input.length() && Character.isLetter(input.charAt(i))) {
-			value.append(input.charAt(i));
-			i++;
-		}
-		i--;
-
-		String str = value.toString();
-
-		TokenType type;
-		if (str.equals("sin")) {
-			type = TokenType.SIN;
-		} else if (str.equals("cos")) {
-			type = TokenType.COS;
-		} else if (str.equals("tan")) {
-			type = TokenType.TAN;
-		} else {
-			throw new IOException("Invalid function name: " + str);
-		}
-
-		tokens.add(new Token(type));
-		return i;
+	public Lexer(ByteBuffer input) throws IOException {
+		this(new ByteCharSequence(input), new CursorLexer());
 	}
 
 	/**
-	 * Pulls a number from the input string and adds it to the given list of tokens.
+	 * Creates a new lexer for the given range of an array of bytes, read in place as ASCII. The
+	 * grammar and errors are those of the String constructor.
 	 *
-	 * @param i      The current index in the input.
-	 * @param input  The input string.
-	 * @param tokens The tokens found so far.
-	 * @return The new index in the input.
-	 * @throws IOException If the number has tow many decimals or is only a decimal.
+	 * @param input  The array to tokenize.
+	 * @param offset The index in the array of the first byte.
+	 * @param length The number of bytes.
+	 * @throws IOException If an unknown character is encountered.
 	 */
-	private static int addNumberToken(int i, String input, List<Token> tokens) throws IOException {
-		// Creates a number Token from the digit at the given index in the input string and
-		// all digits immediately following it.
-		StringBuilder value = new StringBuilder();
-		boolean foundDecimal = false;
-		while (i < input.length() && (Character.isDigit(input.charAt(i)) || input.charAt(i) == '.')) {
-			if (input.charAt(i) == '.' && !foundDecimal) {
-				foundDecimal = true;
-			} else if (input.charAt(i) == '.') {
-				throw new IOException("Too many decimals in the number");
-			}
-
-			value.append(input.charAt(i));
-			i++;
-		}
-		i--;
-
-		if (value.length() == 1 && value.charAt(0) == '.') {
-			throw new IOException("Floating decimal");
-		}
-
-		tokens.add(new NumberToken(Double.parseDouble(value.toString())));
-		return i;
+	public Lexer(byte[] input, int offset, int length) throws IOException {
+		this(new ByteCharSequence(input, offset, length), new CursorLexer());
 	}
 
 	/**
-	 * Creates a non-number Token from the given character.
+	 * Creates a new lexer for the given input, scanning it with the given cursor lexer.
 	 *
-	 * pre: c is not a digit
-	 * is checked by getTokens
-	 *
-	 * @param c The character to create the token from.
-	 * @return A non-number token.
+	 * @param input  The input to tokenize.
+	 * @param cursor The cursor lexer to scan the input with. Its previous tokens are replaced.
 	 * @throws IOException If an unknown character is encountered.
 	 */
-	private static Token getNonNumberToken(char c) throws IOException {
-		TokenType type;
+	Lexer(CharSequence input, CursorLexer cursor) throws IOException {
+		cursor.lex(input);
 
-		if (c == '+') {
-			type = TokenType.ADD;
-		} else if (c == '*') {
-			type = TokenType.MULTIPLY;
-		} else if (c == '/') {
-			type = TokenType.DIVIDE;
-		} else if (c == '(') {
-			type = TokenType.OPEN_PAREN;
-		} else if (c == ')') {
-			type = TokenType.CLOSE_PAREN;
-		} else if (c == '^') {
-			type = TokenType.EXPONENT;
-		} else {
-			throw new IOException("Encountered unknown character. Unicode value: \\u" +
-					  Integer.toHexString(c | 0x10000).substring(1));
+		tokens = new ArrayList<>(cursor.size());
+		for (int i = 0; i < cursor.size(); i++) {
+			tokens.add(cursor.getToken(i));
 		}
-		return new Token(type);
+		variables = new ArrayList<>(cursor.getVariables());
 	}
 
 	/**
@@ -189,6 +82,13 @@ public class Lexer implements Iterable<Token> {
 		return tokens.iterator();
 	}
 
+	/**
+	 * @return The names of the variables in the lexer, indexed by binding slot.
+	 */
+	public List<String> getVariables() {
+		return variables;
+	}
+
 	/**
 	 * @return The number of tokens in the lexer.
 	 */
@@ -202,4 +102,4 @@ public class Lexer implements Iterable<Token> {
 	public String toString() {
 		return tokens.toString();
 	}
-}
\ No newline at end of file
+}
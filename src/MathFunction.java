@@ -0,0 +1,329 @@
+import java.util.Arrays;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleSupplier;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * A named function that expressions can call, such as max(a, b).
+ *
+ * A function takes a fixed number of arguments and is bound to a primitive functional interface
+ * for its arity, which every engine calls directly with unboxed doubles. Register functions with
+ * Functions.register to make their names callable.
+ *
+ * A function is pure if its result depends only on its arguments and calling it has no side
+ * effects. Calls to pure functions with constant arguments are folded by the Optimizer, and
+ * repeated calls with the same arguments are computed once by DagProgram; impure functions, such
+ * as random number generators, are called every time they appear.
+ */
+public final class MathFunction {
+
+	/**
+	 * A function of any number of arguments, for functions of three or more.
+	 *
+	 * The arguments are passed in place, in an array the caller already holds them in, such as an
+	 * operand stack, so that calls allocate nothing. The array belongs to the caller: an operator
+	 * must not write to it or keep it after it returns.
+	 */
+	public interface Operator {
+
+		/**
+		 * @param args  The array holding the arguments of the call, one per parameter, from
+		 *              args[first] on.
+		 * @param first The index of the first argument.
+		 * @return The result of the call.
+		 */
+		double apply(double[] args, int first);
+	}
+
+	private static final double[] NO_ARGUMENTS = new double[0];
+
+	private final String name;
+	private final int arity;
+	private final boolean pure;
+	private final DoubleSupplier nullary;
+	private final DoubleUnaryOperator unary;
+	private final DoubleBinaryOperator binary;
+	private final Operator operator;
+
+	/**
+	 * @param name     The name of the function.
+	 * @param arity    The number of arguments.
+	 * @param pure     True if the result depends only on the arguments, false otherwise.
+	 * @param nullary  The operator if the arity is 0, otherwise null.
+	 * @param unary    The operator if the arity is 1, otherwise null.
+	 * @param binary   The operator if the arity is 2, otherwise null.
+	 * @param operator The operator if the arity is more than 2, otherwise null.
+	 * @throws IllegalArgumentException If the name is not a letter followed by letters and digits.
+	 */
+	private MathFunction(String name, int arity, boolean pure, DoubleSupplier nullary,
+	                     DoubleUnaryOperator unary, DoubleBinaryOperator binary,
+	                     Operator operator) {
+		if (name.isEmpty()) {
+			throw new IllegalArgumentException("Function names cannot be empty");
+		}
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (i == 0 ? !Character.isLetter(c) : !Character.isLetterOrDigit(c)) {
+				throw new IllegalArgumentException(
+						  "Function names must be a letter followed by letters and digits: " +
+									 name);
+			}
+		}
+		this.name = name;
+		this.arity = arity;
+		this.pure = pure;
+		this.nullary = nullary;
+		this.unary = unary;
+		this.binary = binary;
+		this.operator = operator;
+	}
+
+	/**
+	 * @param name     The name of the function, a letter followed by letters and digits.
+	 * @param pure     True if the result is always the same and calling it has no side effects.
+	 * @param function The function.
+	 * @return A function of no arguments.
+	 * @throws IllegalArgumentException If the name is not a letter followed by letters and
+	 *                                  digits.
+	 */
+	public static MathFunction nullary(String name, boolean pure, DoubleSupplier function) {
+		return new MathFunction(name, 0, pure, function, null, null, null);
+	}
+
+	/**
+	 * @param name     The name of the function, a letter followed by letters and digits.
+	 * @param pure     True if the result depends only on the argument, false otherwise.
+	 * @param function The function.
+	 * @return A function of one argument.
+	 * @throws IllegalArgumentException If the name is not a letter followed by letters and
+	 *                                  digits.
+	 */
+	public static MathFunction unary(String name, boolean pure, DoubleUnaryOperator function) {
+		return new MathFunction(name, 1, pure, null, function, null, null);
+	}
+
+	/**
+	 * @param name     The name of the function, a letter followed by letters and digits.
+	 * @param pure     True if the result depends only on the arguments, false otherwise.
+	 * @param function The function.
+	 * @return A function of two arguments.
+	 * @throws IllegalArgumentException If the name is not a letter followed by letters and
+	 *                                  digits.
+	 */
+	public static MathFunction binary(String name, boolean pure, DoubleBinaryOperator function) {
+		return new MathFunction(name, 2, pure, null, null, function, null);
+	}
+
+	/**
+	 * @param name     The name of the function, a letter followed by letters and digits.
+	 * @param arity    The number of arguments.
+	 * @param pure     True if the result depends only on the arguments, false otherwise.
+	 * @param function The function. Functions of one or two arguments are passed them on a
+	 *                 stack of the calling thread, so that their calls allocate nothing.
+	 * @return A function of the given number of arguments.
+	 * @throws IllegalArgumentException If the name is not a letter followed by letters and
+	 *                                  digits, or the arity is negative.
+	 */
+	public static MathFunction of(String name, int arity, boolean pure, Operator function) {
+		if (arity < 0) {
+			throw new IllegalArgumentException("Arity must not be negative: " + arity);
+		} else if (arity == 0) {
+			return nullary(name, pure, () -> function.apply(NO_ARGUMENTS, 0));
+		} else if (arity == 1) {
+			return unary(name, pure, x -> Arguments.call(function, x));
+		} else if (arity == 2) {
+			return binary(name, pure, (x, y) -> Arguments.call(function, x, y));
+		}
+		return new MathFunction(name, arity, pure, null, null, null, function);
+	}
+
+	/**
+	 * @return The name of the function.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return The number of arguments the function takes.
+	 */
+	public int getArity() {
+		return arity;
+	}
+
+	/**
+	 * @return True if the result depends only on the arguments and calling the function has no
+	 * side effects, false otherwise.
+	 */
+	public boolean isPure() {
+		return pure;
+	}
+
+	/**
+	 * @return The functional interface the function is bound to: a DoubleSupplier,
+	 * DoubleUnaryOperator, DoubleBinaryOperator, or Operator, by arity.
+	 */
+	Object getOperator() {
+		if (arity == 0) {
+			return nullary;
+		} else if (arity == 1) {
+			return unary;
+		} else if (arity == 2) {
+			return binary;
+		} else {
+			return operator;
+		}
+	}
+
+	/**
+	 * @return The result of a function of no arguments.
+	 */
+	double apply() {
+		return nullary.getAsDouble();
+	}
+
+	/**
+	 * @param x The argument of a function of one argument.
+	 * @return The result of the call.
+	 */
+	double apply(double x) {
+		return unary.applyAsDouble(x);
+	}
+
+	/**
+	 * @param x The first argument of a function of two arguments.
+	 * @param y The second argument.
+	 * @return The result of the call.
+	 */
+	double apply(double x, double y) {
+		return binary.applyAsDouble(x, y);
+	}
+
+	/**
+	 * Calls the function with arguments that are consecutive in an array, such as the top of an
+	 * operand stack.
+	 *
+	 * @param operands The array of the arguments.
+	 * @param first    The index of the first argument.
+	 * @return The result of the call.
+	 */
+	double apply(double[] operands, int first) {
+		if (arity == 0) {
+			return nullary.getAsDouble();
+		} else if (arity == 1) {
+			return unary.applyAsDouble(operands[first]);
+		} else if (arity == 2) {
+			return binary.applyAsDouble(operands[first], operands[first + 1]);
+		} else {
+			return operator.apply(operands, first);
+		}
+	}
+
+	/**
+	 * @return The name and arity of the function.
+	 */
+	public String toString() {
+		return name + "/" + arity;
+	}
+
+	/**
+	 * A stack of arguments for each thread, for callers of an Operator that do not hold the
+	 * arguments in an array of their own. A call reserves its arguments on top of the stack and
+	 * releases them when it returns, so the arguments of calls in progress are never overwritten,
+	 * even by calls the operators make themselves, and calls allocate nothing once the stack has
+	 * grown to the deepest nesting.
+	 */
+	static final class Arguments {
+
+		private static final ThreadLocal<Arguments> STACKS =
+				  ThreadLocal.withInitial(Arguments::new);
+
+		private double[] values = new double[16];
+		private int top;
+
+		/**
+		 * @return The stack of the calling thread.
+		 */
+		static Arguments get() {
+			return STACKS.get();
+		}
+
+		/**
+		 * @param operator The operator of a function of one argument.
+		 * @param x        The argument.
+		 * @return The result of the call.
+		 */
+		static double call(Operator operator, double x) {
+			Arguments arguments = STACKS.get();
+			int first = arguments.reserve(1);
+			arguments.values[first] = x;
+			try {
+				return operator.apply(arguments.values, first);
+			} finally {
+				arguments.release(first);
+			}
+		}
+
+		/**
+		 * @param operator The operator of a function of two arguments.
+		 * @param x        The first argument.
+		 * @param y        The second argument.
+		 * @return The result of the call.
+		 */
+		static double call(Operator operator, double x, double y) {
+			Arguments arguments = STACKS.get();
+			int first = arguments.reserve(2);
+			arguments.values[first] = x;
+			arguments.values[first + 1] = y;
+			try {
+				return operator.apply(arguments.values, first);
+			} finally {
+				arguments.release(first);
+			}
+		}
+
+		/**
+		 * Reserves room for the arguments of a call on top of the stack.
+		 *
+		 * @param count The number of arguments.
+		 * @return The index of the first argument in values.
+		 */
+		int reserve(int count) {
+			if (top + count > values.length) {
+				// calls in progress keep reading the old array, which still holds their arguments
+				values = Arrays.copyOf(values, Math.max(values.length * 2, top + count));
+			}
+			int first = top;
+			top += count;
+			return first;
+		}
+
+		/**
+		 * @param index The index in values of an argument.
+		 * @param value The value of the argument.
+		 */
+		void set(int index, double value) {
+			values[index] = value;
+		}
+
+		/**
+		 * Calls a function with arguments reserved on the stack.
+		 *
+		 * @param function The function, of three or more arguments.
+		 * @param first    The index in values of the first argument.
+		 * @return The result of the call.
+		 */
+		double apply(MathFunction function, int first) {
+			return function.apply(values, first);
+		}
+
+		/**
+		 * Releases the arguments of a call and every argument reserved after them.
+		 *
+		 * @param first The index in values of the first argument of the call.
+		 */
+		void release(int first) {
+			top = first;
+		}
+	}
+}
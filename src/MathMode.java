@@ -0,0 +1,12 @@
+/**
+ * How an expression computes sin, cos, tan, and powers.
+ */
+public enum MathMode {
+	/** With Math.sin, Math.cos, Math.tan, and Math.pow, to within an ulp of the exact result. */
+	STRICT,
+	/**
+	 * With the faster approximations in FastMath, to within FastMath.MAX_RELATIVE_ERROR of the
+	 * strict result.
+	 */
+	FAST,
+}
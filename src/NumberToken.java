@@ -40,4 +40,11 @@ public class NumberToken extends Token {
 			return false;
 		}
 	}
+
+	/**
+	 * @return A hash code consistent with equals, so 0.0 and -0.0 hash the same.
+	 */
+	public int hashCode() {
+		return (value == 0) ? 0 : Double.hashCode(value);
+	}
 }
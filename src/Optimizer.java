@@ -0,0 +1,221 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Simplifies the syntax trees of compiled expressions without changing their results.
+ *
+ * The optimizer folds subtrees that do not depend on any variable into single numbers, and
+ * removes operations that always return their operand: x * 1, 1 * x, x / 1, x - 0, x + -0,
+ * -0 + x, x ^ 1, and double negation. x ^ 0 becomes 1. Every rewrite gives the same result as the
+ * original tree for all inputs, including NaN, infinities, and signed zeros, so some familiar
+ * identities are deliberately left alone: x + 0 turns -0 into +0, and x * 0 is NaN when x is
+ * infinite. Operands are never reordered or regrouped, since that changes rounding, so a
+ * constant is only folded when it forms a whole subtree; in x * 2 * 3 the 2 * 3 is not one.
+ * Calls are folded only if the function is pure and every argument is constant.
+ *
+ * An Optimizer is not thread-safe; it records how many nodes the last call removed.
+ */
+public class Optimizer {
+
+	private int nodesRemoved;
+
+	/**
+	 * Optimizes the given expression.
+	 *
+	 * @param expression The expression to optimize. It is not modified.
+	 * @return An expression with the same variable slots and results and a smaller tree.
+	 */
+	public Expression optimize(Expression expression) {
+		ParseEvents.Event event = ParseEvents.begin(ParseEvents.Kind.OPTIMIZE);
+		Parser.TreeNode root = expression.getRoot();
+		Parser.TreeNode optimized = optimize(root);
+		nodesRemoved = Parser.countNodes(root) - Parser.countNodes(optimized);
+		if (event != null && event.finish()) {
+			event.commit(expression.toString().length(), 0, Parser.depth(optimized), "tree");
+		}
+		return expression.withRoot(optimized);
+	}
+
+	/**
+	 * @return The number of nodes removed from the tree by the last call to optimize.
+	 */
+	public int getNodesRemoved() {
+		return nodesRemoved;
+	}
+
+	/**
+	 * Builds an optimized copy of the tree rooted at the given node, children first and without
+	 * recursing. Children that the evaluator never reads, such as the left child of a function,
+	 * are dropped.
+	 *
+	 * @param root The root of the tree, or null.
+	 * @return The root of the optimized copy, or null if root is null.
+	 */
+	private static Parser.TreeNode optimize(Parser.TreeNode root) {
+		// the optimized copies of the operands of the nodes still to come
+		List<Parser.TreeNode> operands = new ArrayList<>();
+		for (Parser.TreeNode node : Parser.postOrder(root)) {
+			operands.add(optimizeNode(node, operands));
+		}
+		return operands.get(0);
+	}
+
+	/**
+	 * @param node     A node, or null.
+	 * @param operands The optimized copies of the operands read so far. The node's operands are
+	 *                 removed from the end.
+	 * @return The optimized copy of the node, or null if node is null.
+	 */
+	private static Parser.TreeNode optimizeNode(Parser.TreeNode node,
+	                                            List<Parser.TreeNode> operands) {
+		if (node == null) {
+			return null;
+		}
+
+		TokenType type = node.token.getType();
+		if (type == TokenType.NUMBER || type == TokenType.VARIABLE) {
+			return new Parser.TreeNode(node.token, null, null);
+		} else if (type == TokenType.COMMA) {
+			// the arguments are folded with their function
+			Parser.TreeNode right = operands.remove(operands.size() - 1);
+			return new Parser.TreeNode(node.token, operands.remove(operands.size() - 1), right);
+		} else if (type == TokenType.FUNCTION) {
+			return call(node, operands);
+		} else if (!Parser.isBinary(type) && !Parser.isUnary(type)) {
+			// the evaluator treats anything else, such as an unclosed parentheses, as zero
+			return number(0);
+		}
+
+		Parser.TreeNode right = operands.remove(operands.size() - 1);
+		Parser.TreeNode left = null;
+		if (Parser.isBinary(type)) {
+			left = operands.remove(operands.size() - 1);
+		}
+
+		Parser.TreeNode result = new Parser.TreeNode(node.token, left, right);
+		if (isConstant(left) && isConstant(right)) {
+			return number(Parser.evaluateSyntaxTree(result, new double[0]));
+		}
+		return simplify(result);
+	}
+
+	/**
+	 * @param node     A FUNCTION node.
+	 * @param operands The optimized copies of the operands read so far. The node's arguments are
+	 *                 removed from the end.
+	 * @return The optimized copy of the call, or its result if it can be folded.
+	 */
+	private static Parser.TreeNode call(Parser.TreeNode node, List<Parser.TreeNode> operands) {
+		MathFunction function = ((FunctionToken) node.token).getFunction();
+		Parser.TreeNode arguments = null;
+		if (function.getArity() > 0) {
+			arguments = operands.remove(operands.size() - 1);
+		}
+
+		if (function == Functions.IF && isConstant(arguments.left.left)) {
+			// only the branch taken is evaluated, even if the other calls impure functions
+			boolean holds = Parser.evaluateSyntaxTree(arguments.left.left, new double[0]) != 0;
+			return detach(holds ? arguments.left.right : arguments.right);
+		}
+
+		Parser.TreeNode result = new Parser.TreeNode(node.token, null, arguments);
+		if (!function.isPure()) {
+			return result;
+		}
+		if (function.getArity() > 1) {
+			// the arguments are the right children of the commas and the bottom left
+			Parser.TreeNode comma = arguments;
+			for (int i = 1; i < function.getArity(); i++) {
+				if (!isConstant(comma.right)) {
+					return result;
+				}
+				comma = comma.left;
+			}
+			arguments = comma;
+		}
+		if (isConstant(arguments)) {
+			return number(Parser.evaluateSyntaxTree(result, new double[0]));
+		}
+		return result;
+	}
+
+	/**
+	 * Removes the given node if it is an identity operation.
+	 *
+	 * @param node A node whose children are already optimized and not both constant.
+	 * @return The node, or what it simplifies to.
+	 */
+	private static Parser.TreeNode simplify(Parser.TreeNode node) {
+		TokenType type = node.token.getType();
+		if (type == TokenType.MULTIPLY) {
+			if (isNumber(node.right, 1)) {
+				return detach(node.left);
+			} else if (isNumber(node.left, 1)) {
+				return detach(node.right);
+			}
+		} else if (type == TokenType.DIVIDE || type == TokenType.EXPONENT) {
+			if (isNumber(node.right, 1)) {
+				return detach(node.left);
+			} else if (type == TokenType.EXPONENT &&
+					  (isNumber(node.right, 0) || isNumber(node.right, -0.0))) {
+				// Math.pow returns 1 for a zero exponent, even if the base is NaN
+				return number(1);
+			}
+		} else if (type == TokenType.SUBTRACT) {
+			if (isNumber(node.right, 0)) {
+				return detach(node.left);
+			}
+		} else if (type == TokenType.ADD) {
+			if (isNumber(node.right, -0.0)) {
+				return detach(node.left);
+			} else if (isNumber(node.left, -0.0)) {
+				return detach(node.right);
+			}
+		} else if (type == TokenType.NEGATION) {
+			if (node.right != null && node.right.token.getType() == TokenType.NEGATION) {
+				return detach(node.right.right);
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * @param node An optimized node, or null.
+	 * @return True if the node is null, which evaluates to zero, or a number, false otherwise.
+	 */
+	private static boolean isConstant(Parser.TreeNode node) {
+		return node == null || node.token.getType() == TokenType.NUMBER;
+	}
+
+	/**
+	 * @param node  An optimized node, or null.
+	 * @param value A value.
+	 * @return True if the node is a number with exactly the given value, including the sign of
+	 * zero, false otherwise.
+	 */
+	private static boolean isNumber(Parser.TreeNode node, double value) {
+		return node != null && node.token.getType() == TokenType.NUMBER &&
+				  Double.doubleToLongBits(((NumberToken) node.token).getValue()) ==
+							 Double.doubleToLongBits(value);
+	}
+
+	/**
+	 * @param value The value of the number.
+	 * @return A new leaf node holding the number.
+	 */
+	private static Parser.TreeNode number(double value) {
+		return new Parser.TreeNode(new NumberToken(value), null, null);
+	}
+
+	/**
+	 * @param node A node that is replacing its parent, or null for zero.
+	 * @return The node, without a parent.
+	 */
+	private static Parser.TreeNode detach(Parser.TreeNode node) {
+		if (node == null) {
+			return number(0);
+		}
+		node.parent = null;
+		return node;
+	}
+}
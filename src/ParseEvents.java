@@ -0,0 +1,93 @@
+/**
+ * Emits Java Flight Recorder events for the work of the parser, so that slow expressions can be
+ * lined up with GC and thread activity in a recording.
+ *
+ * The events themselves live in FlightRecorderEvents, which is compiled separately against
+ * jdk.jfr and loaded here by name. On a JVM without JFR it is never loaded and every begin
+ * returns null. With JFR, begin also returns null unless a recording has the event enabled, so
+ * outside a recording each instrumented call costs one check. Each event has a threshold, 1 ms
+ * by default, and is only committed if it took at least that long; the fields are only filled in
+ * for the events that are committed.
+ */
+final class ParseEvents {
+
+	/**
+	 * The kinds of work that are recorded.
+	 */
+	enum Kind {
+		LEX,
+		BUILD,
+		OPTIMIZE,
+		COMPILE,
+		EVALUATE,
+	}
+
+	/**
+	 * An event that has begun.
+	 */
+	interface Event {
+
+		/**
+		 * Ends the event.
+		 *
+		 * @return True if the event took long enough to be committed, false otherwise.
+		 */
+		boolean finish();
+
+		/**
+		 * Commits the event. Call only if finish returned true.
+		 *
+		 * @param length The length of the expression, or 0 if it is not known.
+		 * @param tokens The number of tokens of the expression, or 0 if it is not known.
+		 * @param depth  The depth of the syntax tree, or 0 if it is not known.
+		 * @param engine The name of the engine that did the work.
+		 */
+		void commit(int length, int tokens, int depth, String engine);
+	}
+
+	/**
+	 * Begins events.
+	 */
+	interface Factory {
+
+		/**
+		 * @param kind The kind of work.
+		 * @return A begun event, or null if the event is not enabled.
+		 */
+		Event begin(Kind kind);
+	}
+
+	private static final Factory FACTORY = load();
+
+	private ParseEvents() {
+	}
+
+	/**
+	 * @param kind The kind of work about to be done.
+	 * @return A begun event, or null if the event is not being recorded.
+	 */
+	static Event begin(Kind kind) {
+		return FACTORY == null ? null : FACTORY.begin(kind);
+	}
+
+	/**
+	 * @return True if this JVM can record the events, false otherwise.
+	 */
+	static boolean isAvailable() {
+		return FACTORY != null;
+	}
+
+	/**
+	 * @return The factory of the events, or null if this JVM has no flight recorder or the events
+	 * were not built.
+	 */
+	private static Factory load() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return (Factory) Class.forName("FlightRecorderEvents").getDeclaredConstructor()
+					  .newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,23 @@
+/**
+ * Receives the intermediate results of parsing, for tracing and debugging.
+ *
+ * Register a listener with Parser.setListener. Parser only builds and passes these results on
+ * when a listener is registered.
+ */
+public interface ParseListener {
+
+	/**
+	 * Called after an input has been tokenized.
+	 *
+	 * @param input The input that was tokenized.
+	 * @param lexer The tokens of the input.
+	 */
+	void tokenized(String input, Lexer lexer);
+
+	/**
+	 * Called after the syntax tree for an input has been built.
+	 *
+	 * @param root The root of the syntax tree.
+	 */
+	void treeBuilt(TreePrinter.PrintableNode root);
+}
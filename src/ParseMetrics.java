@@ -0,0 +1,464 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts and times the work of the parser: the latency of each phase, the number of tokens and
+ * nodes in each expression, errors by cause, and compile and cache statistics.
+ *
+ * Metrics are off until an instance is registered with Parser.setMetrics, and while they are off
+ * the parser does no timing or counting at all. Recording is lock-free, so one instance can be
+ * shared by every thread. Read the metrics by polling snapshot, or over JMX after registerMBean.
+ *
+ * Latencies and sizes are kept in histograms with power-of-two buckets, so percentiles are
+ * accurate to within a factor of two.
+ */
+public final class ParseMetrics implements ParseMetricsMXBean {
+
+	/**
+	 * The phases of evaluating an input.
+	 */
+	public enum Phase {
+		/** Tokenizing the input. */
+		LEX,
+		/** Building the syntax tree from the tokens. */
+		BUILD,
+		/** Evaluating the syntax tree. */
+		EVALUATE,
+	}
+
+	/**
+	 * The name the MBean is registered under.
+	 */
+	public static final String OBJECT_NAME = "MathParser:type=ParseMetrics";
+
+	private final Histogram[] latencies = new Histogram[Phase.values().length];
+	private final Histogram tokens = new Histogram();
+	private final Histogram nodes = new Histogram();
+	private final LongAdder[] errors = new LongAdder[ParseResult.Error.values().length];
+
+	private final LongAdder compiles = new LongAdder();
+	private final LongAdder jitCompiles = new LongAdder();
+	private final LongAdder jitFallbacks = new LongAdder();
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder cacheMisses = new LongAdder();
+	private final LongAdder cacheEvictions = new LongAdder();
+
+	/**
+	 * Creates a new set of metrics, all zero.
+	 */
+	public ParseMetrics() {
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = new Histogram();
+		}
+		for (int i = 0; i < errors.length; i++) {
+			errors[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server under OBJECT_NAME.
+	 *
+	 * @throws JMException If the name is taken or the MBean cannot be registered.
+	 */
+	public void registerMBean() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		server.registerMBean(this, new ObjectName(OBJECT_NAME));
+	}
+
+	/**
+	 * @param phase The phase that was timed.
+	 * @param nanos How long it took.
+	 */
+	void recordLatency(Phase phase, long nanos) {
+		latencies[phase.ordinal()].record(nanos);
+	}
+
+	/**
+	 * @param tokenCount The number of tokens in an expression.
+	 * @param nodeCount  The number of nodes in its syntax tree.
+	 */
+	void recordSize(int tokenCount, int nodeCount) {
+		tokens.record(tokenCount);
+		nodes.record(nodeCount);
+	}
+
+	void recordError(ParseResult.Error error) {
+		errors[error.ordinal()].increment();
+	}
+
+	void recordCompile() {
+		compiles.increment();
+	}
+
+	/**
+	 * @param fellBack True if the expression could not be compiled to a class and a
+	 *                 PostfixProgram was used instead.
+	 */
+	void recordJitCompile(boolean fellBack) {
+		jitCompiles.increment();
+		if (fellBack) {
+			jitFallbacks.increment();
+		}
+	}
+
+	/**
+	 * @param hit True if the lookup found a cached expression.
+	 */
+	void recordCacheLookup(boolean hit) {
+		(hit ? cacheHits : cacheMisses).increment();
+	}
+
+	void recordCacheEviction() {
+		cacheEvictions.increment();
+	}
+
+	/**
+	 * Takes a consistent-enough copy of the metrics for polling. Counters that are updated while
+	 * the snapshot is taken may be off by the updates in flight.
+	 *
+	 * @return A snapshot of the metrics.
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * Resets every metric to zero.
+	 */
+	public void reset() {
+		for (Histogram histogram : latencies) {
+			histogram.reset();
+		}
+		tokens.reset();
+		nodes.reset();
+		for (LongAdder counter : errors) {
+			counter.reset();
+		}
+		compiles.reset();
+		jitCompiles.reset();
+		jitFallbacks.reset();
+		cacheHits.reset();
+		cacheMisses.reset();
+		cacheEvictions.reset();
+	}
+
+	// MBean attributes
+
+	public long getLexCount() {
+		return latencies[Phase.LEX.ordinal()].count.sum();
+	}
+
+	public double getLexMeanNanos() {
+		return latencies[Phase.LEX.ordinal()].mean();
+	}
+
+	public long getLexP99Nanos() {
+		return latencies[Phase.LEX.ordinal()].percentile(0.99);
+	}
+
+	public long getBuildCount() {
+		return latencies[Phase.BUILD.ordinal()].count.sum();
+	}
+
+	public double getBuildMeanNanos() {
+		return latencies[Phase.BUILD.ordinal()].mean();
+	}
+
+	public long getBuildP99Nanos() {
+		return latencies[Phase.BUILD.ordinal()].percentile(0.99);
+	}
+
+	public long getEvaluateCount() {
+		return latencies[Phase.EVALUATE.ordinal()].count.sum();
+	}
+
+	public double getEvaluateMeanNanos() {
+		return latencies[Phase.EVALUATE.ordinal()].mean();
+	}
+
+	public long getEvaluateP99Nanos() {
+		return latencies[Phase.EVALUATE.ordinal()].percentile(0.99);
+	}
+
+	public double getTokensPerExpressionMean() {
+		return tokens.mean();
+	}
+
+	public double getNodesPerExpressionMean() {
+		return nodes.mean();
+	}
+
+	public Map<String, Long> getErrorCounts() {
+		Map<String, Long> counts = new LinkedHashMap<>();
+		for (ParseResult.Error error : ParseResult.Error.values()) {
+			counts.put(error.name(), errors[error.ordinal()].sum());
+		}
+		return counts;
+	}
+
+	public long getCompileCount() {
+		return compiles.sum();
+	}
+
+	public long getJitCompileCount() {
+		return jitCompiles.sum();
+	}
+
+	public long getJitFallbackCount() {
+		return jitFallbacks.sum();
+	}
+
+	public long getCacheHitCount() {
+		return cacheHits.sum();
+	}
+
+	public long getCacheMissCount() {
+		return cacheMisses.sum();
+	}
+
+	public long getCacheEvictionCount() {
+		return cacheEvictions.sum();
+	}
+
+	/**
+	 * A histogram of non-negative values in power-of-two buckets: bucket 0 holds 0, and bucket b
+	 * holds the values from 2^(b-1) to 2^b - 1.
+	 */
+	private static class Histogram {
+		private final LongAdder[] buckets = new LongAdder[65];
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+
+		Histogram() {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		void record(long value) {
+			buckets[64 - Long.numberOfLeadingZeros(Math.max(0, value))].increment();
+			count.increment();
+			sum.add(value);
+		}
+
+		long[] counts() {
+			long[] counts = new long[buckets.length];
+			for (int i = 0; i < buckets.length; i++) {
+				counts[i] = buckets[i].sum();
+			}
+			return counts;
+		}
+
+		double mean() {
+			long n = count.sum();
+			return (n == 0) ? 0 : (double) sum.sum() / n;
+		}
+
+		long percentile(double fraction) {
+			return Snapshot.percentile(counts(), fraction);
+		}
+
+		void reset() {
+			for (LongAdder bucket : buckets) {
+				bucket.reset();
+			}
+			count.reset();
+			sum.reset();
+		}
+	}
+
+	/**
+	 * A copy of the metrics at one point in time.
+	 */
+	public static final class Snapshot {
+		private final long[][] latencyCounts = new long[Phase.values().length][];
+		private final long[] latencySums = new long[Phase.values().length];
+		private final long[] tokenCounts;
+		private final long tokenSum;
+		private final long[] nodeCounts;
+		private final long nodeSum;
+		private final long[] errorCounts = new long[ParseResult.Error.values().length];
+		private final long compiles;
+		private final long jitCompiles;
+		private final long jitFallbacks;
+		private final long cacheHits;
+		private final long cacheMisses;
+		private final long cacheEvictions;
+
+		/**
+		 * @param metrics The metrics to copy.
+		 */
+		private Snapshot(ParseMetrics metrics) {
+			for (Phase phase : Phase.values()) {
+				latencyCounts[phase.ordinal()] = metrics.latencies[phase.ordinal()].counts();
+				latencySums[phase.ordinal()] = metrics.latencies[phase.ordinal()].sum.sum();
+			}
+			tokenCounts = metrics.tokens.counts();
+			tokenSum = metrics.tokens.sum.sum();
+			nodeCounts = metrics.nodes.counts();
+			nodeSum = metrics.nodes.sum.sum();
+			for (int i = 0; i < errorCounts.length; i++) {
+				errorCounts[i] = metrics.errors[i].sum();
+			}
+			compiles = metrics.compiles.sum();
+			jitCompiles = metrics.jitCompiles.sum();
+			jitFallbacks = metrics.jitFallbacks.sum();
+			cacheHits = metrics.cacheHits.sum();
+			cacheMisses = metrics.cacheMisses.sum();
+			cacheEvictions = metrics.cacheEvictions.sum();
+		}
+
+		/**
+		 * @param phase A phase.
+		 * @return The number of times the phase was timed.
+		 */
+		public long getCount(Phase phase) {
+			return total(latencyCounts[phase.ordinal()]);
+		}
+
+		/**
+		 * @param phase A phase.
+		 * @return The mean latency of the phase in nanoseconds, or 0 if it was never timed.
+		 */
+		public double getMeanNanos(Phase phase) {
+			long count = getCount(phase);
+			return (count == 0) ? 0 : (double) latencySums[phase.ordinal()] / count;
+		}
+
+		/**
+		 * @param phase    A phase.
+		 * @param fraction The fraction of timings at or below the percentile, such as 0.99.
+		 * @return An upper bound, within a factor of two, of the latency of the phase in
+		 * nanoseconds at the percentile, or 0 if it was never timed.
+		 */
+		public long getPercentileNanos(Phase phase, double fraction) {
+			return percentile(latencyCounts[phase.ordinal()], fraction);
+		}
+
+		/**
+		 * @param phase A phase.
+		 * @return The number of timings in each power-of-two bucket: bucket 0 holds 0ns, and
+		 * bucket b holds 2^(b-1) to 2^b - 1 ns.
+		 */
+		public long[] getHistogram(Phase phase) {
+			return latencyCounts[phase.ordinal()].clone();
+		}
+
+		/**
+		 * @return The mean number of tokens per expression.
+		 */
+		public double getMeanTokens() {
+			long count = total(tokenCounts);
+			return (count == 0) ? 0 : (double) tokenSum / count;
+		}
+
+		/**
+		 * @param fraction The fraction of expressions at or below the percentile, such as 0.99.
+		 * @return An upper bound, within a factor of two, of the tokens per expression at the
+		 * percentile.
+		 */
+		public long getPercentileTokens(double fraction) {
+			return percentile(tokenCounts, fraction);
+		}
+
+		/**
+		 * @return The mean number of syntax tree nodes per expression.
+		 */
+		public double getMeanNodes() {
+			long count = total(nodeCounts);
+			return (count == 0) ? 0 : (double) nodeSum / count;
+		}
+
+		/**
+		 * @param fraction The fraction of expressions at or below the percentile, such as 0.99.
+		 * @return An upper bound, within a factor of two, of the nodes per expression at the
+		 * percentile.
+		 */
+		public long getPercentileNodes(double fraction) {
+			return percentile(nodeCounts, fraction);
+		}
+
+		/**
+		 * @param error A kind of error.
+		 * @return The number of inputs rejected with the error.
+		 */
+		public long getErrorCount(ParseResult.Error error) {
+			return errorCounts[error.ordinal()];
+		}
+
+		/**
+		 * @return The number of inputs compiled with Parser.compile.
+		 */
+		public long getCompileCount() {
+			return compiles;
+		}
+
+		/**
+		 * @return The number of expressions compiled with JitCompiler.
+		 */
+		public long getJitCompileCount() {
+			return jitCompiles;
+		}
+
+		/**
+		 * @return The number of JitCompiler compilations that fell back to a PostfixProgram.
+		 */
+		public long getJitFallbackCount() {
+			return jitFallbacks;
+		}
+
+		/**
+		 * @return The number of ExpressionCache lookups that found a cached expression.
+		 */
+		public long getCacheHitCount() {
+			return cacheHits;
+		}
+
+		/**
+		 * @return The number of ExpressionCache lookups that had to compile their input.
+		 */
+		public long getCacheMissCount() {
+			return cacheMisses;
+		}
+
+		/**
+		 * @return The number of expressions evicted from every ExpressionCache.
+		 */
+		public long getCacheEvictionCount() {
+			return cacheEvictions;
+		}
+
+		private static long total(long[] counts) {
+			long total = 0;
+			for (long count : counts) {
+				total += count;
+			}
+			return total;
+		}
+
+		/**
+		 * @param counts   The counts of a histogram's buckets.
+		 * @param fraction The fraction of values at or below the percentile.
+		 * @return The largest value of the bucket holding the percentile, or 0 if there are no
+		 * values.
+		 */
+		static long percentile(long[] counts, double fraction) {
+			long total = total(counts);
+			long rank = (long) Math.ceil(total * fraction);
+			long seen = 0;
+			for (int bucket = 0; bucket < counts.length; bucket++) {
+				seen += counts[bucket];
+				if (seen >= rank && seen > 0) {
+					return (bucket == 0) ? 0 : (bucket == 64) ? Long.MAX_VALUE : (1L << bucket) - 1;
+				}
+			}
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,52 @@
+import java.util.Map;
+
+/**
+ * The JMX view of ParseMetrics. Latencies are in nanoseconds, and the 99th percentiles are upper
+ * bounds within a factor of two.
+ */
+public interface ParseMetricsMXBean {
+
+	long getLexCount();
+
+	double getLexMeanNanos();
+
+	long getLexP99Nanos();
+
+	long getBuildCount();
+
+	double getBuildMeanNanos();
+
+	long getBuildP99Nanos();
+
+	long getEvaluateCount();
+
+	double getEvaluateMeanNanos();
+
+	long getEvaluateP99Nanos();
+
+	double getTokensPerExpressionMean();
+
+	double getNodesPerExpressionMean();
+
+	/**
+	 * @return The number of inputs rejected with each kind of error, by the name of the error.
+	 */
+	Map<String, Long> getErrorCounts();
+
+	long getCompileCount();
+
+	long getJitCompileCount();
+
+	long getJitFallbackCount();
+
+	long getCacheHitCount();
+
+	long getCacheMissCount();
+
+	long getCacheEvictionCount();
+
+	/**
+	 * Resets every metric to zero.
+	 */
+	void reset();
+}
@@ -0,0 +1,107 @@
+/**
+ * The result of validating or parsing an input without throwing: either valid, or the first
+ * syntax error with its position in the input.
+ *
+ * Valid results are all the shared instance VALID, so validating a valid input allocates
+ * nothing. An invalid result is a single small object; unlike an IOException it captures no stack
+ * trace.
+ */
+public final class ParseResult {
+
+	/**
+	 * The kinds of syntax error.
+	 */
+	public enum Error {
+		/** A number with more than one decimal point. */
+		TOO_MANY_DECIMALS,
+		/** A decimal point with no digits. */
+		FLOATING_DECIMAL,
+		/** A character that is not part of the grammar. */
+		UNKNOWN_CHARACTER,
+		/** A close parentheses with no open parentheses before it. */
+		NO_OPENING_PARENTHESES,
+		/** An input with nothing to evaluate. */
+		EMPTY_EXPRESSION,
+		/** An input whose syntax tree is deeper than the maximum depth. */
+		TOO_DEEP,
+		/** A comma that does not separate the arguments of a function. */
+		MISPLACED_COMMA,
+		/** A function called with more or fewer arguments than it takes. */
+		WRONG_ARGUMENT_COUNT,
+		/** A function that is not followed by its arguments in closed parentheses. */
+		UNCLOSED_FUNCTION,
+		/**
+		 * An input with variables that is evaluated rather than compiled. Validation accepts
+		 * variables, so it never reports this.
+		 */
+		UNBOUND_VARIABLE,
+	}
+
+	/**
+	 * The result of every valid input.
+	 */
+	public static final ParseResult VALID = new ParseResult(null, -1, "", null);
+
+	private final Error error;
+	private final int offset;
+	private final String token;
+	private final String message;
+
+	/**
+	 * @param error   The kind of error, or null if the input is valid.
+	 * @param offset  The index in the input of the offending token, or -1.
+	 * @param token   The text of the offending token.
+	 * @param message The message of the IOException the throwing API raises for the error.
+	 */
+	ParseResult(Error error, int offset, String token, String message) {
+		this.error = error;
+		this.offset = offset;
+		this.token = token;
+		this.message = message;
+	}
+
+	/**
+	 * @return True if the input is valid, false otherwise.
+	 */
+	public boolean isValid() {
+		return error == null;
+	}
+
+	/**
+	 * @return The kind of error, or null if the input is valid.
+	 */
+	public Error getError() {
+		return error;
+	}
+
+	/**
+	 * @return The index in the input of the first character of the offending token, the length
+	 * of the input for an empty expression, or -1 if the input is valid.
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return The text of the offending token, as it appears in the input, or the empty string if
+	 * there is none.
+	 */
+	public String getToken() {
+		return token;
+	}
+
+	/**
+	 * @return A description of the error, the same as the message of the IOException the throwing
+	 * API raises for it, or null if the input is valid.
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return A string representation of the result.
+	 */
+	public String toString() {
+		return isValid() ? "Valid" : error + " at " + offset + " '" + token + "': " + message;
+	}
+}
@@ -1,47 +1,454 @@
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * Parses math expressions into abstract input trees.
  */
 public class Parser {
 
+	/**
+	 * Prints each input, its tokens, and its syntax tree to standard out.
+	 */
+	private static final ParseListener PRINTER = new ParseListener() {
+		public void tokenized(String input, Lexer lexer) {
+			System.out.println(input);
+			System.out.println(lexer);
+		}
+
+		public void treeBuilt(TreePrinter.PrintableNode root) {
+			TreePrinter.print(root);
+		}
+	};
+
+	/**
+	 * The default maximum depth of a syntax tree.
+	 */
+	public static final int DEFAULT_MAX_DEPTH = 100000;
+
+	// subtrees deeper than this are evaluated without recursing
+	private static final int RECURSION_LIMIT = 256;
+
+	private static final double[] NO_BINDINGS = new double[0];
+
+	// the parts of a conditional, as found by branches
+	static final byte CONDITION = 1;
+	static final byte THEN = 2;
+	static final byte ELSE = 3;
+
+	// the engine named in the flight recorder events of syntax trees
+	private static final String ENGINE = "tree";
+
+	private static final ThreadLocal<ArenaParser> VALIDATORS =
+			  ThreadLocal.withInitial(ArenaParser::new);
+
+	private static volatile ParseListener listener;
+	private static volatile ParseMetrics metrics;
+	private static volatile int maxDepth = DEFAULT_MAX_DEPTH;
+
 	/**
 	 * Takes in a string representing a mathematical expression and returns the result of the
 	 * expression as a string.
 	 *
-	 * Ignores whitespace.
+	 * Ignores whitespace. Prints the input, its tokens, and its syntax tree to standard out.
 	 *
 	 * @param input The string to parse.
 	 * @return The result of the given math expression.
-	 * @throws IOException If an invalid character is encountered.
+	 * @throws IOException If an invalid character is encountered or the expression has variables.
 	 */
 	public static String parse(String input) throws IOException {
-		Lexer lexer = new Lexer(input);
-		System.out.println(input);
-		System.out.println(lexer);
+		return Double.toString(evaluate(input, PRINTER));
+	}
+
+	/**
+	 * Takes in a string representing a mathematical expression and returns the result of the
+	 * expression.
+	 *
+	 * Ignores whitespace. Does no I/O; the tokens and syntax tree are passed to the registered
+	 * listener, if there is one.
+	 *
+	 * @param input The string to evaluate.
+	 * @return The result of the given math expression.
+	 * @throws IOException If an invalid character is encountered or the expression has variables.
+	 */
+	public static double evaluate(String input) throws IOException {
+		return evaluate(input, listener);
+	}
+
+	/**
+	 * Evaluates the remaining bytes of the given buffer, from its position to its limit, as a
+	 * mathematical expression. The bytes are lexed in place as ASCII, with no String made of them
+	 * unless a listener is set, and the grammar and errors are those of evaluate(String).
+	 *
+	 * @param input The buffer to evaluate, heap, direct, or mapped. Its position and limit are not
+	 *              changed.
+	 * @return The result of the given math expression.
+	 * @throws IOException If an invalid character is encountered or the expression has variables.
+	 */
+	public static double evaluate(ByteBuffer input) throws IOException {
+		return evaluate(new ByteCharSequence(input), listener);
+	}
 
-		TreeNode root = buildSyntaxTree(lexer.iterator());
+	/**
+	 * Evaluates the given range of an array of bytes as a mathematical expression, lexing the
+	 * bytes in place as evaluate(ByteBuffer) does.
+	 *
+	 * @param input  The array to evaluate.
+	 * @param offset The index in the array of the first byte.
+	 * @param length The number of bytes.
+	 * @return The result of the given math expression.
+	 * @throws IOException If an invalid character is encountered or the expression has variables.
+	 */
+	public static double evaluate(byte[] input, int offset, int length) throws IOException {
+		return evaluate(new ByteCharSequence(input, offset, length), listener);
+	}
 
-		TreePrinter.print(root);
-		return Double.toString(evaluateSyntaxTree(root));
+	/**
+	 * Sets the listener that the tokens and syntax tree of each evaluated or compiled input are
+	 * passed to.
+	 *
+	 * @param newListener The new listener, or null to stop tracing.
+	 */
+	public static void setListener(ParseListener newListener) {
+		listener = newListener;
+	}
+
+	/**
+	 * Sets the metrics that the work of the parser is recorded to. While no metrics are set, the
+	 * parser does no timing or counting.
+	 *
+	 * @param newMetrics The new metrics, or null to stop recording.
+	 */
+	public static void setMetrics(ParseMetrics newMetrics) {
+		metrics = newMetrics;
+	}
+
+	/**
+	 * @return The metrics that the work of the parser is recorded to, or null if there are none.
+	 */
+	public static ParseMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets the maximum depth of the syntax trees that are built. Deeper inputs are rejected with
+	 * an IOException rather than risking running out of memory. Trees are built, evaluated, and
+	 * compiled without recursing, so the depth is otherwise bounded only by the heap.
+	 *
+	 * @param newMaxDepth The new maximum depth.
+	 * @throws IllegalArgumentException If the maximum depth is not positive.
+	 */
+	public static void setMaxDepth(int newMaxDepth) {
+		if (newMaxDepth <= 0) {
+			throw new IllegalArgumentException("Maximum depth must be positive: " + newMaxDepth);
+		}
+		maxDepth = newMaxDepth;
+	}
+
+	/**
+	 * @return The maximum depth of the syntax trees that are built.
+	 */
+	public static int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * Checks the syntax of the given input without evaluating it and without throwing. Each
+	 * thread validates with its own reused ArenaParser, so validating a valid input allocates
+	 * nothing and an invalid one allocates only its result.
+	 *
+	 * @param input A string representing a mathematical expression.
+	 * @return ParseResult.VALID, or the first syntax error with its position in the input.
+	 */
+	public static ParseResult validate(CharSequence input) {
+		ParseResult result = VALIDATORS.get().tryParse(input);
+		ParseMetrics metrics = Parser.metrics;
+		if (metrics != null && !result.isValid()) {
+			metrics.recordError(result.getError());
+		}
+		return result;
+	}
+
+	/**
+	 * Checks the syntax of the remaining bytes of the given buffer, from its position to its
+	 * limit, in place and without throwing, as validate(CharSequence) does.
+	 *
+	 * @param input The buffer to validate. Its position and limit are not changed.
+	 * @return ParseResult.VALID, or the first syntax error with its offset from the position.
+	 */
+	public static ParseResult validate(ByteBuffer input) {
+		return validate(new ByteCharSequence(input));
+	}
+
+	/**
+	 * Checks the syntax of the given range of an array of bytes, in place and without throwing,
+	 * as validate(CharSequence) does.
+	 *
+	 * @param input  The array to validate.
+	 * @param offset The index in the array of the first byte.
+	 * @param length The number of bytes.
+	 * @return ParseResult.VALID, or the first syntax error with its offset from the given offset.
+	 */
+	public static ParseResult validate(byte[] input, int offset, int length) {
+		return validate(new ByteCharSequence(input, offset, length));
+	}
+
+	/**
+	 * @param input    The input to evaluate.
+	 * @param listener The listener to trace to, or null.
+	 * @return The result of the given math expression.
+	 * @throws IOException If an invalid character is encountered or the expression has variables.
+	 */
+	private static double evaluate(CharSequence input, ParseListener listener)
+			  throws IOException {
+		ParseMetrics metrics = Parser.metrics;
+		Lexer lexer = lex(input, metrics);
+		if (listener != null) {
+			listener.tokenized(input.toString(), lexer);
+		}
+		checkNoVariables(lexer, metrics);
+
+		TreeNode root = build(input, lexer, metrics);
+		if (listener != null) {
+			listener.treeBuilt(root);
+		}
+		return evaluate(input, root, null, NO_BINDINGS, metrics);
+	}
+
+	/**
+	 * Compiles a string representing a mathematical expression into an Expression that can be
+	 * evaluated many times with different variable bindings. Lexing and building the syntax tree
+	 * happen once, here, rather than on every evaluation.
+	 *
+	 * Any name that is not a function is a variable. Variables are given binding slots in the
+	 * order they first appear in the input.
+	 *
+	 * @param input The string to compile.
+	 * @return The compiled expression.
+	 * @throws IOException If an invalid character is encountered.
+	 */
+	public static Expression compile(String input) throws IOException {
+		return compile((CharSequence) input);
+	}
+
+	/**
+	 * Compiles the remaining bytes of the given buffer, from its position to its limit, as
+	 * compile(String) does. The bytes are lexed in place as ASCII; the compiled expression keeps
+	 * a String copy of them as its source, so the buffer can be reused afterwards.
+	 *
+	 * @param input The buffer to compile, heap, direct, or mapped. Its position and limit are not
+	 *              changed.
+	 * @return The compiled expression.
+	 * @throws IOException If an invalid character is encountered.
+	 */
+	public static Expression compile(ByteBuffer input) throws IOException {
+		return compile(new ByteCharSequence(input));
+	}
+
+	/**
+	 * Compiles the given range of an array of bytes, lexing the bytes in place as
+	 * compile(ByteBuffer) does.
+	 *
+	 * @param input  The array to compile.
+	 * @param offset The index in the array of the first byte.
+	 * @param length The number of bytes.
+	 * @return The compiled expression.
+	 * @throws IOException If an invalid character is encountered.
+	 */
+	public static Expression compile(byte[] input, int offset, int length) throws IOException {
+		return compile(new ByteCharSequence(input, offset, length));
+	}
+
+	/**
+	 * @param input The input to compile.
+	 * @return The compiled expression.
+	 * @throws IOException If an invalid character is encountered.
+	 */
+	private static Expression compile(CharSequence input) throws IOException {
+		ParseListener listener = Parser.listener;
+		ParseMetrics metrics = Parser.metrics;
+		Lexer lexer = lex(input, metrics);
+		if (listener != null) {
+			listener.tokenized(input.toString(), lexer);
+		}
+
+		TreeNode root = build(input, lexer, metrics);
+		if (listener != null) {
+			listener.treeBuilt(root);
+		}
+		if (metrics != null) {
+			metrics.recordCompile();
+		}
+		return new Expression(input.toString(), root, lexer.getVariables());
+	}
+
+	/**
+	 * @param lexer   The lexer for an expression that is being evaluated immediately.
+	 * @param metrics The metrics to record the error to, or null.
+	 * @throws IOException If the expression has variables, which cannot be bound.
+	 */
+	private static void checkNoVariables(Lexer lexer, ParseMetrics metrics) throws IOException {
+		if (!lexer.getVariables().isEmpty()) {
+			if (metrics != null) {
+				metrics.recordError(ParseResult.Error.UNBOUND_VARIABLE);
+			}
+			throw new SyntaxException(ParseResult.Error.UNBOUND_VARIABLE,
+					  "Unbound variable: " + lexer.getVariables().get(0));
+		}
+	}
+
+	/**
+	 * Tokenizes an input, timing it if there are metrics and recording it if there is a flight
+	 * recording.
+	 *
+	 * @param input   The input to tokenize.
+	 * @param metrics The metrics to record to, or null.
+	 * @return The tokens of the input.
+	 * @throws IOException If an invalid character is encountered.
+	 */
+	private static Lexer lex(CharSequence input, ParseMetrics metrics) throws IOException {
+		ParseEvents.Event event = ParseEvents.begin(ParseEvents.Kind.LEX);
+		Lexer lexer;
+		if (metrics == null) {
+			lexer = new Lexer(input, new CursorLexer());
+		} else {
+			lexer = timeLex(input, metrics);
+		}
+		if (event != null && event.finish()) {
+			event.commit(input.length(), lexer.size(), 0, ENGINE);
+		}
+		return lexer;
+	}
+
+	/**
+	 * @param input   The input to tokenize.
+	 * @param metrics The metrics to record to.
+	 * @return The tokens of the input.
+	 * @throws IOException If an invalid character is encountered.
+	 */
+	private static Lexer timeLex(CharSequence input, ParseMetrics metrics) throws IOException {
+		long start = System.nanoTime();
+		try {
+			Lexer lexer = new Lexer(input, new CursorLexer());
+			metrics.recordLatency(ParseMetrics.Phase.LEX, System.nanoTime() - start);
+			return lexer;
+		} catch (SyntaxException e) {
+			metrics.recordError(e.getError());
+			throw e;
+		}
+	}
+
+	/**
+	 * Builds the syntax tree of the tokens, timing it and counting the tokens and nodes if there
+	 * are metrics and recording it if there is a flight recording.
+	 *
+	 * @param input   The input the tokens are of.
+	 * @param lexer   The tokens of the input.
+	 * @param metrics The metrics to record to, or null.
+	 * @return The syntax tree.
+	 * @throws IOException If the parentheses are unbalanced, there are no tokens, or the tree is
+	 *                     deeper than the maximum depth.
+	 */
+	private static TreeNode build(CharSequence input, Lexer lexer, ParseMetrics metrics)
+			  throws IOException {
+		ParseEvents.Event event = ParseEvents.begin(ParseEvents.Kind.BUILD);
+		TreeNode root;
+		if (metrics == null) {
+			root = buildSyntaxTree(lexer.iterator());
+		} else {
+			root = timeBuild(lexer, metrics);
+		}
+		if (event != null && event.finish()) {
+			event.commit(input.length(), lexer.size(), depth(root), ENGINE);
+		}
+		return root;
+	}
+
+	/**
+	 * @param lexer   The tokens of an input.
+	 * @param metrics The metrics to record to.
+	 * @return The syntax tree.
+	 * @throws IOException If the parentheses are unbalanced, there are no tokens, or the tree is
+	 *                     deeper than the maximum depth.
+	 */
+	private static TreeNode timeBuild(Lexer lexer, ParseMetrics metrics) throws IOException {
+		long start = System.nanoTime();
+		try {
+			TreeNode root = buildSyntaxTree(lexer.iterator());
+			metrics.recordLatency(ParseMetrics.Phase.BUILD, System.nanoTime() - start);
+			metrics.recordSize(lexer.size(), countNodes(root));
+			return root;
+		} catch (SyntaxException e) {
+			metrics.recordError(e.getError());
+			throw e;
+		}
+	}
+
+	/**
+	 * Evaluates a syntax tree, timing it if there are metrics and recording it if there is a
+	 * flight recording.
+	 *
+	 * @param source   The input the tree was built from.
+	 * @param root     The root of the tree.
+	 * @param program  The program compiled from a tree too deep to evaluate recursively, which is
+	 *                 run instead, or null to evaluate the tree.
+	 * @param bindings The values of the variables in the tree, indexed by binding slot.
+	 * @param metrics  The metrics to record to, or null.
+	 * @return The result of the expression.
+	 */
+	static double evaluate(CharSequence source, TreeNode root, PostfixProgram program,
+	                       double[] bindings, ParseMetrics metrics) {
+		ParseEvents.Event event = ParseEvents.begin(ParseEvents.Kind.EVALUATE);
+		long start = metrics == null ? 0 : System.nanoTime();
+		double result = program == null ? evaluateSyntaxTree(root, bindings) :
+				  program.run(bindings, program.newStack());
+		if (metrics != null) {
+			metrics.recordLatency(ParseMetrics.Phase.EVALUATE, System.nanoTime() - start);
+		}
+
+		if (event != null && event.finish()) {
+			event.commit(source.length(), 0, depth(root), ENGINE);
+		}
+		return result;
 	}
 
 	/**
 	 * Builds an abstract Syntax Tree from the given tokens.
 	 *
+	 * The tree is built below a sentinel open parentheses, which is never closed, so that a
+	 * parenthesized group at the start of the input is kept together like any other group.
+	 *
+	 * The arguments of a function are the right child of its node. Commas have a lower precedence
+	 * than every operator, so several arguments form a chain of COMMA nodes down the left, with
+	 * the first argument at the bottom and each later one the right child of a COMMA.
+	 *
 	 * @param tokens An iterator of a list of tokens.
 	 * @return A syntax tree build from the given tokens.
-	 * @throws IOException If the parentheses
+	 * @throws IOException If the parentheses are unbalanced, there are no tokens, the tree is
+	 *                     deeper than the maximum depth, or a function or comma is misused.
 	 */
-	private static TreeNode buildSyntaxTree(Iterator<Token> tokens) throws IOException {
+	static TreeNode buildSyntaxTree(Iterator<Token> tokens) throws IOException {
 
-		// init the tree with the first token in tokens
-		TreeNode currentNode = new TreeNode(null, tokens.next());
+		// init the tree with the sentinel, which has the lowest precedence
+		TreeNode sentinel = new TreeNode(null, Token.valueOf(TokenType.OPEN_PAREN));
+		TreeNode currentNode = sentinel;
 
-		// for all the remaining tokens in tokens
+		// for all the tokens in tokens
+		int tokenCount = 0;
+		TreeNode function = null;
 		while (tokens.hasNext()) {
 			Token token = tokens.next();
+			tokenCount++;
+
+			// a function must be followed by the parentheses of its arguments
+			if (function != null && token.getType() != TokenType.OPEN_PAREN) {
+				throw unclosedFunction(function);
+			}
 
 			// traverse up the list if the token is not an open parentheses
 			TreeNode oldRight = null;
@@ -65,32 +472,190 @@ public class Parser {
 			} else {
 				currentNode = insertToken(token, currentNode, oldRight);
 			}
+			function = isCall(token.getType()) ? currentNode : null;
+		}
+
+		if (function != null) {
+			throw unclosedFunction(function);
+		}
+
+		TreeNode root = sentinel.right;
+		if (root == null) {
+			throw new SyntaxException(ParseResult.Error.EMPTY_EXPRESSION,
+					  "Invalid Syntax: empty expression.");
 		}
+		checkOpenParens(currentNode);
+		sentinel.reset();
+		root.parent = null;
+
+		// a tree cannot be deeper than its number of tokens
+		int maxDepth = Parser.maxDepth;
+		if (tokenCount > maxDepth && depth(root) > maxDepth) {
+			throw new SyntaxException(ParseResult.Error.TOO_DEEP,
+					  "Invalid Syntax: expression is nested deeper than " + maxDepth + " levels.");
+		}
+		return root;
+	}
+
+	/**
+	 * @param root The root of a tree.
+	 * @return The number of nodes on the longest path from the root to a leaf.
+	 */
+	static int depth(TreeNode root) {
+		List<TreeNode> nodes = new ArrayList<>();
+		List<Integer> depths = new ArrayList<>();
+		nodes.add(root);
+		depths.add(1);
 
-		return findRoot(currentNode);
+		int deepest = 0;
+		while (!nodes.isEmpty()) {
+			TreeNode node = nodes.remove(nodes.size() - 1);
+			int depth = depths.remove(depths.size() - 1);
+			deepest = Math.max(deepest, depth);
+			if (node.left != null) {
+				nodes.add(node.left);
+				depths.add(depth + 1);
+			}
+			if (node.right != null) {
+				nodes.add(node.right);
+				depths.add(depth + 1);
+			}
+		}
+		return deepest;
 	}
 
 	/**
 	 * @param currentNode The current node in the AST.
 	 * @return The new current node i.e. the parent of the open parentheses that was removed.
-	 * @throws IOException If an opening parentheses cannot be found.
+	 * @throws IOException If an opening parentheses cannot be found, or the parentheses hold the
+	 *                     wrong number of arguments for a function or commas without one.
 	 */
 	private static TreeNode removeOpenParen(TreeNode currentNode) throws IOException {
-		if (currentNode == null || currentNode.token.getType() != TokenType.OPEN_PAREN) {
-			throw new IOException("Invalid Syntax: no opening parentheses found.");
+		// the only open parentheses without a parent is the sentinel, which is never closed
+		if (currentNode == null || currentNode.token.getType() != TokenType.OPEN_PAREN ||
+				  currentNode.parent == null) {
+			throw new SyntaxException(ParseResult.Error.NO_OPENING_PARENTHESES,
+					  "Invalid Syntax: no opening parentheses found.");
 		}
 
-		if (currentNode.parent != null) {
-			TreeNode parent = currentNode.parent;
-			parent.setRight(currentNode.right);
-			currentNode.reset();
-			return parent;
-		} else {
-			TreeNode child = currentNode.right;
-			currentNode.reset();
-			child.parent = null;
-			return child;
+		TreeNode parent = currentNode.parent;
+		if (isCall(parent.token.getType())) {
+			MathFunction function = getFunction(parent.token);
+			int count = countArguments(currentNode.right);
+			if (count != function.getArity()) {
+				throw new SyntaxException(ParseResult.Error.WRONG_ARGUMENT_COUNT,
+						  wrongArgumentCount(function, count));
+			}
+		} else if (isComma(currentNode.right)) {
+			throw misplacedComma();
+		}
+		parent.setRight(currentNode.right);
+		currentNode.reset();
+		return parent;
+	}
+
+	/**
+	 * Checks the parentheses that are still open once every token has been added, which are all
+	 * above the current node. Unclosed parentheses evaluate to zero, but the arguments of a
+	 * function must be closed, and commas must be inside the arguments of a function.
+	 *
+	 * @param currentNode The current node in the AST.
+	 * @throws IOException If a function's parentheses or parentheses with commas are unclosed,
+	 *                     or the whole expression has commas.
+	 */
+	private static void checkOpenParens(TreeNode currentNode) throws IOException {
+		TreeNode node = currentNode;
+		while (node.parent != null) {
+			if (node.token.getType() == TokenType.OPEN_PAREN) {
+				if (isCall(node.parent.token.getType())) {
+					throw unclosedFunction(node.parent);
+				} else if (isComma(node.right)) {
+					throw misplacedComma();
+				}
+			}
+			node = node.parent;
+		}
+
+		// the sentinel
+		if (isComma(node.right)) {
+			throw misplacedComma();
+		}
+	}
+
+	/**
+	 * @param arguments The contents of the parentheses of a function call, or null.
+	 * @return The number of arguments: one more than the number of commas down the left of the
+	 * contents, or zero if there are no contents.
+	 */
+	private static int countArguments(TreeNode arguments) {
+		if (arguments == null) {
+			return 0;
+		}
+		int count = 1;
+		for (TreeNode node = arguments; isComma(node); node = node.left) {
+			count++;
+		}
+		return count;
+	}
+
+	private static boolean isComma(TreeNode node) {
+		return node != null && node.token.getType() == TokenType.COMMA;
+	}
+
+	private static SyntaxException misplacedComma() {
+		return new SyntaxException(ParseResult.Error.MISPLACED_COMMA,
+				  "Invalid Syntax: comma outside the arguments of a function.");
+	}
+
+	private static SyntaxException unclosedFunction(TreeNode function) {
+		return new SyntaxException(ParseResult.Error.UNCLOSED_FUNCTION,
+				  unclosedFunction(getFunction(function.token)));
+	}
+
+	/**
+	 * @param type The type of a token.
+	 * @return True if the token calls a function, whose arguments must follow it in parentheses:
+	 * a registered function, or the built-in sin, cos, or tan. False otherwise.
+	 */
+	static boolean isCall(TokenType type) {
+		return type == TokenType.FUNCTION || type == TokenType.SIN || type == TokenType.COS ||
+				  type == TokenType.TAN;
+	}
+
+	/**
+	 * @param token A token that calls a function.
+	 * @return The function the token calls.
+	 */
+	static MathFunction getFunction(Token token) {
+		TokenType type = token.getType();
+		if (type == TokenType.SIN) {
+			return Functions.SIN;
+		} else if (type == TokenType.COS) {
+			return Functions.COS;
+		} else if (type == TokenType.TAN) {
+			return Functions.TAN;
 		}
+		return ((FunctionToken) token).getFunction();
+	}
+
+	/**
+	 * @param function A function that is not followed by its arguments in closed parentheses.
+	 * @return The message of the error.
+	 */
+	static String unclosedFunction(MathFunction function) {
+		return "Invalid Syntax: " + function.getName() +
+				  " is not followed by its arguments in closed parentheses.";
+	}
+
+	/**
+	 * @param function A function.
+	 * @param count    The number of arguments it was called with.
+	 * @return The message of the error.
+	 */
+	static String wrongArgumentCount(MathFunction function, int count) {
+		int arity = function.getArity();
+		return "Invalid Syntax: " + function.getName() + " takes " + arity +
+				  (arity == 1 ? " argument" : " arguments") + " but got " + count + ".";
 	}
 
 	/**
@@ -117,35 +682,123 @@ public class Parser {
 	}
 
 	/**
-	 * @param node A node in an AST.
-	 * @return The root of AST that the given node is a part of.
+	 * Evaluates the math expresion represented by Abstract Syntax Tree rooted at the given node.
+	 *
+	 * @param node     The root of the tree.
+	 * @param bindings The values of the variables in the tree, indexed by binding slot.
+	 * @return The result of the expression.
 	 */
-	private static TreeNode findRoot(TreeNode node) {
-		TreeNode root = node;
-		while (root.parent != null) {
-			root = root.parent;
-		}
-		return root;
+	static double evaluateSyntaxTree(TreeNode node, double[] bindings) {
+		return evaluateSyntaxTree(node, bindings, 0);
 	}
 
 	/**
-	 * Evaluates the math expresion represented by Abstract Syntax Tree rooted at the given node.
+	 * @param root The root of a tree, or null.
+	 * @return True if evaluateSyntaxTree would evaluate part of the tree iteratively, building a
+	 * new program for it every time, so that the tree is better compiled to a program once.
+	 */
+	static boolean isTooDeepToRecurse(TreeNode root) {
+		// the recursion is at depth d at the nodes d levels below the root
+		return root != null && depth(root) > RECURSION_LIMIT;
+	}
+
+	/**
+	 * Evaluates a subtree recursively, switching to evaluateIteratively once the recursion is
+	 * deep, so that shallow trees allocate nothing and deep trees cannot overflow the stack.
 	 *
-	 * @param node The root of the tree.
-	 * @return The result of the expression.
+	 * @param node     The root of the subtree.
+	 * @param bindings The values of the variables in the tree, indexed by binding slot.
+	 * @param depth    The depth of the recursion.
+	 * @return The result of the subtree.
 	 */
-	private static double evaluateSyntaxTree(TreeNode node) {
+	private static double evaluateSyntaxTree(TreeNode node, double[] bindings, int depth) {
 		if (node == null) {
 			return 0;
 		}
+		if (depth == RECURSION_LIMIT) {
+			return evaluateIteratively(node, bindings);
+		}
+		TokenType type = node.token.getType();
+		if (type == TokenType.NUMBER) {
+			return ((NumberToken) node.token).getValue();
+		} else if (type == TokenType.VARIABLE) {
+			return bindings[((VariableToken) node.token).getSlot()];
+		} else if (type == TokenType.FUNCTION) {
+			return call(((FunctionToken) node.token).getFunction(), node.right, bindings, depth);
+		}
+
+		// only the children the operator reads, the left first
+		double leftVal = isBinary(type) ? evaluateSyntaxTree(node.left, bindings, depth + 1) : 0;
+		double rightVal = isUnary(type) || isBinary(type) ?
+				  evaluateSyntaxTree(node.right, bindings, depth + 1) : 0;
+		return apply(node.token, leftVal, rightVal);
+	}
+
+	/**
+	 * Calls a function with its arguments evaluated from left to right.
+	 *
+	 * @param function  The function.
+	 * @param arguments The right child of the function's node.
+	 * @param bindings  The values of the variables in the tree, indexed by binding slot.
+	 * @param depth     The depth of the recursion at the function's node.
+	 * @return The result of the call.
+	 */
+	private static double call(MathFunction function, TreeNode arguments, double[] bindings,
+	                           int depth) {
+		int arity = function.getArity();
+		if (function == Functions.IF) {
+			// only the argument that is returned is evaluated
+			double condition = evaluateSyntaxTree(arguments.left.left, bindings, depth + 3);
+			TreeNode branch = condition != 0 ? arguments.left.right : arguments.right;
+			return evaluateSyntaxTree(branch, bindings, depth + 3);
+		} else if (arity == 0) {
+			return function.apply();
+		} else if (arity == 1) {
+			return function.apply(evaluateSyntaxTree(arguments, bindings, depth + 1));
+		} else if (arity == 2) {
+			double first = evaluateSyntaxTree(arguments.left, bindings, depth + 2);
+			return function.apply(first, evaluateSyntaxTree(arguments.right, bindings, depth + 2));
+		}
 
-		double leftVal = evaluateSyntaxTree(node.left);
-		double rightVal = evaluateSyntaxTree(node.right);
+		MathFunction.Arguments values = MathFunction.Arguments.get();
+		int first = values.reserve(arity);
+		try {
+			for (int i = 0; i < arity; i++) {
+				// the first argument is the left child of the comma at the bottom of the chain,
+				// and argument i the right child of the ith comma from the bottom
+				TreeNode comma = arguments;
+				for (int j = Math.max(i, 1); j < arity - 1; j++) {
+					comma = comma.left;
+				}
+				TreeNode argument = i == 0 ? comma.left : comma.right;
+				values.set(first + i, evaluateSyntaxTree(argument, bindings, depth + arity));
+			}
+			return values.apply(function, first);
+		} finally {
+			values.release(first);
+		}
+	}
+
+	/**
+	 * Evaluates a subtree of any depth without recursing, as a PostfixProgram, which evaluates
+	 * only the taken branch of a conditional like the recursion does.
+	 *
+	 * @param node     The root of the subtree.
+	 * @param bindings The values of the variables in the tree, indexed by binding slot.
+	 * @return The result of the subtree.
+	 */
+	private static double evaluateIteratively(TreeNode node, double[] bindings) {
+		return PostfixProgram.evaluate(node, bindings);
+	}
 
-		Token token = node.token;
-		if (token.getType() == TokenType.NUMBER) {
-			return ((NumberToken) token).getValue();
-		} else if (token.getType() == TokenType.ADD) {
+	/**
+	 * @param token    The token of an operator.
+	 * @param leftVal  The result of the node's left child.
+	 * @param rightVal The result of the node's right child.
+	 * @return The result of the node.
+	 */
+	private static double apply(Token token, double leftVal, double rightVal) {
+		if (token.getType() == TokenType.ADD) {
 			return leftVal + rightVal;
 		} else if (token.getType() == TokenType.SUBTRACT) {
 			return leftVal - rightVal;
@@ -163,20 +816,213 @@ public class Parser {
 			return Math.cos(rightVal);
 		} else if (token.getType() == TokenType.TAN) {
 			return Math.tan(rightVal);
+		} else if (isComparison(token.getType())) {
+			return compare(token.getType(), leftVal, rightVal) ? 1 : 0;
 		} else {
 			return 0;
 		}
 	}
 
+	/**
+	 * @param type  The type of a comparison.
+	 * @param left  The left operand.
+	 * @param right The right operand.
+	 * @return True if the comparison holds, false otherwise. Only != holds for NaN.
+	 */
+	static boolean compare(TokenType type, double left, double right) {
+		if (type == TokenType.LESS) {
+			return left < right;
+		} else if (type == TokenType.LESS_EQUAL) {
+			return left <= right;
+		} else if (type == TokenType.GREATER) {
+			return left > right;
+		} else if (type == TokenType.GREATER_EQUAL) {
+			return left >= right;
+		} else if (type == TokenType.EQUAL) {
+			return left == right;
+		} else {
+			return left != right;
+		}
+	}
+
+	/**
+	 * Lists the nodes of a tree in the order they are evaluated, children before their parents
+	 * and left before right, without recursing. Only the children that are read are listed: both
+	 * children of binary operators and commas, and the right child of unary operators and of
+	 * functions with arguments. A missing child that is read, and so evaluates to zero, is listed
+	 * as null.
+	 *
+	 * Compilers walk this list with a stack of operands instead of recursing over the tree. A
+	 * comma leaves both its operands on the stack, so a function finds its arguments on the top
+	 * of the stack, in order.
+	 *
+	 * @param root The root of the tree, or null.
+	 * @return The nodes of the tree in evaluation order.
+	 */
+	static List<TreeNode> postOrder(TreeNode root) {
+		List<TreeNode> order = new ArrayList<>();
+		TreeNode[] stack = new TreeNode[16];
+		boolean[] visited = new boolean[16];
+		int top = 0;
+		stack[top] = root;
+		visited[top++] = false;
+
+		while (top > 0) {
+			TreeNode node = stack[--top];
+			if (node == null || visited[top]) {
+				order.add(node);
+				continue;
+			}
+
+			if (!readsRight(node.token)) {
+				order.add(node);
+				continue;
+			}
+
+			if (top + 3 > stack.length) {
+				stack = Arrays.copyOf(stack, stack.length * 2);
+				visited = Arrays.copyOf(visited, visited.length * 2);
+			}
+			// pushed in reverse, so the left child is listed first and the node last
+			stack[top] = node;
+			visited[top++] = true;
+			stack[top] = node.right;
+			visited[top++] = false;
+			if (readsLeft(node.token)) {
+				stack[top] = node.left;
+				visited[top++] = false;
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * Finds the branches of the conditionals among the nodes of a tree in evaluation order, so
+	 * that a compiler walking them can jump over the branch that a conditional does not take.
+	 * The arguments of if are listed before it as the condition, the first branch, a comma, the
+	 * second branch, and a comma, and each ends with its root.
+	 *
+	 * @param order The nodes of a tree, from postOrder.
+	 * @return For each node, CONDITION if it is the root of the condition of an if, THEN if it is
+	 * the root of the branch taken when the condition is not zero, ELSE if it is the root of the
+	 * other branch, and 0 otherwise.
+	 */
+	static byte[] branches(List<TreeNode> order) {
+		byte[] branches = new byte[order.size()];
+		// the index of the first node of the subtree that ends at each node
+		int[] starts = new int[order.size()];
+		// the starts of the operands of the nodes still to come
+		int[] operands = new int[16];
+		int top = 0;
+		for (int i = 0; i < order.size(); i++) {
+			TreeNode node = order.get(i);
+			int start = i;
+			if (node != null && readsRight(node.token)) {
+				start = operands[--top];
+			}
+			if (node != null && readsLeft(node.token)) {
+				start = operands[--top];
+			}
+			if (node != null && node.token.getType() == TokenType.FUNCTION &&
+					  ((FunctionToken) node.token).getFunction() == Functions.IF) {
+				int second = i - 2;
+				int first = starts[second] - 2;
+				branches[second] = ELSE;
+				branches[first] = THEN;
+				branches[starts[first] - 1] = CONDITION;
+			}
+
+			starts[i] = start;
+			if (top == operands.length) {
+				operands = Arrays.copyOf(operands, top * 2);
+			}
+			operands[top++] = start;
+		}
+		return branches;
+	}
+
+	/**
+	 * @param root The root of a tree, or null.
+	 * @return The number of nodes in the tree.
+	 */
+	static int countNodes(TreeNode root) {
+		Deque<TreeNode> stack = new ArrayDeque<>();
+		if (root != null) {
+			stack.push(root);
+		}
+
+		int count = 0;
+		while (!stack.isEmpty()) {
+			TreeNode node = stack.pop();
+			count++;
+			if (node.left != null) {
+				stack.push(node.left);
+			}
+			if (node.right != null) {
+				stack.push(node.right);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @param token The token of a node.
+	 * @return True if the evaluator reads the left child of the node, false otherwise.
+	 */
+	static boolean readsLeft(Token token) {
+		return isBinary(token.getType()) || token.getType() == TokenType.COMMA;
+	}
+
+	/**
+	 * @param token The token of a node.
+	 * @return True if the evaluator reads the right child of the node, false otherwise.
+	 */
+	static boolean readsRight(Token token) {
+		TokenType type = token.getType();
+		if (type == TokenType.FUNCTION) {
+			return ((FunctionToken) token).getFunction().getArity() > 0;
+		}
+		return isBinary(type) || isUnary(type) || type == TokenType.COMMA;
+	}
+
+	/**
+	 * @param type The type of a token.
+	 * @return True if the evaluator reads both children of nodes of the type, false otherwise.
+	 */
+	static boolean isBinary(TokenType type) {
+		return type == TokenType.ADD || type == TokenType.SUBTRACT || type == TokenType.MULTIPLY ||
+				  type == TokenType.DIVIDE || type == TokenType.EXPONENT || isComparison(type);
+	}
+
+	/**
+	 * @param type The type of a token.
+	 * @return True if the token compares its operands, false otherwise.
+	 */
+	static boolean isComparison(TokenType type) {
+		return type == TokenType.LESS || type == TokenType.LESS_EQUAL ||
+				  type == TokenType.GREATER || type == TokenType.GREATER_EQUAL ||
+				  type == TokenType.EQUAL || type == TokenType.NOT_EQUAL;
+	}
+
+	/**
+	 * @param type The type of a token.
+	 * @return True if the evaluator reads only the right child of nodes of the type, false
+	 * otherwise.
+	 */
+	static boolean isUnary(TokenType type) {
+		return type == TokenType.NEGATION || type == TokenType.SIN || type == TokenType.COS ||
+				  type == TokenType.TAN;
+	}
+
 	/**
 	 * Nodes of a syntax tree.
 	 */
-	private static class TreeNode implements TreePrinter.PrintableNode {
+	static class TreeNode implements TreePrinter.PrintableNode {
 
-		private Token token;
-		private TreeNode parent;
-		private TreeNode left;
-		private TreeNode right;
+		Token token;
+		TreeNode parent;
+		TreeNode left;
+		TreeNode right;
 
 		/**
 		 * Creates a new TreeNode with the given parent node and token.
@@ -189,6 +1035,19 @@ public class Parser {
 			this.token = token;
 		}
 
+		/**
+		 * Creates a new TreeNode with no parent and the given token and children.
+		 *
+		 * @param token The token to be stored in the node.
+		 * @param left  The left child, or null.
+		 * @param right The right child, or null.
+		 */
+		public TreeNode(Token token, TreeNode left, TreeNode right) {
+			this.token = token;
+			setLeft(left);
+			setRight(right);
+		}
+
 		/**
 		 * Sets the left child to the given node
 		 *
@@ -0,0 +1,534 @@
+import java.util.List;
+
+/**
+ * A math expression flattened into postfix order for a stack machine.
+ *
+ * The program is an array of opcodes, some followed by an operand, plus pools of constants and
+ * of the functions it calls. It is evaluated with one pass over the opcodes on an operand stack,
+ * with no recursion and no pointer chasing. A call to if becomes jumps around its branches, so
+ * only the branch it takes is evaluated, and min and max are computed inline. Programs are
+ * immutable and can be shared between threads; each thread needs its own stack, from newStack.
+ */
+public final class PostfixProgram implements Evaluator {
+
+	// opcodes followed by an operand
+	static final int CONST = 0;
+	static final int LOAD = 1;
+	static final int CALL = 11;
+	static final int JUMP_IF_ZERO = 21;
+	static final int JUMP = 22;
+
+	// opcodes that pop their arguments and push their result
+	static final int ADD = 2;
+	static final int SUBTRACT = 3;
+	static final int MULTIPLY = 4;
+	static final int DIVIDE = 5;
+	static final int EXPONENT = 6;
+	static final int NEGATE = 7;
+	static final int SIN = 8;
+	static final int COS = 9;
+	static final int TAN = 10;
+	static final int LESS = 12;
+	static final int LESS_EQUAL = 13;
+	static final int GREATER = 14;
+	static final int GREATER_EQUAL = 15;
+	static final int EQUAL = 16;
+	static final int NOT_EQUAL = 17;
+	static final int MIN = 18;
+	static final int MAX = 19;
+	// if with all three arguments evaluated, for engines that cannot jump
+	static final int SELECT = 20;
+
+	// the engine named in flight recorder events
+	private static final String ENGINE = "postfix";
+
+	private final int[] code;
+	private final double[] constants;
+	private final MathFunction[] functions;
+	private final int stackSize;
+	private final int variableCount;
+	private final int sourceLength;
+
+	/**
+	 * @param code          The opcodes and operands of the program.
+	 * @param constants     The constant pool, indexed by the operands of CONST.
+	 * @param functions     The function pool, indexed by the operands of CALL.
+	 * @param stackSize     The deepest the operand stack gets.
+	 * @param variableCount The number of bindings the program reads.
+	 * @param sourceLength  The length of the expression the program was compiled from.
+	 */
+	private PostfixProgram(int[] code, double[] constants, MathFunction[] functions,
+	                       int stackSize, int variableCount, int sourceLength) {
+		this.code = code;
+		this.constants = constants;
+		this.functions = functions;
+		this.stackSize = stackSize;
+		this.variableCount = variableCount;
+		this.sourceLength = sourceLength;
+	}
+
+	/**
+	 * Flattens the syntax tree of the given expression into a program.
+	 *
+	 * @param expression The expression to compile.
+	 * @return A program that evaluates to the same results as the expression.
+	 */
+	public static PostfixProgram compile(Expression expression) {
+		return compile(expression, true);
+	}
+
+	/**
+	 * @param expression The expression to compile.
+	 * @param lazy       True to jump around the branch of each if that is not taken, false to
+	 *                   evaluate both and SELECT one, for engines that cannot jump.
+	 * @return A program that evaluates to the same results as the expression.
+	 */
+	static PostfixProgram compile(Expression expression, boolean lazy) {
+		ParseEvents.Event event = ParseEvents.begin(ParseEvents.Kind.COMPILE);
+		Assembler assembler = new Assembler(lazy);
+		assembler.emit(expression.getRoot());
+		int length = expression.toString().length();
+		PostfixProgram program = new PostfixProgram(assembler.getCode(), assembler.getConstants(),
+				  assembler.getFunctions(), assembler.maxDepth, expression.getVariableCount(),
+				  length);
+		if (event != null && event.finish()) {
+			event.commit(length, 0, Parser.depth(expression.getRoot()), ENGINE);
+		}
+		return program;
+	}
+
+	/**
+	 * Evaluates a syntax tree as a program, without recursing however deep the tree is.
+	 *
+	 * @param root     The root of the tree, or null for zero.
+	 * @param bindings The values of the variables, indexed by binding slot.
+	 * @return The result of the tree.
+	 */
+	static double evaluate(Parser.TreeNode root, double[] bindings) {
+		Assembler assembler = new Assembler(true);
+		assembler.emit(root);
+		PostfixProgram program = new PostfixProgram(assembler.getCode(), assembler.getConstants(),
+				  assembler.getFunctions(), assembler.maxDepth, 0, 0);
+		return program.run(bindings, program.newStack());
+	}
+
+	/**
+	 * @return A new operand stack large enough to evaluate this program with.
+	 */
+	public double[] newStack() {
+		return new double[stackSize];
+	}
+
+	/**
+	 * Evaluates the program on a new operand stack.
+	 *
+	 * @param bindings The values of the variables, indexed by binding slot.
+	 * @return The result of the expression.
+	 */
+	public double evaluate(double... bindings) {
+		return evaluate(bindings, newStack());
+	}
+
+	/**
+	 * Evaluates the program on the given operand stack, allocating nothing.
+	 *
+	 * @param bindings The values of the variables, indexed by binding slot.
+	 * @param stack    The operand stack, from newStack. Its contents are overwritten.
+	 * @return The result of the expression.
+	 * @throws IllegalArgumentException If there are fewer bindings than variables.
+	 */
+	public double evaluate(double[] bindings, double[] stack) {
+		if (bindings.length < variableCount) {
+			throw new IllegalArgumentException("Expected " + variableCount +
+					  " bindings but got " + bindings.length);
+		}
+
+		ParseEvents.Event event = ParseEvents.begin(ParseEvents.Kind.EVALUATE);
+		double result = run(bindings, stack);
+		if (event != null && event.finish()) {
+			event.commit(sourceLength, 0, 0, ENGINE);
+		}
+		return result;
+	}
+
+	/**
+	 * @param bindings The values of the variables, indexed by binding slot.
+	 * @param stack    The operand stack. Its contents are overwritten.
+	 * @return The result of the expression.
+	 */
+	double run(double[] bindings, double[] stack) {
+		int[] code = this.code;
+		int top = -1;
+		int pc = 0;
+		while (pc < code.length) {
+			switch (code[pc++]) {
+				case CONST:
+					stack[++top] = constants[code[pc++]];
+					break;
+				case LOAD:
+					stack[++top] = bindings[code[pc++]];
+					break;
+				case ADD:
+					top--;
+					stack[top] = stack[top] + stack[top + 1];
+					break;
+				case SUBTRACT:
+					top--;
+					stack[top] = stack[top] - stack[top + 1];
+					break;
+				case MULTIPLY:
+					top--;
+					stack[top] = stack[top] * stack[top + 1];
+					break;
+				case DIVIDE:
+					top--;
+					stack[top] = stack[top] / stack[top + 1];
+					break;
+				case EXPONENT:
+					top--;
+					stack[top] = Math.pow(stack[top], stack[top + 1]);
+					break;
+				case NEGATE:
+					stack[top] = -1 * stack[top];
+					break;
+				case SIN:
+					stack[top] = Math.sin(stack[top]);
+					break;
+				case COS:
+					stack[top] = Math.cos(stack[top]);
+					break;
+				case TAN:
+					stack[top] = Math.tan(stack[top]);
+					break;
+				case LESS:
+					top--;
+					stack[top] = stack[top] < stack[top + 1] ? 1 : 0;
+					break;
+				case LESS_EQUAL:
+					top--;
+					stack[top] = stack[top] <= stack[top + 1] ? 1 : 0;
+					break;
+				case GREATER:
+					top--;
+					stack[top] = stack[top] > stack[top + 1] ? 1 : 0;
+					break;
+				case GREATER_EQUAL:
+					top--;
+					stack[top] = stack[top] >= stack[top + 1] ? 1 : 0;
+					break;
+				case EQUAL:
+					top--;
+					stack[top] = stack[top] == stack[top + 1] ? 1 : 0;
+					break;
+				case NOT_EQUAL:
+					top--;
+					stack[top] = stack[top] != stack[top + 1] ? 1 : 0;
+					break;
+				case MIN:
+					top--;
+					stack[top] = Math.min(stack[top], stack[top + 1]);
+					break;
+				case MAX:
+					top--;
+					stack[top] = Math.max(stack[top], stack[top + 1]);
+					break;
+				case SELECT:
+					top -= 2;
+					stack[top] = stack[top] != 0 ? stack[top + 1] : stack[top + 2];
+					break;
+				case JUMP_IF_ZERO:
+					// to the second branch, past the first
+					if (stack[top--] == 0) {
+						pc = code[pc];
+					} else {
+						pc++;
+					}
+					break;
+				case JUMP:
+					pc = code[pc];
+					break;
+				case CALL: {
+					// the arguments are replaced by the result
+					MathFunction function = functions[code[pc++]];
+					int first = top - function.getArity() + 1;
+					stack[first] = function.apply(stack, first);
+					top = first;
+					break;
+				}
+				default:
+					throw new IllegalStateException("Unknown opcode: " + code[pc - 1]);
+			}
+		}
+		return stack[0];
+	}
+
+	/**
+	 * @return The opcodes and operands of the program, which must not be modified.
+	 */
+	int[] getCode() {
+		return code;
+	}
+
+	/**
+	 * @return The constant pool of the program, which must not be modified.
+	 */
+	double[] getConstants() {
+		return constants;
+	}
+
+	/**
+	 * @return The function pool of the program, which must not be modified.
+	 */
+	MathFunction[] getFunctions() {
+		return functions;
+	}
+
+	/**
+	 * @return The deepest the operand stack gets.
+	 */
+	int getStackSize() {
+		return stackSize;
+	}
+
+	/**
+	 * @return The number of bindings the program reads.
+	 */
+	int getVariableCount() {
+		return variableCount;
+	}
+
+	/**
+	 * @return The number of opcodes and operands in the program.
+	 */
+	public int size() {
+		return code.length;
+	}
+
+	/**
+	 * Emits the postfix code for a syntax tree. Missing operands and nodes that the tree
+	 * evaluator treats as zero, such as unclosed parentheses, are emitted as the constant zero.
+	 *
+	 * A lazy if is emitted as its condition, a JUMP_IF_ZERO to its second branch, its first
+	 * branch, a JUMP past the second branch, and its second branch.
+	 */
+	private static class Assembler {
+		private final boolean lazy;
+		private int[] code = new int[16];
+		private int codeSize;
+		private double[] constants = new double[8];
+		private int constantCount;
+		private MathFunction[] functions = new MathFunction[4];
+		private int functionCount;
+		private int depth;
+		private int maxDepth;
+		// the operands of the jumps whose targets are not yet known, innermost last
+		private int[] jumps = new int[4];
+		private int jumpCount;
+
+		/**
+		 * @param lazy True to jump around the branch of each if that is not taken, false to
+		 *             SELECT.
+		 */
+		Assembler(boolean lazy) {
+			this.lazy = lazy;
+		}
+
+		/**
+		 * Emits the code that pushes the value of the tree rooted at the given node, in the
+		 * order of Parser.postOrder so that deep trees do not recurse.
+		 *
+		 * @param root The root of the tree, or null for zero.
+		 */
+		void emit(Parser.TreeNode root) {
+			List<Parser.TreeNode> order = Parser.postOrder(root);
+			byte[] branches = lazy ? Parser.branches(order) : null;
+			for (int i = 0; i < order.size(); i++) {
+				emitNode(order.get(i));
+				if (branches != null && branches[i] != 0) {
+					emitBranch(branches[i]);
+				}
+			}
+		}
+
+		/**
+		 * Emits the jump after a part of a lazy if, and points the jump before it here.
+		 *
+		 * @param branch The part that was just emitted: Parser.CONDITION, THEN, or ELSE.
+		 */
+		private void emitBranch(byte branch) {
+			if (branch == Parser.CONDITION) {
+				append(JUMP_IF_ZERO);
+				pushJump();
+				depth--;
+			} else if (branch == Parser.THEN) {
+				append(JUMP);
+				int jump = codeSize;
+				append(0);
+				code[jumps[--jumpCount]] = codeSize;
+				pushJump(jump);
+				// the second branch starts without the result of the first
+				depth--;
+			} else {
+				code[jumps[--jumpCount]] = codeSize;
+			}
+		}
+
+		/**
+		 * Appends the operand of a jump, to be pointed at its target later.
+		 */
+		private void pushJump() {
+			pushJump(codeSize);
+			append(0);
+		}
+
+		private void pushJump(int operand) {
+			if (jumpCount == jumps.length) {
+				int[] newJumps = new int[jumpCount * 2];
+				System.arraycopy(jumps, 0, newJumps, 0, jumpCount);
+				jumps = newJumps;
+			}
+			jumps[jumpCount++] = operand;
+		}
+
+		/**
+		 * Emits the code for a single node, whose operands are already on the stack.
+		 *
+		 * @param node The node to emit, or null for zero.
+		 */
+		private void emitNode(Parser.TreeNode node) {
+			if (node == null) {
+				emitConstant(0);
+				return;
+			}
+
+			TokenType type = node.token.getType();
+			if (type == TokenType.NUMBER) {
+				emitConstant(((NumberToken) node.token).getValue());
+			} else if (type == TokenType.VARIABLE) {
+				emitPush(LOAD, ((VariableToken) node.token).getSlot());
+			} else if (type == TokenType.ADD) {
+				emitBinary(ADD);
+			} else if (type == TokenType.SUBTRACT) {
+				emitBinary(SUBTRACT);
+			} else if (type == TokenType.MULTIPLY) {
+				emitBinary(MULTIPLY);
+			} else if (type == TokenType.DIVIDE) {
+				emitBinary(DIVIDE);
+			} else if (type == TokenType.EXPONENT) {
+				emitBinary(EXPONENT);
+			} else if (type == TokenType.NEGATION) {
+				append(NEGATE);
+			} else if (type == TokenType.SIN) {
+				append(SIN);
+			} else if (type == TokenType.COS) {
+				append(COS);
+			} else if (type == TokenType.TAN) {
+				append(TAN);
+			} else if (type == TokenType.LESS) {
+				emitBinary(LESS);
+			} else if (type == TokenType.LESS_EQUAL) {
+				emitBinary(LESS_EQUAL);
+			} else if (type == TokenType.GREATER) {
+				emitBinary(GREATER);
+			} else if (type == TokenType.GREATER_EQUAL) {
+				emitBinary(GREATER_EQUAL);
+			} else if (type == TokenType.EQUAL) {
+				emitBinary(EQUAL);
+			} else if (type == TokenType.NOT_EQUAL) {
+				emitBinary(NOT_EQUAL);
+			} else if (type == TokenType.FUNCTION) {
+				emitFunction(((FunctionToken) node.token).getFunction());
+			} else if (type == TokenType.COMMA) {
+				// both arguments stay on the stack for the function
+			} else {
+				emitConstant(0);
+			}
+		}
+
+		private void emitBinary(int opcode) {
+			append(opcode);
+			depth--;
+		}
+
+		/**
+		 * @param function A function whose arguments are on the stack, or for a lazy if, the
+		 *                 branch it took.
+		 */
+		private void emitFunction(MathFunction function) {
+			if (function == Functions.MIN) {
+				emitBinary(MIN);
+			} else if (function == Functions.MAX) {
+				emitBinary(MAX);
+			} else if (function == Functions.IF && !lazy) {
+				append(SELECT);
+				depth -= 2;
+			} else if (function != Functions.IF) {
+				emitCall(function);
+			}
+		}
+
+		private void emitCall(MathFunction function) {
+			int index = 0;
+			while (index < functionCount && functions[index] != function) {
+				index++;
+			}
+			if (index == functionCount) {
+				if (functionCount == functions.length) {
+					MathFunction[] newFunctions = new MathFunction[functionCount * 2];
+					System.arraycopy(functions, 0, newFunctions, 0, functionCount);
+					functions = newFunctions;
+				}
+				functions[functionCount++] = function;
+			}
+			append(CALL);
+			append(index);
+			// a function of no arguments pushes its result
+			depth += 1 - function.getArity();
+			maxDepth = Math.max(maxDepth, depth);
+		}
+
+		private void emitConstant(double value) {
+			if (constantCount == constants.length) {
+				double[] newConstants = new double[constantCount * 2];
+				System.arraycopy(constants, 0, newConstants, 0, constantCount);
+				constants = newConstants;
+			}
+			constants[constantCount] = value;
+			emitPush(CONST, constantCount++);
+		}
+
+		private void emitPush(int opcode, int operand) {
+			append(opcode);
+			append(operand);
+			depth++;
+			maxDepth = Math.max(maxDepth, depth);
+		}
+
+		private void append(int value) {
+			if (codeSize == code.length) {
+				int[] newCode = new int[codeSize * 2];
+				System.arraycopy(code, 0, newCode, 0, codeSize);
+				code = newCode;
+			}
+			code[codeSize++] = value;
+		}
+
+		int[] getCode() {
+			int[] result = new int[codeSize];
+			System.arraycopy(code, 0, result, 0, codeSize);
+			return result;
+		}
+
+		double[] getConstants() {
+			double[] result = new double[constantCount];
+			System.arraycopy(constants, 0, result, 0, constantCount);
+			return result;
+		}
+
+		MathFunction[] getFunctions() {
+			MathFunction[] result = new MathFunction[functionCount];
+			System.arraycopy(functions, 0, result, 0, functionCount);
+			return result;
+		}
+	}
+}
@@ -0,0 +1,540 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rewrites powers and polynomials in the syntax trees of compiled expressions into cheaper
+ * arithmetic, at the cost of rounding differently from the original tree.
+ *
+ * A power by an integer constant n of at most MAX_EXPONENT in magnitude becomes multiplications
+ * by repeated squaring, with a division for negative n. The base is computed once and squared
+ * by a call to FastMath.integerPower, so x ^ 5 takes three multiplications, x * x squared times
+ * x, and x ^ 16 four; x ^ 2 and x ^ 3 take as few as x * x and x * x * x, which they become
+ * without a call when x is a variable or a number. Each multiplication rounds, so the result is
+ * within about log2 |n| ulps of Math.pow, which is within one. A power by 0.5 becomes a square root, which is correctly rounded and differs from
+ * Math.pow only for -0 and -Infinity, which keep the results of Math.pow.
+ *
+ * A subtree that is a polynomial of degree two or more in a single variable, made of numbers,
+ * that variable, negation, addition, subtraction, multiplication, division by a number, and
+ * powers by small natural numbers, is expanded and evaluated by Horner's scheme when that takes
+ * fewer operations than the reduced tree: 3 * x ^ 3 + 2 * x ^ 2 - x + 5 takes six operations
+ * instead of eight. Expanding combines like terms, so it rounds differently and can be more
+ * accurate, and terms that cancel are gone, so an infinite argument can give an infinity where
+ * the original gave NaN. Subtrees without variables are folded into numbers, exactly as the
+ * evaluator computes them.
+ *
+ * Unlike the Optimizer, whose rewrites never change a result, a StrengthReducer is for callers
+ * that trade the last bits of a result for speed. Run it after the Optimizer, which folds the
+ * exponents it looks for into numbers. A StrengthReducer holds no state and can be shared.
+ */
+public class StrengthReducer {
+
+	/**
+	 * The largest exponent, in magnitude, of a power that becomes multiplications.
+	 */
+	public static final int MAX_EXPONENT = 16;
+
+	/**
+	 * The largest degree of a polynomial that is evaluated by Horner's scheme.
+	 */
+	public static final int MAX_DEGREE = 16;
+
+	/**
+	 * The square root with the results of Math.pow(x, 0.5) for -0 and -Infinity.
+	 */
+	static final MathFunction SQRT = MathFunction.unary("sqrt", true,
+			  x -> x == Double.NEGATIVE_INFINITY ? Double.POSITIVE_INFINITY : Math.sqrt(x) + 0.0);
+
+	// the tokens of calls to x ^ n for each n from -MAX_EXPONENT to MAX_EXPONENT, and to SQRT,
+	// which are not registered, so have no id
+	private static final FunctionToken[] POWER_TOKENS = new FunctionToken[2 * MAX_EXPONENT + 1];
+	private static final FunctionToken SQRT_TOKEN = new FunctionToken(SQRT, -1);
+
+	static {
+		for (int n = -MAX_EXPONENT; n <= MAX_EXPONENT; n++) {
+			int exponent = n;
+			MathFunction power = MathFunction.unary("pow", true,
+					  x -> FastMath.integerPower(x, exponent));
+			POWER_TOKENS[n + MAX_EXPONENT] = new FunctionToken(power, -1);
+		}
+	}
+
+	/**
+	 * Reduces the strength of the given expression.
+	 *
+	 * @param expression The expression to reduce. It is not modified.
+	 * @return An expression with the same variable slots and math mode and a cheaper tree, whose
+	 * results may differ from the original's in their last bits.
+	 */
+	public Expression reduce(Expression expression) {
+		ParseEvents.Event event = ParseEvents.begin(ParseEvents.Kind.OPTIMIZE);
+		Parser.TreeNode reduced = reduce(expression.getRoot());
+		if (event != null && event.finish()) {
+			event.commit(expression.toString().length(), 0, Parser.depth(reduced), "tree");
+		}
+		return expression.withRoot(reduced);
+	}
+
+	/**
+	 * Builds a reduced copy of the tree rooted at the given node, children first and without
+	 * recursing. Children that the evaluator never reads are dropped.
+	 *
+	 * @param root The root of the tree, or null.
+	 * @return The root of the reduced copy, or null if root is null.
+	 */
+	private static Parser.TreeNode reduce(Parser.TreeNode root) {
+		if (root == null) {
+			return null;
+		}
+		// the reduced operands of the nodes still to come
+		List<Operand> operands = new ArrayList<>();
+		for (Parser.TreeNode node : Parser.postOrder(root)) {
+			operands.add(reduceNode(node, operands));
+		}
+		return operands.get(0).finish();
+	}
+
+	/**
+	 * @param node     A node, or null.
+	 * @param operands The reduced operands read so far. The node's operands are removed from the
+	 *                 end.
+	 * @return The reduced node.
+	 */
+	private static Operand reduceNode(Parser.TreeNode node, List<Operand> operands) {
+		if (node == null) {
+			// the evaluator reads a missing operand as zero
+			return new Operand(null, Polynomial.constant(0));
+		}
+
+		Token token = node.token;
+		TokenType type = token.getType();
+		Operand right = null;
+		Operand left = null;
+		if (Parser.readsRight(token)) {
+			right = operands.remove(operands.size() - 1);
+		}
+		if (Parser.readsLeft(token)) {
+			left = operands.remove(operands.size() - 1);
+		}
+
+		if (type == TokenType.NUMBER) {
+			double value = ((NumberToken) token).getValue();
+			return new Operand(new Parser.TreeNode(token, null, null), Polynomial.constant(value));
+		} else if (type == TokenType.VARIABLE) {
+			return new Operand(new Parser.TreeNode(token, null, null),
+					  Polynomial.variable((VariableToken) token));
+		} else if (type == TokenType.COMMA) {
+			// the arguments are finished with their function, which may be a power
+			Operand arguments = new Operand(null, null);
+			arguments.left = left;
+			arguments.right = right;
+			return arguments;
+		} else if (type == TokenType.EXPONENT) {
+			return power(left, right);
+		} else if (type == TokenType.FUNCTION &&
+				  ((FunctionToken) token).getFunction() == FastMath.POW) {
+			Operand power = power(right.left, right.right);
+			Parser.TreeNode copy = power.copy;
+			if (copy.token.getType() == TokenType.EXPONENT) {
+				// keep the call to the approximation
+				copy = new Parser.TreeNode(token, null, new Parser.TreeNode(
+						  Token.valueOf(TokenType.COMMA), copy.left, copy.right));
+			}
+			if (power.polynomial != null && power.polynomial.isConstant()) {
+				// a constant power would be folded with Math.pow instead of the approximation
+				return new Operand(copy, null);
+			}
+			return new Operand(copy, power.polynomial);
+		}
+
+		Polynomial polynomial = null;
+		if (left != null && left.polynomial != null && right.polynomial != null) {
+			polynomial = Polynomial.combine(type, left.polynomial, right.polynomial);
+		} else if (type == TokenType.NEGATION && right.polynomial != null) {
+			polynomial = right.polynomial.negate();
+		}
+		if (polynomial != null) {
+			return new Operand(new Parser.TreeNode(token, copy(left), right.copy), polynomial);
+		}
+		return new Operand(new Parser.TreeNode(token, finish(left), finish(right)), null);
+	}
+
+	/**
+	 * @param base     The reduced base of a power.
+	 * @param exponent The reduced exponent.
+	 * @return The reduced power.
+	 */
+	private static Operand power(Operand base, Operand exponent) {
+		Token token = Token.valueOf(TokenType.EXPONENT);
+		Polynomial power = exponent.polynomial;
+		if (power == null || !power.isConstant()) {
+			return new Operand(new Parser.TreeNode(token, finish(base), finish(exponent)), null);
+		}
+
+		double k = power.coefficients[0];
+		Polynomial polynomial = null;
+		if (base.polynomial != null) {
+			polynomial = base.polynomial.power(k);
+		}
+		Parser.TreeNode copy;
+		if (polynomial != null) {
+			copy = multiply(base.copy, k);
+			if (copy == null) {
+				copy = new Parser.TreeNode(token, base.copy, exponent.copy);
+			}
+		} else {
+			Parser.TreeNode finished = finish(base);
+			copy = multiply(finished, k);
+			if (copy == null) {
+				copy = new Parser.TreeNode(token, finished, finish(exponent));
+			}
+		}
+		return new Operand(copy, polynomial);
+	}
+
+	/**
+	 * @param base The reduced base of a power, or null.
+	 * @param k    The exponent.
+	 * @return A tree that computes the power with multiplications, a division, or a square root,
+	 * or null if the exponent is not an integer of at most MAX_EXPONENT in magnitude or 0.5.
+	 */
+	private static Parser.TreeNode multiply(Parser.TreeNode base, double k) {
+		if (k == 0) {
+			// Math.pow returns 1 for a zero exponent, even if the base is NaN
+			return number(1);
+		} else if (k == 0.5) {
+			return new Parser.TreeNode(SQRT_TOKEN, null, base == null ? number(0) : base);
+		} else if (k != (int) k || Math.abs(k) > MAX_EXPONENT) {
+			return null;
+		}
+
+		int n = (int) k;
+		if (base == null) {
+			base = number(0);
+		}
+		if (n == 1) {
+			return base;
+		}
+		TokenType type = base.token.getType();
+		Parser.TreeNode power;
+		if ((type == TokenType.NUMBER || type == TokenType.VARIABLE) && Math.abs(n) <= 3) {
+			// as many multiplications as squaring takes, without the call
+			power = base;
+			for (int i = 1; i < Math.abs(n); i++) {
+				power = new Parser.TreeNode(Token.valueOf(TokenType.MULTIPLY), power,
+						  new Parser.TreeNode(base.token, null, null));
+			}
+		} else if (n == -1) {
+			power = base;
+		} else {
+			return new Parser.TreeNode(POWER_TOKENS[n + MAX_EXPONENT], null, base);
+		}
+		if (n < 0) {
+			power = new Parser.TreeNode(Token.valueOf(TokenType.DIVIDE), number(1), power);
+		}
+		return power;
+	}
+
+	/**
+	 * @param n A positive exponent.
+	 * @return The number of multiplications that raise a number to the exponent by repeated
+	 * squaring: one for each square, and one for each bit of n below the highest that is set.
+	 */
+	private static int multiplications(int n) {
+		return 31 - Integer.numberOfLeadingZeros(n) + Integer.bitCount(n) - 1;
+	}
+
+	/**
+	 * @param operand A reduced operand that is part of a polynomial, or null.
+	 * @return Its copy, without Horner's scheme, or null if operand is null.
+	 */
+	private static Parser.TreeNode copy(Operand operand) {
+		return operand == null ? null : operand.copy;
+	}
+
+	/**
+	 * @param operand A reduced operand whose parent is not part of a polynomial, or null.
+	 * @return Its finished tree, or null if operand is null.
+	 */
+	private static Parser.TreeNode finish(Operand operand) {
+		return operand == null ? null : operand.finish();
+	}
+
+	/**
+	 * @param value The value of the number.
+	 * @return A new leaf node holding the number.
+	 */
+	private static Parser.TreeNode number(double value) {
+		return new Parser.TreeNode(new NumberToken(value), null, null);
+	}
+
+	/**
+	 * A reduced subtree: the arguments of a function, or a copy of an operand with its powers
+	 * reduced, and the polynomial it computes, if it is one.
+	 */
+	private static final class Operand {
+
+		final Parser.TreeNode copy;
+		final Polynomial polynomial;
+		// the arguments either side of a comma
+		Operand left;
+		Operand right;
+
+		/**
+		 * @param copy       The copy of the operand with its powers reduced.
+		 * @param polynomial The polynomial it computes, or null if it is not one.
+		 */
+		Operand(Parser.TreeNode copy, Polynomial polynomial) {
+			this.copy = copy;
+			this.polynomial = polynomial;
+		}
+
+		/**
+		 * @return The tree to evaluate the operand with: its copy, a number if it is constant, or
+		 * Horner's scheme if that is cheaper, or the commas between the finished arguments.
+		 */
+		Parser.TreeNode finish() {
+			if (copy == null && polynomial == null) {
+				// the spine of commas leans left, so walk down it instead of recursing
+				List<Operand> arguments = new ArrayList<>();
+				Operand comma = this;
+				while (comma != null && comma.copy == null && comma.polynomial == null) {
+					arguments.add(comma.right);
+					comma = comma.left;
+				}
+				Parser.TreeNode node = StrengthReducer.finish(comma);
+				for (int i = arguments.size() - 1; i >= 0; i--) {
+					node = new Parser.TreeNode(Token.valueOf(TokenType.COMMA), node,
+							  arguments.get(i).finish());
+				}
+				return node;
+			} else if (polynomial == null) {
+				return copy;
+			} else if (polynomial.isConstant()) {
+				return number(polynomial.coefficients[0]);
+			} else if (polynomial.degree() >= 2 && polynomial.hornerCost() < polynomial.cost) {
+				return polynomial.horner();
+			}
+			return copy;
+		}
+	}
+
+	/**
+	 * A polynomial in at most one variable with finite coefficients, and the number of operations
+	 * the reduced subtree that computes it takes.
+	 */
+	private static final class Polynomial {
+
+		// the variable, or null if the polynomial is constant
+		final VariableToken variable;
+		// the coefficients from the constant term up, without zero terms above the degree
+		final double[] coefficients;
+		final int cost;
+
+		/**
+		 * @param variable     The variable, or null if the polynomial is a constant.
+		 * @param coefficients The coefficients from the constant term up.
+		 * @param cost         The number of operations the subtree takes.
+		 */
+		private Polynomial(VariableToken variable, double[] coefficients, int cost) {
+			this.variable = variable;
+			this.coefficients = coefficients;
+			this.cost = cost;
+		}
+
+		/**
+		 * @param value A number.
+		 * @return The polynomial that is the number.
+		 */
+		static Polynomial constant(double value) {
+			return of(null, new double[] {value}, 0);
+		}
+
+		/**
+		 * @param variable A variable.
+		 * @return The polynomial that is the variable.
+		 */
+		static Polynomial variable(VariableToken variable) {
+			return of(variable, new double[] {0, 1}, 0);
+		}
+
+		/**
+		 * @param variable     The variable, or null.
+		 * @param coefficients The coefficients from the constant term up.
+		 * @param cost         The number of operations the subtree takes.
+		 * @return The polynomial with zero terms above its degree removed, or null if a
+		 * coefficient is not finite or the degree is more than MAX_DEGREE.
+		 */
+		private static Polynomial of(VariableToken variable, double[] coefficients, int cost) {
+			int length = coefficients.length;
+			while (length > 1 && coefficients[length - 1] == 0) {
+				length--;
+			}
+			if (length > MAX_DEGREE + 1) {
+				return null;
+			}
+			for (int i = 0; i < length; i++) {
+				if (Double.isNaN(coefficients[i]) || Double.isInfinite(coefficients[i])) {
+					return null;
+				}
+			}
+			return new Polynomial(variable, Arrays.copyOf(coefficients, length), cost);
+		}
+
+		/**
+		 * @param type  The type of a binary operator.
+		 * @param left  The polynomial of its left operand.
+		 * @param right The polynomial of its right operand.
+		 * @return The polynomial of the operation, or null if it is not one.
+		 */
+		static Polynomial combine(TokenType type, Polynomial left, Polynomial right) {
+			VariableToken variable = left.variable;
+			if (variable == null) {
+				variable = right.variable;
+			} else if (right.variable != null && right.variable.getSlot() != variable.getSlot()) {
+				return null;
+			}
+			int cost = left.cost + right.cost + 1;
+
+			if (type == TokenType.ADD || type == TokenType.SUBTRACT) {
+				double sign = type == TokenType.ADD ? 1 : -1;
+				double[] sum = new double[Math.max(left.coefficients.length,
+						  right.coefficients.length)];
+				for (int i = 0; i < sum.length; i++) {
+					if (i >= right.coefficients.length) {
+						sum[i] = left.coefficients[i];
+					} else if (i >= left.coefficients.length) {
+						sum[i] = sign * right.coefficients[i];
+					} else if (sign > 0) {
+						sum[i] = left.coefficients[i] + right.coefficients[i];
+					} else {
+						sum[i] = left.coefficients[i] - right.coefficients[i];
+					}
+				}
+				return of(variable, sum, cost);
+			} else if (type == TokenType.MULTIPLY) {
+				if (left.degree() + right.degree() > MAX_DEGREE) {
+					return null;
+				}
+				double[] product = new double[left.degree() + right.degree() + 1];
+				for (int i = 0; i < left.coefficients.length; i++) {
+					for (int j = 0; j < right.coefficients.length; j++) {
+						product[i + j] += left.coefficients[i] * right.coefficients[j];
+					}
+				}
+				if (left.isConstant() && right.isConstant()) {
+					// without the addition to zero, which turns -0 into 0
+					product[0] = left.coefficients[0] * right.coefficients[0];
+				}
+				return of(variable, product, cost);
+			} else if (type == TokenType.DIVIDE && right.isConstant() &&
+					  right.coefficients[0] != 0) {
+				return left.divide(right.coefficients[0], cost);
+			}
+			return null;
+		}
+
+		/**
+		 * @return The polynomial multiplied by -1, as the evaluator negates.
+		 */
+		Polynomial negate() {
+			double[] negated = new double[coefficients.length];
+			for (int i = 0; i < negated.length; i++) {
+				negated[i] = -1 * coefficients[i];
+			}
+			return of(variable, negated, cost + 1);
+		}
+
+		/**
+		 * @param divisor A non-zero number.
+		 * @param cost    The number of operations the division takes.
+		 * @return The polynomial divided by the number.
+		 */
+		Polynomial divide(double divisor, int cost) {
+			double[] quotient = new double[coefficients.length];
+			for (int i = 0; i < quotient.length; i++) {
+				quotient[i] = coefficients[i] / divisor;
+			}
+			return of(variable, quotient, cost);
+		}
+
+		/**
+		 * @param k The exponent.
+		 * @return The polynomial raised to the exponent, or null if it is not a polynomial.
+		 */
+		Polynomial power(double k) {
+			if (isConstant()) {
+				return of(null, new double[] {Math.pow(coefficients[0], k)}, 0);
+			} else if (k != (int) k || k < 0 || k > MAX_EXPONENT || degree() * k > MAX_DEGREE) {
+				return null;
+			}
+			int n = (int) k;
+			if (n == 0) {
+				return constant(1);
+			}
+			Polynomial power = this;
+			for (int i = 1; i < n; i++) {
+				power = combine(TokenType.MULTIPLY, power, this);
+				if (power == null) {
+					return null;
+				}
+			}
+			// the cost of the multiplications that square the reduced copy
+			return new Polynomial(variable, power.coefficients, cost + multiplications(n));
+		}
+
+		/**
+		 * @return True if the polynomial does not depend on a variable, false otherwise.
+		 */
+		boolean isConstant() {
+			return variable == null;
+		}
+
+		/**
+		 * @return The degree of the polynomial.
+		 */
+		int degree() {
+			return coefficients.length - 1;
+		}
+
+		/**
+		 * @return The number of operations Horner's scheme takes.
+		 */
+		int hornerCost() {
+			int operations = degree();
+			if (coefficients[degree()] == 1) {
+				operations--;
+			}
+			for (int i = 0; i < degree(); i++) {
+				if (coefficients[i] != 0) {
+					operations++;
+				}
+			}
+			return operations;
+		}
+
+		/**
+		 * @return A tree that evaluates the polynomial by Horner's scheme, from the highest
+		 * coefficient down, skipping zero coefficients.
+		 */
+		Parser.TreeNode horner() {
+			int degree = degree();
+			Parser.TreeNode node = new Parser.TreeNode(variable, null, null);
+			if (coefficients[degree] != 1) {
+				node = new Parser.TreeNode(Token.valueOf(TokenType.MULTIPLY),
+						  number(coefficients[degree]), node);
+			}
+			for (int i = degree - 1; i >= 0; i--) {
+				if (coefficients[i] != 0) {
+					node = new Parser.TreeNode(Token.valueOf(TokenType.ADD), node,
+							  number(coefficients[i]));
+				}
+				if (i > 0) {
+					node = new Parser.TreeNode(Token.valueOf(TokenType.MULTIPLY), node,
+							  new Parser.TreeNode(variable, null, null));
+				}
+			}
+			return node;
+		}
+	}
+}
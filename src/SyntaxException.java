@@ -0,0 +1,28 @@
+import java.io.IOException;
+
+/**
+ * The IOException thrown for syntax errors, which remembers the kind of error so that it can be
+ * counted by ParseMetrics. Callers see an ordinary IOException.
+ */
+class SyntaxException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final ParseResult.Error error;
+
+	/**
+	 * @param error   The kind of error.
+	 * @param message A description of the error.
+	 */
+	SyntaxException(ParseResult.Error error, String message) {
+		super(message);
+		this.error = error;
+	}
+
+	/**
+	 * @return The kind of error.
+	 */
+	ParseResult.Error getError() {
+		return error;
+	}
+}
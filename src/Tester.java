@@ -1,8 +1,16 @@
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 public class Tester {
 
@@ -10,6 +18,7 @@ public class Tester {
 	public static void main(String[] args) throws IOException {
 
 		lexerTests();
+		compileTests();
 		System.out.println(Parser.parse("3 ^ -1 * 3"));
 	}
 
@@ -49,6 +58,362 @@ public class Tester {
 		lexer = new Lexer(in);
 		System.out.println(lexer);
 		test("Tests Lexer.getTokens on full expression ", lexerListEqual(lexer, exp));
+
+		CursorLexer cursor = new CursorLexer();
+		cursor.lex("12.5 * x - -x");
+		test("Tests CursorLexer.lex on primitive arrays", cursor.size() == 6 &&
+				  cursor.getValue(0) == 12.5 && cursor.getType(2) == TokenType.VARIABLE &&
+				  cursor.getType(3) == TokenType.SUBTRACT && cursor.getType(4) == TokenType.NEGATION &&
+				  cursor.getSlot(5) == 0 && cursor.getVariables().size() == 1);
+		cursor.lex("0.1 + 123456789.987654321");
+		test("Tests CursorLexer.lex rounds numbers like Double.parseDouble",
+				  cursor.getValue(0) == 0.1 && cursor.getValue(2) == 123456789.987654321);
+		cursor.lex("1.5e-3 * 2.2250738585072012e-308 + 7E+22 - 2e");
+		test("Tests CursorLexer.lex with scientific notation", cursor.getValue(0) == 1.5e-3 &&
+				  cursor.getValue(2) == 2.2250738585072012e-308 && cursor.getValue(4) == 7e22 &&
+				  cursor.getValue(6) == 2 && cursor.getType(7) == TokenType.VARIABLE);
+	}
+
+	private static void compileTests() throws IOException {
+		Expression exp = Parser.compile("x * 2 + y ^ x - sin(y)");
+		test("Tests Parser.compile assigns slots in order",
+				  exp.getVariableCount() == 2 && exp.indexOf("x") == 0 && exp.indexOf("y") == 1);
+		test("Tests Expression.evaluate with bindings",
+				  exp.evaluate(3, 2) == 3 * 2 + Math.pow(2, 3) - Math.sin(2));
+		test("Tests Expression.evaluate with new bindings",
+				  exp.evaluate(1, 5) == 1 * 2 + Math.pow(5, 1) - Math.sin(5));
+		PostfixProgram program = PostfixProgram.compile(exp);
+		double[] stack = program.newStack();
+		test("Tests PostfixProgram.evaluate matches Expression.evaluate",
+				  program.evaluate(new double[]{3, 2}, stack) == exp.evaluate(3, 2) &&
+							 program.evaluate(new double[]{-1.5, 0.25}, stack) == exp.evaluate(-1.5, 0.25));
+		Evaluator jit = JitCompiler.compile(exp);
+		test("Tests JitCompiler.compile generates a class",
+				  !(jit instanceof PostfixProgram) && jit.evaluate(3, 2) == exp.evaluate(3, 2));
+		StringBuilder terms = new StringBuilder("x");
+		for (int i = 1; i < 1500; i++) {
+			terms.append(" + x * ").append(i);
+		}
+		Expression huge = Parser.compile("if(x > 0, " + terms + ", -(" + terms + "))");
+		Evaluator hugeJit = JitCompiler.compile(huge);
+		test("Tests JitCompiler.compile splits a huge expression",
+				  !(hugeJit instanceof PostfixProgram) &&
+							 new String(JitCompiler.generate(huge, new ArrayList<>()),
+										StandardCharsets.ISO_8859_1).contains("part1") &&
+							 hugeJit.evaluate(0.5) == huge.evaluate(0.5) &&
+							 hugeJit.evaluate(-2) == huge.evaluate(-2));
+		Optimizer optimizer = new Optimizer();
+		Expression folded = optimizer.optimize(Parser.compile("2*3.14159/180 * x*1 - --y + 0"));
+		test("Tests Optimizer.optimize folds constants and removes identities",
+				  optimizer.getNodesRemoved() == 8 &&
+							 folded.evaluate(-0.0, 2) == 2 * 3.14159 / 180 * -0.0 * 1 - 2 + 0);
+		Expression repeated = Parser.compile("sin(a*b)+cos(a*b)*(a*b)^2");
+		DagProgram dag = DagProgram.compile(repeated);
+		test("Tests DagProgram.compile merges repeated subexpressions",
+				  dag.getNodeCount() == 9 && dag.evaluate(1.5, -2) == repeated.evaluate(1.5, -2));
+		ExpressionCache cache = new ExpressionCache(2);
+		Expression cached = cache.get("x + 1");
+		cache.get("y");
+		cache.get("x + 1");
+		cache.get("z");
+		test("Tests ExpressionCache.get shares and evicts expressions",
+				  cache.get("x + 1") == cached && cache.size() == 2 && cache.getHitCount() == 2 &&
+							 cache.getMissCount() == 3 && cache.getEvictionCount() == 1);
+		ExpressionCache normalizing = new ExpressionCache(8, 0, TimeUnit.SECONDS, true);
+		Expression firstForm = normalizing.get("a + b*2");
+		Expression secondForm = normalizing.get("(2*b)+a");
+		test("Tests ExpressionCache.get shares canonical forms",
+				  normalizing.get("a+2*b").getRoot() == firstForm.getRoot() &&
+							 normalizing.size() == 1 && normalizing.getMissCount() == 1 &&
+							 Canonicalizer.canonicalize("((a)) + 2.0 * b").equals("2*b+a"));
+		test("Tests ExpressionCache.get binds variables in input order",
+				  firstForm.evaluate(1, 10) == 21 && secondForm.evaluate(10, 1) == 21 &&
+							 firstForm.toString().equals("a + b*2") &&
+							 secondForm.getVariable(0).equals("b") &&
+							 normalizing.get("a + b*2") == firstForm);
+		ExpressionCache churning = new ExpressionCache(2, 0, TimeUnit.SECONDS, true);
+		ParseMetrics compiles = new ParseMetrics();
+		Parser.setMetrics(compiles);
+		try {
+			churning.get("x + y");
+			for (int i = 0; i < 20; i++) {
+				churning.get("x * " + i);
+				churning.get("x + y");
+			}
+		} finally {
+			Parser.setMetrics(null);
+		}
+		test("Tests ExpressionCache.get compiles each input once",
+				  compiles.getCompileCount() == 21 && churning.getHitCount() == 20);
+		// a sum of n terms has the canonical form x+(x+(...(x+x)...)), with n - 2 parentheses
+		StringBuilder xSum = new StringBuilder("x+x");
+		StringBuilder xSumForm = new StringBuilder();
+		for (int i = 2; i < 50000; i++) {
+			xSum.append("+x");
+			xSumForm.append("x+(");
+		}
+		xSumForm.append("x+x");
+		for (int i = 2; i < 50000; i++) {
+			xSumForm.append(')');
+		}
+		test("Tests Canonicalizer with a long sum",
+				  Canonicalizer.canonicalize(xSum.toString()).equals(xSumForm.toString()));
+		double[][] columns = {{3, -1.5, 0}, {2, 0.25, 7}};
+		double[] results = new double[3];
+		BatchEvaluator.compile(exp).evaluate(columns, results);
+		test("Tests BatchEvaluator.evaluate matches Expression.evaluate",
+				  results[0] == exp.evaluate(3, 2) && results[1] == exp.evaluate(-1.5, 0.25) &&
+							 results[2] == exp.evaluate(0, 7));
+		double[][] manyColumns = new double[2][10000];
+		for (int i = 0; i < 10000; i++) {
+			manyColumns[0][i] = i;
+			manyColumns[1][i] = -i / 3.0;
+		}
+		double[] sequential = new double[10000];
+		double[] parallel = new double[10000];
+		BatchEvaluator batch = BatchEvaluator.compile(exp);
+		batch.evaluate(manyColumns, sequential);
+		batch.evaluateParallel(manyColumns, parallel, new ForkJoinPool(4), 0);
+		test("Tests BatchEvaluator.evaluateParallel matches BatchEvaluator.evaluate",
+				  Arrays.equals(sequential, parallel));
+		test("Tests Parser.evaluate", Parser.evaluate("3 ^ -1 * 3") == Math.pow(3, -1) * 3);
+		test("Tests Parser.evaluate with a leading group", Parser.evaluate("(1 - 2) * 3") == -3);
+
+		StringBuilder deep = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			deep.append("(x + ");
+		}
+		deep.append('1');
+		for (int i = 0; i < 20000; i++) {
+			deep.append(')');
+		}
+		Expression deepExp = Parser.compile(deep.toString());
+		test("Tests evaluating a deep tree", deepExp.evaluate(1) == 20001);
+		test("Tests evaluating a deep tree again", deepExp.evaluate(2) == 40001 &&
+				  deepExp.evaluate(1) == 20001);
+		test("Tests compiling a deep tree", PostfixProgram.compile(deepExp).evaluate(1) == 20001);
+		Parser.setMaxDepth(1000);
+		try {
+			Parser.compile(deep.toString());
+			test("Tests the maximum depth", false);
+		} catch (IOException e) {
+			test("Tests the maximum depth", true);
+		} finally {
+			Parser.setMaxDepth(Parser.DEFAULT_MAX_DEPTH);
+		}
+
+		ParseResult invalid = Parser.validate("1 + 2)");
+		test("Tests Parser.validate", Parser.validate("1 + 2") == ParseResult.VALID &&
+				  invalid.getError() == ParseResult.Error.NO_OPENING_PARENTHESES &&
+				  invalid.getOffset() == 5 && invalid.getToken().equals(")"));
+		invalid = Parser.validate("2 * 1.5.3");
+		test("Tests Parser.validate with a malformed number",
+				  invalid.getError() == ParseResult.Error.TOO_MANY_DECIMALS && invalid.getOffset() == 4);
+
+		ParseMetrics metrics = new ParseMetrics();
+		Parser.setMetrics(metrics);
+		try {
+			Parser.evaluate("1 + 2 * 3");
+			Parser.compile("x * 2").evaluate(3);
+			try {
+				Parser.evaluate("1 + 2)");
+			} catch (IOException e) {
+				// counted below
+			}
+		} finally {
+			Parser.setMetrics(null);
+		}
+		ParseMetrics.Snapshot snapshot = metrics.snapshot();
+		test("Tests ParseMetrics phases", snapshot.getCount(ParseMetrics.Phase.LEX) == 3 &&
+				  snapshot.getCount(ParseMetrics.Phase.BUILD) == 2 &&
+				  snapshot.getCount(ParseMetrics.Phase.EVALUATE) == 2);
+		test("Tests ParseMetrics sizes", snapshot.getMeanTokens() == 4 && snapshot.getMeanNodes() == 4);
+		test("Tests ParseMetrics errors",
+				  snapshot.getErrorCount(ParseResult.Error.NO_OPENING_PARENTHESES) == 1 &&
+				  snapshot.getCompileCount() == 1);
+
+		ArenaParser arena = new ArenaParser();
+		arena.parse("(1 - 2) * 3");
+		test("Tests ArenaParser", arena.evaluate() == -3);
+		arena.parse("x * 2 + y ^ x - sin(y)");
+		test("Tests ArenaParser with variables", arena.evaluate(1.5, 2) == exp.evaluate(1.5, 2));
+		StringBuilder longSum = new StringBuilder("1");
+		for (int i = 0; i < 50000; i++) {
+			longSum.append(" + 1");
+		}
+		arena.parse(longSum);
+		test("Tests ArenaParser with a long sum", arena.evaluate() == 50001);
+
+		Path file = Files.createTempFile("expressions", ".txt");
+		try {
+			Files.write(file, "1 + 2\n2 ^ 10\n3 $ 4\nsin(0)".getBytes(StandardCharsets.US_ASCII));
+			ByteArrayOutputStream written = new ByteArrayOutputStream();
+			List<FileEvaluator.LineError> errors =
+					  FileEvaluator.evaluate(file, Channels.newChannel(written), 2);
+			test("Tests FileEvaluator results",
+					  written.toString("US-ASCII").equals("3.0\n1024.0\n\n0.0\n"));
+			test("Tests FileEvaluator errors", errors.size() == 1 && errors.get(0).getLine() == 3);
+		} finally {
+			Files.delete(file);
+		}
+
+		test("Tests built-in functions", Parser.evaluate("max(2, min(7, 5)) + sqrt(16)") == 9 &&
+				  Parser.evaluate("hypot(3, 4) * abs(-2)") == 10);
+		Expression atan2 = Parser.compile("atan2(y1, x1) + x1");
+		test("Tests atan2 and names with digits",
+				  Parser.evaluate("atan2(1, 2)") == Math.atan2(1, 2) &&
+							 atan2.getVariableCount() == 2 && atan2.getVariable(0).equals("y1") &&
+							 atan2.evaluate(1, 2) == Math.atan2(1, 2) + 2 &&
+							 JitCompiler.compile(atan2).evaluate(1, 2) == atan2.evaluate(1, 2));
+		Functions.register(MathFunction.of("lerp", 3, true,
+				  (a, i) -> a[i] + (a[i + 1] - a[i]) * a[i + 2]));
+		Expression lerp = Parser.compile("lerp(x, y, 0.25) * 2");
+		double lerped = lerp.evaluate(2, 6);
+		test("Tests a registered function", lerped == 6 &&
+				  PostfixProgram.compile(lerp).evaluate(2, 6) == lerped &&
+				  DagProgram.compile(lerp).evaluate(2, 6) == lerped &&
+				  JitCompiler.compile(lerp).evaluate(2, 6) == lerped);
+		Functions.register(MathFunction.of("twice", 1, true, (a, i) -> 2 * a[i]));
+		Expression nested =
+				  Parser.compile("lerp(twice(x), lerp(x, y, twice(0.25)), lerp(0, 1, 0.5))");
+		double nestedResult = nested.evaluate(2, 6);
+		test("Tests nested calls of registered functions", nestedResult == 4 &&
+				  PostfixProgram.compile(nested).evaluate(2, 6) == nestedResult &&
+				  DagProgram.compile(nested).evaluate(2, 6) == nestedResult &&
+				  JitCompiler.compile(nested).evaluate(2, 6) == nestedResult);
+		int[] ticks = new int[1];
+		Functions.register(MathFunction.nullary("tick", false, () -> ++ticks[0]));
+		Expression tick = Parser.compile("tick() + tick()");
+		test("Tests an impure function", DagProgram.compile(tick).evaluate() == 3 &&
+				  new Optimizer().optimize(tick).evaluate() == 7);
+		test("Tests folding a pure function",
+				  new Optimizer().optimize(Parser.compile("max(1, 2) * x")).getRoot().left.token
+							 .equals(new NumberToken(2)));
+		test("Tests function syntax errors",
+				  Parser.validate("max(1)").getError() == ParseResult.Error.WRONG_ARGUMENT_COUNT &&
+							 Parser.validate("(1, 2)").getOffset() == 2 &&
+							 Parser.validate("max").getError() == ParseResult.Error.UNCLOSED_FUNCTION);
+		test("Tests sin, cos, and tan syntax errors",
+				  Parser.validate("sin 3").getError() == ParseResult.Error.UNCLOSED_FUNCTION &&
+							 Parser.validate("cos(1, 2)").getError() ==
+										ParseResult.Error.WRONG_ARGUMENT_COUNT &&
+							 arena.tryParse("tan 2").getError() ==
+										ParseResult.Error.UNCLOSED_FUNCTION &&
+							 arena.tryParse("sin(1, 2)").getError() ==
+										ParseResult.Error.WRONG_ARGUMENT_COUNT);
+		arena.parse("lerp(1, max(x, 3), 0.5)");
+		test("Tests ArenaParser with functions", arena.evaluate(5) == 3);
+
+		String text = "  (x + 2.5e1) * max(y, 3)  ";
+		byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 3);
+		direct.put(bytes).put("$1+".getBytes(StandardCharsets.US_ASCII)).flip();
+		direct.limit(bytes.length);
+		List<Token> textTokens = new ArrayList<>();
+		new Lexer(text).forEach(textTokens::add);
+		test("Tests lexing bytes", lexerListEqual(new Lexer(direct), textTokens) &&
+				  lexerListEqual(new Lexer(bytes, 0, bytes.length), textTokens));
+		test("Tests compiling bytes", Parser.compile(direct).evaluate(1, 4) == 104 &&
+				  Parser.compile(bytes, 3, 9).evaluate(1) == 26 && direct.position() == 0);
+		test("Tests evaluating bytes", Parser.evaluate(bytes, 7, 5) == 25 &&
+				  Parser.evaluate(ByteBuffer.wrap(bytes, 9, 3)) == 50);
+		direct.limit(bytes.length + 3).position(bytes.length);
+		ParseResult directResult = Parser.validate(direct);
+		ParseResult arrayResult = Parser.validate(bytes, 2, 5);
+		ParseResult textResult = Parser.validate(text.substring(2, 7));
+		test("Tests byte syntax errors",
+				  directResult.getError() == ParseResult.Error.UNKNOWN_CHARACTER &&
+							 directResult.getOffset() == 0 &&
+							 arrayResult.getError() == textResult.getError() &&
+							 arrayResult.getOffset() == textResult.getOffset());
+
+		Expression strict = Parser.compile("sin(x) * cos(y) + tan(x / 3) - x ^ 3 + y ^ 0.5");
+		Expression fast = strict.withMathMode(MathMode.FAST);
+		double exact = strict.evaluate(0.7, 2.5);
+		double approximate = fast.evaluate(0.7, 2.5);
+		test("Tests fast math mode", fast.getMathMode() == MathMode.FAST &&
+				  Math.abs(approximate - exact) <= FastMath.MAX_RELATIVE_ERROR * Math.abs(exact) &&
+				  PostfixProgram.compile(fast).evaluate(0.7, 2.5) == approximate &&
+				  JitCompiler.compile(fast).evaluate(0.7, 2.5) == approximate &&
+				  fast.withMathMode(MathMode.STRICT).evaluate(0.7, 2.5) == exact);
+		double[] angles = AccuracyHarness.angles(1 << 12);
+		double[] bases = AccuracyHarness.bases(1 << 8);
+		double maxError = Math.max(Math.max(
+				  AccuracyHarness.sweep(FastMath::sin, Math::sin, angles).maxError,
+				  AccuracyHarness.sweep(FastMath::cos, Math::cos, angles).maxError), Math.max(
+				  AccuracyHarness.sweep(FastMath::tan, Math::tan, angles).maxError,
+				  AccuracyHarness.sweep(FastMath::pow, Math::pow, bases,
+							 AccuracyHarness.exponents()).maxError));
+		test("Tests FastMath accuracy", maxError <= FastMath.MAX_RELATIVE_ERROR);
+		Expression pythagoras = Parser.compile("sqrt(1 - cos(x) ^ 2) + sqrt(1 - sin(y) ^ 2)")
+				  .withMathMode(MathMode.FAST);
+		test("Tests FastMath peaks", FastMath.cos(0) == 1 && FastMath.sin(Math.PI / 2) == 1 &&
+				  FastMath.cos(Math.PI) == -1 && pythagoras.evaluate(0, Math.PI / 2) == 0 &&
+				  AccuracyHarness.maxMagnitude(FastMath::sin, angles) <= 1 &&
+				  AccuracyHarness.maxMagnitude(FastMath::cos, angles) <= 1);
+
+		StrengthReducer reducer = new StrengthReducer();
+		Expression powers = reducer.reduce(Parser.compile("x ^ 5 + x ^ -2 - y ^ 0.5"));
+		double powersExact = Math.pow(1.3, 5) + Math.pow(1.3, -2) - Math.pow(2.5, 0.5);
+		test("Tests StrengthReducer powers",
+				  Math.abs(powers.evaluate(1.3, 2.5) - powersExact) <= 1e-14 * powersExact &&
+							 reducer.reduce(Parser.compile("x ^ 0.5")).evaluate(-0.0) == 0 &&
+							 1 / reducer.reduce(Parser.compile("x ^ 0.5")).evaluate(-0.0) > 0 &&
+							 reducer.reduce(Parser.compile("x ^ 0")).evaluate(Double.NaN) == 1);
+		Expression sixteenth = reducer.reduce(Parser.compile("x ^ 16 + x ^ 3"));
+		test("Tests StrengthReducer squaring", Parser.countNodes(sixteenth.getRoot()) == 8 &&
+				  sixteenth.evaluate(1.3) == FastMath.integerPower(1.3, 16) + 1.3 * 1.3 * 1.3);
+		Expression polynomial = Parser.compile("3 * x ^ 3 + 2 * x ^ 2 - x + 5");
+		Expression horner = reducer.reduce(polynomial);
+		double polynomialExact = polynomial.evaluate(1.7);
+		test("Tests StrengthReducer polynomials",
+				  Parser.countNodes(horner.getRoot()) < Parser.countNodes(polynomial.getRoot()) &&
+							 Math.abs(horner.evaluate(1.7) - polynomialExact) <=
+										1e-14 * polynomialExact &&
+							 JitCompiler.compile(horner).evaluate(1.7) == horner.evaluate(1.7));
+
+		test("Tests comparisons", Parser.evaluate("2 < 3") == 1 && Parser.evaluate("2 >= 3") == 0 &&
+				  Parser.evaluate("1 + 1 == 2 * 1") == 1 && Parser.evaluate("1 != 1") == 0 &&
+				  Parser.validate("1 = 1").getError() == ParseResult.Error.UNKNOWN_CHARACTER);
+		Expression pricing = Parser.compile(
+				  "if(x <= 100, x * 2, if(x <= 500, 200 + (x - 100) * 1.5, 800 + (x - 500)))");
+		double tiered = pricing.evaluate(300);
+		test("Tests a piecewise if", tiered == 500 && pricing.evaluate(50) == 100 &&
+				  pricing.evaluate(600) == 900 &&
+				  PostfixProgram.compile(pricing).evaluate(300) == tiered &&
+				  DagProgram.compile(pricing).evaluate(300) == tiered &&
+				  JitCompiler.compile(pricing).evaluate(300) == tiered &&
+				  tieredBatch(pricing)[1] == tiered);
+		Expression lazy = Parser.compile("if(x > 0, 5, tick()) + if(x, tick() * 0, 1)");
+		ticks[0] = 0;
+		test("Tests a lazy if", lazy.evaluate(1) == 5 &&
+				  PostfixProgram.compile(lazy).evaluate(1) == 5 &&
+				  JitCompiler.compile(lazy).evaluate(1) == 5 && ticks[0] == 3 &&
+				  new Optimizer().optimize(Parser.compile("if(1, x, tick())")).getRoot().token
+							 .getType() == TokenType.VARIABLE);
+
+		Expression cell = Parser.compile("if(x > 10, y * 2, 0) + sin(z) * max(z, 1)");
+		IncrementalEvaluator incremental = IncrementalEvaluator.compile(cell, 1, 2, 3);
+		double cellValue = cell.evaluate(1, 5, 3);
+		test("Tests IncrementalEvaluator updates", incremental.update(1, 5) == cellValue &&
+				  incremental.getRecomputedCount() == 3 &&
+				  incremental.update(new int[]{0, 2}, new double[]{20, 0.5}) ==
+							 cell.evaluate(20, 5, 0.5) &&
+				  incremental.evaluate(20, 5, 0.5) == cell.evaluate(20, 5, 0.5) &&
+				  incremental.getRecomputedCount() == 0);
+		IncrementalEvaluator ticking = IncrementalEvaluator.compile(Parser.compile("tick() + x"), 1);
+		double ticked = ticking.propagate();
+		test("Tests IncrementalEvaluator with an impure function",
+				  ticking.propagate() == ticked + 1 && ticking.getRecomputedCount() == 2);
+
+		test("Tests no flight recorder events outside a recording",
+				  ParseEvents.begin(ParseEvents.Kind.EVALUATE) == null);
+	}
+
+	private static double[] tieredBatch(Expression pricing) {
+		double[] output = new double[3];
+		BatchEvaluator.compile(pricing).evaluate(new double[][]{{50, 300, 600}}, output);
+		return output;
 	}
 
 	private static boolean lexerListEqual(Lexer lexer, List<Token> list) {
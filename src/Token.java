@@ -5,27 +5,38 @@ public class Token {
 
 	static int[] precedenceMap;
 	static String[] symbolMap;
+	private static Token[] flyweights;
 
 	static {
 		precedenceMap = new int[TokenType.values().length];
-		precedenceMap[TokenType.OPEN_PAREN.ordinal()] = 1;
-		precedenceMap[TokenType.CLOSE_PAREN.ordinal()] = 1;
-		precedenceMap[TokenType.ADD.ordinal()] = 2;
-		precedenceMap[TokenType.SUBTRACT.ordinal()] = 2;
+		precedenceMap[TokenType.OPEN_PAREN.ordinal()] = 0;
+		precedenceMap[TokenType.CLOSE_PAREN.ordinal()] = 0;
+		precedenceMap[TokenType.COMMA.ordinal()] = 1;
+		precedenceMap[TokenType.LESS.ordinal()] = 2;
+		precedenceMap[TokenType.LESS_EQUAL.ordinal()] = 2;
+		precedenceMap[TokenType.GREATER.ordinal()] = 2;
+		precedenceMap[TokenType.GREATER_EQUAL.ordinal()] = 2;
+		precedenceMap[TokenType.EQUAL.ordinal()] = 2;
+		precedenceMap[TokenType.NOT_EQUAL.ordinal()] = 2;
 
-		precedenceMap[TokenType.MULTIPLY.ordinal()] = 3;
-		precedenceMap[TokenType.DIVIDE.ordinal()] = 3;
-		precedenceMap[TokenType.NEGATION.ordinal()] = 4;
-		precedenceMap[TokenType.EXPONENT.ordinal()] = 5;
+		precedenceMap[TokenType.ADD.ordinal()] = 3;
+		precedenceMap[TokenType.SUBTRACT.ordinal()] = 3;
+		precedenceMap[TokenType.MULTIPLY.ordinal()] = 4;
+		precedenceMap[TokenType.DIVIDE.ordinal()] = 4;
+		precedenceMap[TokenType.NEGATION.ordinal()] = 5;
+		precedenceMap[TokenType.EXPONENT.ordinal()] = 6;
 
 		precedenceMap[TokenType.NUMBER.ordinal()] = Integer.MAX_VALUE;
+		precedenceMap[TokenType.VARIABLE.ordinal()] = Integer.MAX_VALUE;
 		precedenceMap[TokenType.SIN.ordinal()] = Integer.MAX_VALUE;
 		precedenceMap[TokenType.COS.ordinal()] = Integer.MAX_VALUE;
 		precedenceMap[TokenType.TAN.ordinal()] = Integer.MAX_VALUE;
+		precedenceMap[TokenType.FUNCTION.ordinal()] = Integer.MAX_VALUE;
 
 		symbolMap = new String[TokenType.values().length];
 		symbolMap[TokenType.OPEN_PAREN.ordinal()] = "(";
 		symbolMap[TokenType.CLOSE_PAREN.ordinal()] = ")";
+		symbolMap[TokenType.COMMA.ordinal()] = ",";
 		symbolMap[TokenType.ADD.ordinal()] = "+";
 		symbolMap[TokenType.SUBTRACT.ordinal()] = "-";
 
@@ -34,10 +45,27 @@ public class Token {
 		symbolMap[TokenType.DIVIDE.ordinal()] = "/";
 		symbolMap[TokenType.EXPONENT.ordinal()] = "^";
 
+		symbolMap[TokenType.LESS.ordinal()] = "<";
+		symbolMap[TokenType.LESS_EQUAL.ordinal()] = "<=";
+		symbolMap[TokenType.GREATER.ordinal()] = ">";
+		symbolMap[TokenType.GREATER_EQUAL.ordinal()] = ">=";
+		symbolMap[TokenType.EQUAL.ordinal()] = "==";
+		symbolMap[TokenType.NOT_EQUAL.ordinal()] = "!=";
+
 		symbolMap[TokenType.NUMBER.ordinal()] = ".";
+		symbolMap[TokenType.VARIABLE.ordinal()] = "var";
 		symbolMap[TokenType.SIN.ordinal()] = "sin";
 		symbolMap[TokenType.COS.ordinal()] = "cos";
 		symbolMap[TokenType.TAN.ordinal()] = "tan";
+		symbolMap[TokenType.FUNCTION.ordinal()] = "function";
+
+		flyweights = new Token[TokenType.values().length];
+		for (TokenType type : TokenType.values()) {
+			if (type != TokenType.NUMBER && type != TokenType.VARIABLE &&
+					  type != TokenType.FUNCTION) {
+				flyweights[type.ordinal()] = new Token(type);
+			}
+		}
 	}
 
 	private final TokenType type;
@@ -53,6 +81,23 @@ public class Token {
 		precedence = precedenceMap[type.ordinal()];
 	}
 
+	/**
+	 * Gets the shared Token of the given type. Tokens have no state other than their type, so
+	 * operators, parentheses, and the built-in functions can all share one instance per type.
+	 *
+	 * @param type The type of the token. Must not be NUMBER, VARIABLE, or FUNCTION.
+	 * @return The shared token of the given type.
+	 * @throws IllegalArgumentException If type is NUMBER, VARIABLE, or FUNCTION, which carry
+	 *                                  values.
+	 */
+	public static Token valueOf(TokenType type) {
+		Token token = flyweights[type.ordinal()];
+		if (token == null) {
+			throw new IllegalArgumentException(type + " tokens carry values and cannot be shared");
+		}
+		return token;
+	}
+
 	/**
 	 * @return The type of the token.
 	 */
@@ -93,4 +138,11 @@ public class Token {
 			return false;
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * @return A hash code consistent with equals, which depends only on the type.
+	 */
+	public int hashCode() {
+		return type.ordinal();
+	}
+}
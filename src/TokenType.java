@@ -15,12 +15,22 @@ public enum TokenType {
 	DIVIDE,
 	EXPONENT,
 
-	// parentheses
+	// comparisons, binary operators that are 1 if they hold and 0 if not
+	LESS,
+	LESS_EQUAL,
+	GREATER,
+	GREATER_EQUAL,
+	EQUAL,
+	NOT_EQUAL,
+
+	// parentheses, and the comma between the arguments of a function
 	OPEN_PAREN,
 	CLOSE_PAREN,
+	COMMA,
 
 	// functions
 	SIN,
 	COS,
 	TAN,
+	FUNCTION,
 }
\ No newline at end of file
@@ -0,0 +1,60 @@
+/**
+ * A token that represents a named variable.
+ */
+public class VariableToken extends Token {
+
+	private String name;
+	private int slot;
+
+	/**
+	 * Creates a new VariableToken with the given name and binding slot.
+	 *
+	 * @param name The name of the variable.
+	 * @param slot The index of the variable's value in the bindings of an expression.
+	 */
+	public VariableToken(String name, int slot) {
+		super(TokenType.VARIABLE);
+		this.name = name;
+		this.slot = slot;
+	}
+
+	/**
+	 * @return The name of this variable.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return The index of this variable's value in the bindings of an expression.
+	 */
+	public int getSlot() {
+		return slot;
+	}
+
+	/**
+	 * @return A string representation of the VariableToken
+	 */
+	public String toString() {
+		return name;
+	}
+
+	/**
+	 * @param o The object to compare to.
+	 * @return True if o is a VariableToken with the same name, false otherwise.
+	 */
+	public boolean equals(Object o) {
+		if (o instanceof VariableToken) {
+			return ((VariableToken) o).name.equals(this.name);
+		} else {
+			return false;
+		}
+	}
+
+	/**
+	 * @return A hash code consistent with equals, which depends only on the name.
+	 */
+	public int hashCode() {
+		return name.hashCode();
+	}
+}
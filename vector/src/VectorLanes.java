@@ -0,0 +1,178 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The loops of BatchEvaluator on the Vector API, found by BatchEvaluator when the JVM is started
+ * with --add-modules jdk.incubator.vector. This is compiled against the incubator module,
+ * separately from the rest of the parser, which does not depend on it.
+ *
+ * Each loop computes as many rows at once as the preferred species holds, and the rows left over
+ * at the end of a chunk with a mask. Every lane is computed as the plain loops compute it, so the
+ * results are identical to theirs, bit for bit.
+ */
+final class VectorLanes implements BatchEvaluator.Lanes {
+
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+	private static final DoubleVector ZERO = DoubleVector.zero(SPECIES);
+	private static final DoubleVector ONE = DoubleVector.broadcast(SPECIES, 1);
+
+	public void add(double[] a, double[] b, int length) {
+		int bound = SPECIES.loopBound(length);
+		int i = 0;
+		for (; i < bound; i += SPECIES.length()) {
+			DoubleVector left = DoubleVector.fromArray(SPECIES, a, i);
+			left.add(DoubleVector.fromArray(SPECIES, b, i)).intoArray(a, i);
+		}
+		if (i < length) {
+			VectorMask<Double> tail = SPECIES.indexInRange(i, length);
+			DoubleVector left = DoubleVector.fromArray(SPECIES, a, i, tail);
+			left.add(DoubleVector.fromArray(SPECIES, b, i, tail)).intoArray(a, i, tail);
+		}
+	}
+
+	public void subtract(double[] a, double[] b, int length) {
+		int bound = SPECIES.loopBound(length);
+		int i = 0;
+		for (; i < bound; i += SPECIES.length()) {
+			DoubleVector left = DoubleVector.fromArray(SPECIES, a, i);
+			left.sub(DoubleVector.fromArray(SPECIES, b, i)).intoArray(a, i);
+		}
+		if (i < length) {
+			VectorMask<Double> tail = SPECIES.indexInRange(i, length);
+			DoubleVector left = DoubleVector.fromArray(SPECIES, a, i, tail);
+			left.sub(DoubleVector.fromArray(SPECIES, b, i, tail)).intoArray(a, i, tail);
+		}
+	}
+
+	public void multiply(double[] a, double[] b, int length) {
+		int bound = SPECIES.loopBound(length);
+		int i = 0;
+		for (; i < bound; i += SPECIES.length()) {
+			DoubleVector left = DoubleVector.fromArray(SPECIES, a, i);
+			left.mul(DoubleVector.fromArray(SPECIES, b, i)).intoArray(a, i);
+		}
+		if (i < length) {
+			VectorMask<Double> tail = SPECIES.indexInRange(i, length);
+			DoubleVector left = DoubleVector.fromArray(SPECIES, a, i, tail);
+			left.mul(DoubleVector.fromArray(SPECIES, b, i, tail)).intoArray(a, i, tail);
+		}
+	}
+
+	public void divide(double[] a, double[] b, int length) {
+		int bound = SPECIES.loopBound(length);
+		int i = 0;
+		for (; i < bound; i += SPECIES.length()) {
+			DoubleVector left = DoubleVector.fromArray(SPECIES, a, i);
+			left.div(DoubleVector.fromArray(SPECIES, b, i)).intoArray(a, i);
+		}
+		if (i < length) {
+			VectorMask<Double> tail = SPECIES.indexInRange(i, length);
+			DoubleVector left = DoubleVector.fromArray(SPECIES, a, i, tail);
+			left.div(DoubleVector.fromArray(SPECIES, b, i, tail)).intoArray(a, i, tail);
+		}
+	}
+
+	public void min(double[] a, double[] b, int length) {
+		int bound = SPECIES.loopBound(length);
+		int i = 0;
+		for (; i < bound; i += SPECIES.length()) {
+			DoubleVector left = DoubleVector.fromArray(SPECIES, a, i);
+			left.min(DoubleVector.fromArray(SPECIES, b, i)).intoArray(a, i);
+		}
+		if (i < length) {
+			VectorMask<Double> tail = SPECIES.indexInRange(i, length);
+			DoubleVector left = DoubleVector.fromArray(SPECIES, a, i, tail);
+			left.min(DoubleVector.fromArray(SPECIES, b, i, tail)).intoArray(a, i, tail);
+		}
+	}
+
+	public void max(double[] a, double[] b, int length) {
+		int bound = SPECIES.loopBound(length);
+		int i = 0;
+		for (; i < bound; i += SPECIES.length()) {
+			DoubleVector left = DoubleVector.fromArray(SPECIES, a, i);
+			left.max(DoubleVector.fromArray(SPECIES, b, i)).intoArray(a, i);
+		}
+		if (i < length) {
+			VectorMask<Double> tail = SPECIES.indexInRange(i, length);
+			DoubleVector left = DoubleVector.fromArray(SPECIES, a, i, tail);
+			left.max(DoubleVector.fromArray(SPECIES, b, i, tail)).intoArray(a, i, tail);
+		}
+	}
+
+	public void negate(double[] a, int length) {
+		// multiplied rather than negated, as -1 * a is in the other engines
+		DoubleVector minusOne = DoubleVector.broadcast(SPECIES, -1);
+		int bound = SPECIES.loopBound(length);
+		int i = 0;
+		for (; i < bound; i += SPECIES.length()) {
+			minusOne.mul(DoubleVector.fromArray(SPECIES, a, i)).intoArray(a, i);
+		}
+		if (i < length) {
+			VectorMask<Double> tail = SPECIES.indexInRange(i, length);
+			minusOne.mul(DoubleVector.fromArray(SPECIES, a, i, tail)).intoArray(a, i, tail);
+		}
+	}
+
+	public void compare(int opcode, double[] a, double[] b, int length) {
+		int bound = SPECIES.loopBound(length);
+		int i = 0;
+		for (; i < bound; i += SPECIES.length()) {
+			DoubleVector left = DoubleVector.fromArray(SPECIES, a, i);
+			DoubleVector right = DoubleVector.fromArray(SPECIES, b, i);
+			ZERO.blend(ONE, holds(opcode, left, right)).intoArray(a, i);
+		}
+		if (i < length) {
+			VectorMask<Double> tail = SPECIES.indexInRange(i, length);
+			DoubleVector left = DoubleVector.fromArray(SPECIES, a, i, tail);
+			DoubleVector right = DoubleVector.fromArray(SPECIES, b, i, tail);
+			ZERO.blend(ONE, holds(opcode, left, right)).intoArray(a, i, tail);
+		}
+	}
+
+	public void select(double[] a, double[] b, double[] c, int length) {
+		int bound = SPECIES.loopBound(length);
+		int i = 0;
+		for (; i < bound; i += SPECIES.length()) {
+			VectorMask<Double> taken = DoubleVector.fromArray(SPECIES, a, i)
+					  .compare(VectorOperators.NE, 0);
+			DoubleVector.fromArray(SPECIES, c, i)
+					  .blend(DoubleVector.fromArray(SPECIES, b, i), taken).intoArray(a, i);
+		}
+		if (i < length) {
+			VectorMask<Double> tail = SPECIES.indexInRange(i, length);
+			VectorMask<Double> taken = DoubleVector.fromArray(SPECIES, a, i, tail)
+					  .compare(VectorOperators.NE, 0);
+			DoubleVector.fromArray(SPECIES, c, i, tail)
+					  .blend(DoubleVector.fromArray(SPECIES, b, i, tail), taken)
+					  .intoArray(a, i, tail);
+		}
+	}
+
+	/**
+	 * Compares two vectors lane by lane. Each comparison is named by a constant, which the
+	 * compiled loop needs to compare with a single instruction.
+	 *
+	 * @param opcode The opcode of the comparison.
+	 * @param left   The left operands.
+	 * @param right  The right operands.
+	 * @return A mask of the lanes where the comparison holds.
+	 */
+	private static VectorMask<Double> holds(int opcode, DoubleVector left, DoubleVector right) {
+		if (opcode == PostfixProgram.LESS) {
+			return left.compare(VectorOperators.LT, right);
+		} else if (opcode == PostfixProgram.LESS_EQUAL) {
+			return left.compare(VectorOperators.LE, right);
+		} else if (opcode == PostfixProgram.GREATER) {
+			return left.compare(VectorOperators.GT, right);
+		} else if (opcode == PostfixProgram.GREATER_EQUAL) {
+			return left.compare(VectorOperators.GE, right);
+		} else if (opcode == PostfixProgram.EQUAL) {
+			return left.compare(VectorOperators.EQ, right);
+		} else {
+			return left.compare(VectorOperators.NE, right);
+		}
+	}
+}